@@ -16,35 +16,70 @@
 package com.android.nfc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.ActivityManagerNative;
 import android.app.IActivityManager;
 import android.app.IProcessObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
+/**
+ * Tracks which UIDs have activities in the foreground.
+ * <p>Process observer callbacks are very frequent on a busy device, so
+ * queries never wait for them: the set of foreground UIDs is published as an
+ * immutable sorted array whenever it changes, and read without locking.
+ * Background callbacks are delivered on a dedicated thread, so the observer
+ * never runs client code.
+ */
 public class ForegroundUtils extends IProcessObserver.Stub {
     static final boolean DBG = false;
     private final String TAG = "ForegroundUtils";
     private final IActivityManager mIActivityManager;
 
+    // Only taken by process observer callbacks
     private final Object mLock = new Object();
     // We need to keep track of the individual PIDs per UID,
     // since a single UID may have multiple processes running
     // that transition into foreground/background state.
     private final SparseArray<SparseBooleanArray> mForegroundUidPids =
             new SparseArray<SparseBooleanArray>();
-    private final SparseArray<List<Callback>> mBackgroundCallbacks =
-            new SparseArray<List<Callback>>();
+    // Sorted snapshot of the keys of mForegroundUidPids, replaced on change
+    private volatile int[] mForegroundUids = new int[0];
+
+    private final ConcurrentHashMap<Integer, CopyOnWriteArrayList<Registration>>
+            mBackgroundCallbacks =
+            new ConcurrentHashMap<Integer, CopyOnWriteArrayList<Registration>>();
+    // Orders registrations against background transitions
+    private final AtomicLong mRegistrationSeq = new AtomicLong();
+    private final Handler mCallbackHandler;
+
+    private static final class Registration {
+        final Callback callback;
+        final long seq;
+
+        Registration(Callback callback, long seq) {
+            this.callback = callback;
+            this.seq = seq;
+        }
+    }
 
     private static class Singleton {
         private static final ForegroundUtils INSTANCE = new ForegroundUtils();
     }
 
     private ForegroundUtils() {
+        HandlerThread callbackThread = new HandlerThread("NfcForegroundCallbacks");
+        callbackThread.start();
+        mCallbackHandler = new Handler(callbackThread.getLooper());
         mIActivityManager = ActivityManagerNative.getDefault();
         try {
             mIActivityManager.registerProcessObserver(this);
@@ -74,17 +109,30 @@ public class ForegroundUtils extends IProcessObserver.Stub {
      * , false otherwise
      */
     public boolean registerUidToBackgroundCallback(Callback callback, int uid) {
-        synchronized (mLock) {
-            if (!isInForegroundLocked(uid)) {
-                return false;
+        if (!isInForeground(uid)) {
+            return false;
+        }
+        // Register first and check again; a background transition publishes
+        // the new foreground set before it collects callbacks, so either the
+        // check below sees it, or the transition sees this registration.
+        Registration registration = new Registration(callback,
+                mRegistrationSeq.incrementAndGet());
+        CopyOnWriteArrayList<Registration> registrations = mBackgroundCallbacks.get(uid);
+        if (registrations == null) {
+            registrations = new CopyOnWriteArrayList<Registration>();
+            CopyOnWriteArrayList<Registration> existing =
+                    mBackgroundCallbacks.putIfAbsent(uid, registrations);
+            if (existing != null) {
+                registrations = existing;
             }
-            // This uid is in the foreground; register callback for when it moves
-            // into the background.
-            List<Callback> callbacks = mBackgroundCallbacks.get(uid, new ArrayList<Callback>());
-            callbacks.add(callback);
-            mBackgroundCallbacks.put(uid, callbacks);
+        }
+        registrations.add(registration);
+        if (isInForeground(uid)) {
             return true;
         }
+        // Went to the background meanwhile; if the callback was already
+        // collected it will still be called.
+        return !registrations.remove(registration);
     }
 
     /**
@@ -92,9 +140,7 @@ public class ForegroundUtils extends IProcessObserver.Stub {
      * @return whether the UID has any activities running in the foreground
      */
     public boolean isInForeground(int uid) {
-        synchronized (mLock) {
-            return isInForegroundLocked(uid);
-        }
+        return Arrays.binarySearch(mForegroundUids, uid) >= 0;
     }
 
     /**
@@ -102,35 +148,46 @@ public class ForegroundUtils extends IProcessObserver.Stub {
      *         if none are found.
      */
     public List<Integer> getForegroundUids() {
-        ArrayList<Integer> uids = new ArrayList<Integer>(mForegroundUidPids.size());
-        synchronized (mLock) {
-            for (int i = 0; i < mForegroundUidPids.size(); i++) {
-                uids.add(mForegroundUidPids.keyAt(i));
-            }
+        int[] foregroundUids = mForegroundUids;
+        ArrayList<Integer> uids = new ArrayList<Integer>(foregroundUids.length);
+        for (int uid : foregroundUids) {
+            uids.add(uid);
         }
         return uids;
     }
 
-    private boolean isInForegroundLocked(int uid) {
-        return mForegroundUidPids.get(uid) != null;
+    private void publishForegroundUidsLocked() {
+        int[] uids = new int[mForegroundUidPids.size()];
+        for (int i = 0; i < uids.length; i++) {
+            // SparseArray keys are sorted
+            uids[i] = mForegroundUidPids.keyAt(i);
+        }
+        mForegroundUids = uids;
     }
 
-    private void handleUidToBackground(int uid) {
-        ArrayList<Callback> pendingCallbacks = null;
-        synchronized (mLock) {
-            List<Callback> callbacks = mBackgroundCallbacks.get(uid);
-            if (callbacks != null) {
-                pendingCallbacks = new ArrayList<Callback>(callbacks);
-                // Only call them once
-                mBackgroundCallbacks.remove(uid);
-            }
+    private void handleUidToBackground(final int uid) {
+        // Only registrations made before the UID went to the background
+        final long lastSeq = mRegistrationSeq.get();
+        CopyOnWriteArrayList<Registration> pending = mBackgroundCallbacks.get(uid);
+        if (pending == null || pending.isEmpty()) {
+            return;
         }
-        // Release lock for callbacks
-        if (pendingCallbacks != null) {
-            for (Callback callback : pendingCallbacks) {
-                callback.onUidToBackground(uid);
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CopyOnWriteArrayList<Registration> registrations =
+                        mBackgroundCallbacks.get(uid);
+                if (registrations == null) {
+                    return;
+                }
+                for (Registration registration : registrations) {
+                    // Only call them once
+                    if (registration.seq <= lastSeq && registrations.remove(registration)) {
+                        registration.callback.onUidToBackground(uid);
+                    }
+                }
             }
-        }
+        });
     }
 
     @Override
@@ -138,8 +195,11 @@ public class ForegroundUtils extends IProcessObserver.Stub {
             boolean hasForegroundActivities) throws RemoteException {
         boolean uidToBackground = false;
         synchronized (mLock) {
-            SparseBooleanArray foregroundPids = mForegroundUidPids.get(uid,
-                    new SparseBooleanArray());
+            SparseBooleanArray foregroundPids = mForegroundUidPids.get(uid);
+            boolean wasInForeground = foregroundPids != null;
+            if (foregroundPids == null) {
+                foregroundPids = new SparseBooleanArray();
+            }
             if (hasForegroundActivities) {
                foregroundPids.put(pid, true);
             } else {
@@ -151,6 +211,10 @@ public class ForegroundUtils extends IProcessObserver.Stub {
             } else {
                 mForegroundUidPids.put(uid, foregroundPids);
             }
+            if (wasInForeground == uidToBackground) {
+                // Membership changed
+                publishForegroundUidsLocked();
+            }
         }
         if (uidToBackground) {
             handleUidToBackground(uid);
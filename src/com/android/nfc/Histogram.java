@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-bucket histogram for dumpsys reporting.
+ * <p>Bucket i counts samples that are <= bounds[i] and larger than
+ * bounds[i - 1]; the last bucket counts everything above the last bound.
+ * Adding a sample never allocates.
+ */
+public final class Histogram {
+    /** Latency buckets in milliseconds, suitable for most NFC phases */
+    public static final long[] LATENCY_MS_BOUNDS = new long[] {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+
+    final String mName;
+    final String mUnit;
+    final long[] mBounds;
+
+    // Fields below are protected by this
+    final long[] mCounts;
+    long mCount;
+    long mSum;
+    long mMin;
+    long mMax;
+
+    public Histogram(String name, String unit, long[] bounds) {
+        mName = name;
+        mUnit = unit;
+        mBounds = bounds;
+        mCounts = new long[bounds.length + 1];
+    }
+
+    public synchronized void add(long value) {
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        if (mCount == 0 || value < mMin) mMin = value;
+        if (mCount == 0 || value > mMax) mMax = value;
+        mCount++;
+        mSum += value;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = 0;
+        mMax = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        if (mCount == 0) {
+            pw.println("  " + mName + ": no samples");
+            return;
+        }
+        pw.println("  " + mName + ": count=" + mCount + " avg=" + (mSum / mCount) + mUnit +
+                " min=" + mMin + mUnit + " max=" + mMax + mUnit);
+        StringBuilder sb = new StringBuilder("    ");
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] == 0) continue;
+            if (i < mBounds.length) {
+                sb.append("<=").append(mBounds[i]);
+            } else {
+                sb.append('>').append(mBounds[mBounds.length - 1]);
+            }
+            sb.append(mUnit).append(':').append(mCounts[i]).append(' ');
+        }
+        pw.println(sb.toString());
+    }
+}
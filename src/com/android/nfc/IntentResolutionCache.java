@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.UserHandle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A cache of PackageManager intent resolution results used by the dispatcher.
+ * <p>Dispatch only needs to know whether an activity exists for an intent, and
+ * for AAR records what the launch intent of a package is. Both only change
+ * when packages change, so results are kept per user until the next package
+ * broadcast, the same way {@link RegisteredComponentCache} refreshes.
+ */
+class IntentResolutionCache {
+    private static final String TAG = "IntentResolutionCache";
+    private static final boolean DBG = false;
+
+    static final int MAX_ENTRIES = 128;
+
+    final Context mContext;
+    final AtomicReference<BroadcastReceiver> mReceiver;
+
+    // synchronized on this
+    private final LinkedHashMap<String, Boolean> mResolvable =
+            new LruMap<String, Boolean>(MAX_ENTRIES);
+    private final LinkedHashMap<String, Intent> mLaunchIntents =
+            new LruMap<String, Intent>(MAX_ENTRIES);
+    // Bumped on every invalidation, so that a lookup racing with a package
+    // change does not store a result computed against the old package set.
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+        final int mMaxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    IntentResolutionCache(Context context) {
+        mContext = context;
+
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context1, Intent intent) {
+                invalidate();
+            }
+        };
+        mReceiver = new AtomicReference<BroadcastReceiver>(receiver);
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(receiver, UserHandle.ALL, intentFilter, null, null);
+        // Register for events related to sdcard installation.
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        mContext.registerReceiverAsUser(receiver, UserHandle.ALL, sdFilter, null, null);
+    }
+
+    /**
+     * Returns whether any activity of the given user handles the intent.
+     * Only the fields that take part in resolution (action, data, type,
+     * categories, package and component) are used as the key; extras are
+     * ignored.
+     */
+    boolean hasActivity(PackageManager pm, Intent intent, int userId) {
+        String key = resolutionKey(intent, userId);
+        int generation;
+        synchronized (this) {
+            Boolean resolvable = mResolvable.get(key);
+            if (resolvable != null) {
+                mHits++;
+                return resolvable;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+        boolean result = pm.queryIntentActivitiesAsUser(intent, 0, userId).size() > 0;
+        if (DBG) Log.d(TAG, "Resolved " + key + ": " + result);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResolvable.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the launch intent of the package for the given user,
+     * or null if it has none.
+     */
+    Intent getLaunchIntentForPackage(PackageManager pm, String packageName, int userId) {
+        String key = userId + "|" + packageName;
+        int generation;
+        synchronized (this) {
+            if (mLaunchIntents.containsKey(key)) {
+                mHits++;
+                Intent launchIntent = mLaunchIntents.get(key);
+                return launchIntent != null ? new Intent(launchIntent) : null;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+        Intent launchIntent = pm.getLaunchIntentForPackage(packageName);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mLaunchIntents.put(key, launchIntent);
+            }
+        }
+        return launchIntent != null ? new Intent(launchIntent) : null;
+    }
+
+    synchronized void invalidate() {
+        if (DBG) Log.d(TAG, "Invalidating cached intent resolutions");
+        mGeneration++;
+        mResolvable.clear();
+        mLaunchIntents.clear();
+    }
+
+    static String resolutionKey(Intent intent, int userId) {
+        StringBuilder key = new StringBuilder();
+        key.append(userId).append('|').append(intent.getAction());
+        key.append('|').append(intent.getType());
+        key.append('|').append(intent.getData());
+        key.append('|').append(intent.getCategories());
+        key.append('|').append(intent.getPackage());
+        key.append('|').append(intent.getComponent());
+        return key.toString();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Intent resolution cache: " + mResolvable.size() + " intents, " +
+                mLaunchIntents.size() + " launch intents, hits=" + mHits +
+                " misses=" + mMisses);
+    }
+}
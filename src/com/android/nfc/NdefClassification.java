@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.handover.HandoverDataParser;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the dispatch stages need to know about an NDEF message, found in a
+ * single pass over its records.
+ * <p>The stages of {@link NfcDispatcher} each used to walk the records of
+ * the message, copying types and payloads, only to find out that the
+ * message wasn't theirs. Stages now check the flags here first, and parse
+ * only what was found.
+ */
+final class NdefClassification {
+    static final String TAG = "NdefClassification";
+
+    /** The message may be a Bluetooth handover */
+    static final int FLAG_HANDOVER = 1 << 0;
+    /** The message contains a Wi-Fi Protected Setup token */
+    static final int FLAG_WPS = 1 << 1;
+    /** The message contains Android Application Records */
+    static final int FLAG_AAR = 1 << 2;
+    /** The first record may map to a MIME type */
+    static final int FLAG_MIME = 1 << 3;
+    /** The first record may map to a URI */
+    static final int FLAG_URI = 1 << 4;
+
+    static final byte[] TYPE_WPS = NfcWifiProtectedSetup.NFC_TOKEN_MIME_TYPE
+            .getBytes(StandardCharsets.US_ASCII);
+
+    static final NdefClassification EMPTY = new NdefClassification(null, 0,
+            Collections.<String>emptyList(), Collections.<ByteBuffer>emptyList());
+
+    final byte[] mBytes;
+    final int mFlags;
+    final List<String> mAarPackages;
+    final List<ByteBuffer> mWpsPayloads;
+
+    private NdefClassification(byte[] bytes, int flags, List<String> aarPackages,
+            List<ByteBuffer> wpsPayloads) {
+        mBytes = bytes;
+        mFlags = flags;
+        mAarPackages = aarPackages;
+        mWpsPayloads = wpsPayloads;
+    }
+
+    static NdefClassification classify(NdefMessage message) {
+        if (message == null) {
+            return EMPTY;
+        }
+        byte[] bytes = message.toByteArray();
+        int flags = 0;
+        List<String> aarPackages = null;
+        List<ByteBuffer> wpsPayloads = null;
+        NdefRecordView r = new NdefRecordView(bytes);
+        try {
+            while (r.next()) {
+                short tnf = r.getTnf();
+                if (r.getIndex() == 0) {
+                    if (HandoverDataParser.isBluetoothRecord(r)) {
+                        flags |= FLAG_HANDOVER;
+                    }
+                    if (tnf == NdefRecord.TNF_MIME_MEDIA || tnf == NdefRecord.TNF_WELL_KNOWN) {
+                        flags |= FLAG_MIME;
+                    }
+                    if (tnf == NdefRecord.TNF_ABSOLUTE_URI || tnf == NdefRecord.TNF_WELL_KNOWN ||
+                            tnf == NdefRecord.TNF_EXTERNAL_TYPE) {
+                        flags |= FLAG_URI;
+                    }
+                }
+                // WPS tokens are matched on type only, whatever the TNF
+                if (r.isType(TYPE_WPS)) {
+                    if (wpsPayloads == null) wpsPayloads = new ArrayList<ByteBuffer>(1);
+                    wpsPayloads.add(r.payload());
+                    flags |= FLAG_WPS;
+                } else if (tnf == NdefRecord.TNF_EXTERNAL_TYPE &&
+                        r.isType(NdefRecord.RTD_ANDROID_APP)) {
+                    if (aarPackages == null) aarPackages = new ArrayList<String>(1);
+                    aarPackages.add(new String(r.getData(), r.getPayloadOffset(),
+                            r.getPayloadLength(), StandardCharsets.US_ASCII));
+                    flags |= FLAG_AAR;
+                }
+            }
+        } catch (FormatException e) {
+            // Can't happen for a message NdefMessage encoded itself; keep
+            // what was found so far.
+            Log.e(TAG, "Couldn't classify NDEF message: " + e.getMessage());
+        }
+        return new NdefClassification(bytes, flags,
+                aarPackages != null ? aarPackages : Collections.<String>emptyList(),
+                wpsPayloads != null ? wpsPayloads : Collections.<ByteBuffer>emptyList());
+    }
+
+    boolean has(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    /**
+     * @return the encoded message, or null if there was none
+     */
+    byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the packages of the Android Application Records, in order
+     */
+    List<String> getAarPackages() {
+        return mAarPackages;
+    }
+
+    /**
+     * @return the payloads of the WPS token records, in order; each buffer
+     *         is positioned at the start of its payload
+     */
+    List<ByteBuffer> getWpsPayloads() {
+        return mWpsPayloads;
+    }
+}
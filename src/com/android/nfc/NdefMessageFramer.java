@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Finds the end of an NDEF message in a byte stream, e.g. one received in
+ * LLCP fragments.
+ * <p>Bytes are fed as they arrive, and only the record headers are looked at:
+ * the framer tracks the flags and the type, ID and payload lengths of every
+ * record, and skips over their contents. The message is complete once a
+ * record with the ME flag set has been received entirely. Each byte is
+ * looked at once, and the message is only parsed once, when it is complete.
+ */
+public final class NdefMessageFramer {
+    static final int FLAG_MB = 0x80;
+    static final int FLAG_ME = 0x40;
+    static final int FLAG_CF = 0x20;
+    static final int FLAG_SR = 0x10;
+    static final int FLAG_IL = 0x08;
+    static final int TNF_MASK = 0x07;
+    static final int TNF_UNCHANGED = 0x06;
+    static final int TNF_RESERVED = 0x07;
+
+    // Same limit as NdefRecord applies when parsing
+    static final int MAX_PAYLOAD_SIZE = 10 * (1 << 20);
+
+    static final int STATE_HEADER = 0;
+    static final int STATE_TYPE_LENGTH = 1;
+    static final int STATE_PAYLOAD_LENGTH = 2;
+    static final int STATE_ID_LENGTH = 3;
+    static final int STATE_BODY = 4;
+    static final int STATE_COMPLETE = 5;
+    static final int STATE_MALFORMED = 6;
+
+    final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    int mState = STATE_HEADER;
+    int mFlags;
+    int mTypeLength;
+    int mIdLength;
+    long mPayloadLength;
+    int mLengthBytesLeft;
+    // Bytes of type, ID and payload of the current record still to come
+    long mBodyBytesLeft;
+    boolean mFirstRecord = true;
+    boolean mInChunk;
+    String mError;
+
+    /**
+     * Consumes bytes up to the end of the message.
+     *
+     * @return the number of bytes consumed; less than length if the message
+     *         ended before the end of the data, the remaining bytes belong
+     *         to whatever follows the message
+     */
+    public int append(byte[] data, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end && mState != STATE_COMPLETE && mState != STATE_MALFORMED) {
+            if (mState == STATE_BODY) {
+                int skip = (int) Math.min(mBodyBytesLeft, end - pos);
+                pos += skip;
+                mBodyBytesLeft -= skip;
+                if (mBodyBytesLeft == 0) {
+                    endRecord();
+                }
+                continue;
+            }
+            int b = data[pos++] & 0xFF;
+            switch (mState) {
+                case STATE_HEADER:
+                    onHeader(b);
+                    break;
+                case STATE_TYPE_LENGTH:
+                    mTypeLength = b;
+                    mPayloadLength = 0;
+                    mLengthBytesLeft = (mFlags & FLAG_SR) != 0 ? 1 : 4;
+                    mState = STATE_PAYLOAD_LENGTH;
+                    break;
+                case STATE_PAYLOAD_LENGTH:
+                    mPayloadLength = (mPayloadLength << 8) | b;
+                    if (--mLengthBytesLeft == 0) {
+                        if (mPayloadLength > MAX_PAYLOAD_SIZE) {
+                            fail("payload above max limit: " + mPayloadLength);
+                        } else if ((mFlags & FLAG_IL) != 0) {
+                            mState = STATE_ID_LENGTH;
+                        } else {
+                            mIdLength = 0;
+                            startBody();
+                        }
+                    }
+                    break;
+                case STATE_ID_LENGTH:
+                    mIdLength = b;
+                    startBody();
+                    break;
+            }
+        }
+        if (pos > offset) {
+            mBuffer.write(data, offset, pos - offset);
+        }
+        return pos - offset;
+    }
+
+    private void onHeader(int flags) {
+        mFlags = flags;
+        boolean mb = (flags & FLAG_MB) != 0;
+        int tnf = flags & TNF_MASK;
+        if (mb != mFirstRecord) {
+            fail(mFirstRecord ? "expected MB flag" : "unexpected MB flag");
+        } else if (tnf == TNF_RESERVED) {
+            fail("reserved TNF");
+        } else if (mInChunk != (tnf == TNF_UNCHANGED)) {
+            fail(mInChunk ? "expected TNF_UNCHANGED in chunk" : "unexpected TNF_UNCHANGED");
+        } else if ((flags & FLAG_CF) != 0 && (flags & FLAG_ME) != 0) {
+            fail("unexpected ME flag in non-final chunk");
+        } else {
+            mFirstRecord = false;
+            mState = STATE_TYPE_LENGTH;
+        }
+    }
+
+    private void startBody() {
+        mBodyBytesLeft = (long) mTypeLength + mIdLength + mPayloadLength;
+        mState = STATE_BODY;
+        if (mBodyBytesLeft == 0) {
+            endRecord();
+        }
+    }
+
+    private void endRecord() {
+        mInChunk = (mFlags & FLAG_CF) != 0;
+        mState = (mFlags & FLAG_ME) != 0 ? STATE_COMPLETE : STATE_HEADER;
+    }
+
+    private void fail(String error) {
+        mError = error;
+        mState = STATE_MALFORMED;
+    }
+
+    /**
+     * @return whether a complete message has been received
+     */
+    public boolean isComplete() {
+        return mState == STATE_COMPLETE;
+    }
+
+    /**
+     * @return whether the bytes received so far can't be an NDEF message;
+     *         no further bytes are consumed in that case
+     */
+    public boolean isMalformed() {
+        return mState == STATE_MALFORMED;
+    }
+
+    /**
+     * Parses the complete message.
+     *
+     * @throws FormatException if the message is not complete yet, or its
+     *         records are invalid
+     */
+    public NdefMessage getMessage() throws FormatException {
+        return new NdefMessage(getMessageBytes());
+    }
+
+    /**
+     * Returns the bytes of the complete message, for parsers that don't
+     * need an {@link NdefMessage}.
+     *
+     * @throws FormatException if the message is not complete yet
+     */
+    public byte[] getMessageBytes() throws FormatException {
+        if (mState == STATE_MALFORMED) {
+            throw new FormatException("Malformed NDEF message: " + mError);
+        } else if (mState != STATE_COMPLETE) {
+            throw new FormatException("NDEF message not complete");
+        }
+        return mBuffer.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes of the message consumed so far
+     */
+    public int size() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Starts looking for a new message.
+     */
+    public void reset() {
+        mBuffer.reset();
+        mState = STATE_HEADER;
+        mFirstRecord = true;
+        mInChunk = false;
+        mError = null;
+    }
+}
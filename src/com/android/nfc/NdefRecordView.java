@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.FormatException;
+import android.nfc.NdefRecord;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only cursor over the records of an encoded NDEF message.
+ * <p>Unlike {@link android.nfc.NdefMessage}, which copies the type, ID and
+ * payload of every record, and copies them again on every getter call, the
+ * view only keeps offsets into the original bytes. Moving to the next record
+ * and comparing types or IDs doesn't allocate; {@link #payload} wraps the
+ * payload without copying it.
+ * <p>Chunked records are not supported. The view must not be used after the
+ * underlying bytes have been modified.
+ */
+public final class NdefRecordView {
+    static final int FLAG_MB = 0x80;
+    static final int FLAG_ME = 0x40;
+    static final int FLAG_CF = 0x20;
+    static final int FLAG_SR = 0x10;
+    static final int FLAG_IL = 0x08;
+    static final int TNF_MASK = 0x07;
+
+    // Same limit as NdefRecord applies when parsing
+    static final int MAX_PAYLOAD_SIZE = 10 * (1 << 20);
+
+    byte[] mData;
+    int mPos;
+    int mEnd;
+    int mIndex;
+
+    // Current record
+    int mFlags;
+    short mTnf;
+    int mTypeOffset;
+    int mTypeLength;
+    int mIdOffset;
+    int mIdLength;
+    int mPayloadOffset;
+    int mPayloadLength;
+
+    public NdefRecordView(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public NdefRecordView(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Points the view at another message; {@link #next} must be called to
+     * move to its first record.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        mData = data;
+        mPos = offset;
+        mEnd = offset + length;
+        mIndex = -1;
+        mFlags = 0;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false if the current record was the last one of the message
+     * @throws FormatException if the record is not valid, or chunked
+     */
+    public boolean next() throws FormatException {
+        if (mIndex >= 0 && (mFlags & FLAG_ME) != 0) {
+            return false;
+        }
+        require(1);
+        int flags = mData[mPos++] & 0xFF;
+        boolean first = mIndex < 0;
+        if (((flags & FLAG_MB) != 0) != first) {
+            throw new FormatException(first ? "expected MB flag" : "unexpected MB flag");
+        }
+        short tnf = (short) (flags & TNF_MASK);
+        if ((flags & FLAG_CF) != 0 || tnf == NdefRecord.TNF_UNCHANGED) {
+            throw new FormatException("chunked records not supported");
+        } else if (tnf > NdefRecord.TNF_UNCHANGED) {
+            throw new FormatException("reserved TNF");
+        }
+
+        require(1);
+        int typeLength = mData[mPos++] & 0xFF;
+        long payloadLength;
+        if ((flags & FLAG_SR) != 0) {
+            require(1);
+            payloadLength = mData[mPos++] & 0xFF;
+        } else {
+            require(4);
+            payloadLength = ((long) (mData[mPos] & 0xFF) << 24) |
+                    ((mData[mPos + 1] & 0xFF) << 16) |
+                    ((mData[mPos + 2] & 0xFF) << 8) |
+                    (mData[mPos + 3] & 0xFF);
+            mPos += 4;
+        }
+        if (payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new FormatException("payload above max limit: " + payloadLength);
+        }
+        int idLength = 0;
+        if ((flags & FLAG_IL) != 0) {
+            require(1);
+            idLength = mData[mPos++] & 0xFF;
+        }
+        require(typeLength + idLength + (int) payloadLength);
+
+        mFlags = flags;
+        mTnf = tnf;
+        mTypeOffset = mPos;
+        mTypeLength = typeLength;
+        mIdOffset = mTypeOffset + typeLength;
+        mIdLength = idLength;
+        mPayloadOffset = mIdOffset + idLength;
+        mPayloadLength = (int) payloadLength;
+        mPos = mPayloadOffset + mPayloadLength;
+        mIndex++;
+        return true;
+    }
+
+    private void require(int length) throws FormatException {
+        if (mEnd - mPos < length) {
+            throw new FormatException("expected " + length + " more bytes");
+        }
+    }
+
+    /**
+     * @return the position of the current record in the message
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public short getTnf() {
+        return mTnf;
+    }
+
+    public boolean isType(byte[] type) {
+        return regionEquals(mTypeOffset, mTypeLength, type, 0, type.length);
+    }
+
+    public int getIdLength() {
+        return mIdLength;
+    }
+
+    /**
+     * @return whether the ID of the current record equals length bytes of
+     *         data starting at offset
+     */
+    public boolean isId(byte[] data, int offset, int length) {
+        return regionEquals(mIdOffset, mIdLength, data, offset, length);
+    }
+
+    /**
+     * @return a copy of the type of the current record
+     */
+    public byte[] getType() {
+        return copy(mTypeOffset, mTypeLength);
+    }
+
+    /**
+     * @return a copy of the ID of the current record
+     */
+    public byte[] getId() {
+        return copy(mIdOffset, mIdLength);
+    }
+
+    /**
+     * @return the message bytes the view reads from
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * @return the payload of the current record, without copying it;
+     *         positions of the buffer are relative to the start of the payload
+     */
+    public ByteBuffer payload() {
+        return ByteBuffer.wrap(mData, mPayloadOffset, mPayloadLength).slice();
+    }
+
+    /**
+     * @return a view of the NDEF message nested in the payload of the
+     *         current record, starting skip bytes into the payload
+     */
+    public NdefRecordView nested(int skip) {
+        return new NdefRecordView(mData, mPayloadOffset + skip, mPayloadLength - skip);
+    }
+
+    private boolean regionEquals(int offset, int length, byte[] other, int otherOffset,
+            int otherLength) {
+        if (length != otherLength) return false;
+        for (int i = 0; i < length; i++) {
+            if (mData[offset + i] != other[otherOffset + i]) return false;
+        }
+        return true;
+    }
+
+    private byte[] copy(int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(mData, offset, result, 0, length);
+        return result;
+    }
+}
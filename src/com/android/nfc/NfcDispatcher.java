@@ -20,7 +20,7 @@ import android.app.ActivityManager;
 import android.bluetooth.BluetoothAdapter;
 import android.os.UserManager;
 
-import com.android.nfc.RegisteredComponentCache.ComponentInfo;
+import com.android.nfc.RegisteredComponentCache.TechFilterIndex;
 import com.android.nfc.handover.HandoverDataParser;
 import com.android.nfc.handover.PeripheralHandoverService;
 
@@ -47,15 +47,14 @@ import android.nfc.Tag;
 import android.nfc.tech.Ndef;
 import android.nfc.tech.NfcBarcode;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -72,31 +71,38 @@ class NfcDispatcher {
     private final Context mContext;
     private final IActivityManager mIActivityManager;
     private final RegisteredComponentCache mTechListFilters;
+    private final IntentResolutionCache mResolutionCache;
     private final ContentResolver mContentResolver;
     private final HandoverDataParser mHandoverDataParser;
     private final String[] mProvisioningMimes;
     private final ScreenStateHelper mScreenStateHelper;
     private final NfcUnlockManager mNfcUnlockManager;
     private final boolean mDeviceSupportsBluetooth;
+    private final TagDispatchStats mStats;
 
     // Locked on this
     private PendingIntent mOverrideIntent;
     private IntentFilter[] mOverrideFilters;
     private String[][] mOverrideTechLists;
     private boolean mProvisioningOnly;
+    private PackageManager mUserPackageManager;
+    private int mUserPackageManagerUserId = UserHandle.USER_NULL;
 
     NfcDispatcher(Context context,
                   HandoverDataParser handoverDataParser,
+                  TagDispatchStats stats,
                   boolean provisionOnly) {
         mContext = context;
         mIActivityManager = ActivityManagerNative.getDefault();
         mTechListFilters = new RegisteredComponentCache(mContext,
                 NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED);
+        mResolutionCache = new IntentResolutionCache(mContext);
         mContentResolver = context.getContentResolver();
         mHandoverDataParser = handoverDataParser;
         mScreenStateHelper = new ScreenStateHelper(context);
         mNfcUnlockManager = NfcUnlockManager.getInstance();
         mDeviceSupportsBluetooth = BluetoothAdapter.getDefaultAdapter() != null;
+        mStats = stats;
 
         synchronized (this) {
             mProvisioningOnly = provisionOnly;
@@ -137,15 +143,22 @@ class NfcDispatcher {
         final String ndefMimeType;
         final PackageManager packageManager;
         final Context context;
+        final TagDispatchStats.Session session;
+        final IntentResolutionCache resolutionCache;
 
-        public DispatchInfo(Context context, Tag tag, NdefMessage message) {
+        public DispatchInfo(Context context, Tag tag, NdefMessage message,
+                NdefClassification classification, TagDispatchStats.Session session,
+                IntentResolutionCache resolutionCache) {
             intent = new Intent();
             intent.putExtra(NfcAdapter.EXTRA_TAG, tag);
             intent.putExtra(NfcAdapter.EXTRA_ID, tag.getId());
             if (message != null) {
                 intent.putExtra(NfcAdapter.EXTRA_NDEF_MESSAGES, new NdefMessage[] {message});
-                ndefUri = message.getRecords()[0].toUri();
-                ndefMimeType = message.getRecords()[0].toMimeType();
+                NdefRecord first = message.getRecords()[0];
+                ndefUri = classification.has(NdefClassification.FLAG_URI) ?
+                        first.toUri() : null;
+                ndefMimeType = classification.has(NdefClassification.FLAG_MIME) ?
+                        first.toMimeType() : null;
             } else {
                 ndefUri = null;
                 ndefMimeType = null;
@@ -156,6 +169,8 @@ class NfcDispatcher {
             rootIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
 
             this.context = context;
+            this.session = session;
+            this.resolutionCache = resolutionCache;
             packageManager = context.getPackageManager();
         }
 
@@ -197,26 +212,30 @@ class NfcDispatcher {
             // NfcRootActivity was able to launch the intent, but startActivityForResult()
             // is not available on Context. Instead, we query the PackageManager beforehand
             // to determine if there is an Activity to handle this intent, and base the
-            // result of off that.
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(intent, 0,
-                    ActivityManager.getCurrentUser());
-            if (activities.size() > 0) {
-                context.startActivityAsUser(rootIntent, UserHandle.CURRENT);
+            // result of off that. Results are cached until the next package change.
+            if (resolutionCache.hasActivity(packageManager, intent,
+                    ActivityManager.getCurrentUser())) {
+                startRootActivity();
                 return true;
             }
             return false;
         }
 
         boolean tryStartActivity(Intent intentToStart) {
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(
-                    intentToStart, 0, ActivityManager.getCurrentUser());
-            if (activities.size() > 0) {
+            if (resolutionCache.hasActivity(packageManager, intentToStart,
+                    ActivityManager.getCurrentUser())) {
                 rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT, intentToStart);
-                context.startActivityAsUser(rootIntent, UserHandle.CURRENT);
+                startRootActivity();
                 return true;
             }
             return false;
         }
+
+        private void startRootActivity() {
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            context.startActivityAsUser(rootIntent, UserHandle.CURRENT);
+            session.endPhase(TagDispatchStats.PHASE_ACTIVITY_START, startNanos);
+        }
     }
 
     /** Returns:
@@ -227,6 +246,24 @@ class NfcDispatcher {
      * </ul>
      */
     public int dispatchTag(Tag tag) {
+        TagDispatchStats.Session session = mStats.startSession(0);
+        int result = dispatchTag(tag, session);
+        mStats.finishSession(session, result);
+        return result;
+    }
+
+    /**
+     * Dispatches the tag, recording the branch taken and the dispatch timing
+     * in the given session. The caller is responsible for finishing it.
+     */
+    public int dispatchTag(Tag tag, TagDispatchStats.Session session) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int result = dispatchTagInternal(tag, session);
+        session.endPhase(TagDispatchStats.PHASE_DISPATCH, startNanos);
+        return result;
+    }
+
+    private int dispatchTagInternal(Tag tag, TagDispatchStats.Session session) {
         PendingIntent overrideIntent;
         IntentFilter[] overrideFilters;
         String[][] overrideTechLists;
@@ -263,22 +300,30 @@ class NfcDispatcher {
 
         if (DBG) Log.d(TAG, "dispatch tag: " + tag.toString() + " message: " + message);
 
-        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message);
+        // Walk the records once; the stages below only look at what they need
+        NdefClassification classification = NdefClassification.classify(message);
+        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message, classification,
+                session, mResolutionCache);
 
         resumeAppSwitches();
 
         if (tryOverrides(dispatch, tag, message, overrideIntent, overrideFilters,
                 overrideTechLists)) {
+            session.setBranch(TagDispatchStats.BRANCH_OVERRIDE);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
-        if (tryPeripheralHandover(message)) {
+        if (tryPeripheralHandover(classification)) {
             if (DBG) Log.i(TAG, "matched BT HANDOVER");
+            session.setBranch(TagDispatchStats.BRANCH_HANDOVER);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
-        if (NfcWifiProtectedSetup.tryNfcWifiSetup(ndef, mContext)) {
+        if (classification.has(NdefClassification.FLAG_WPS) &&
+                NfcWifiProtectedSetup.tryNfcWifiSetup(classification.getWpsPayloads(),
+                        mContext)) {
             if (DBG) Log.i(TAG, "matched NFC WPS TOKEN");
+            session.setBranch(TagDispatchStats.BRANCH_WPS);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
@@ -288,15 +333,15 @@ class NfcDispatcher {
                 return DISPATCH_FAIL;
             }
             // Restrict to mime-types in whitelist.
-            String ndefMimeType = message.getRecords()[0].toMimeType();
             if (provisioningMimes == null ||
-                    !(Arrays.asList(provisioningMimes).contains(ndefMimeType))) {
+                    !(Arrays.asList(provisioningMimes).contains(dispatch.ndefMimeType))) {
                 Log.e(TAG, "Dropping NFC intent in provisioning mode.");
                 return DISPATCH_FAIL;
             }
         }
 
-        if (tryNdef(dispatch, message)) {
+        if (tryNdef(dispatch, message, classification)) {
+            session.setBranch(TagDispatchStats.BRANCH_NDEF);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
@@ -307,12 +352,14 @@ class NfcDispatcher {
 
         // Only allow NDEF-based mimeType matching for unlock tags
         if (tryTech(dispatch, tag)) {
+            session.setBranch(TagDispatchStats.BRANCH_TECH);
             return DISPATCH_SUCCESS;
         }
 
         dispatch.setTagIntent();
         if (dispatch.tryStartActivity()) {
             if (DBG) Log.i(TAG, "matched TAG");
+            session.setBranch(TagDispatchStats.BRANCH_TAG);
             return DISPATCH_SUCCESS;
         }
 
@@ -463,7 +510,8 @@ class NfcDispatcher {
         return false;
     }
 
-    boolean tryNdef(DispatchInfo dispatch, NdefMessage message) {
+    boolean tryNdef(DispatchInfo dispatch, NdefMessage message,
+            NdefClassification classification) {
         if (message == null) {
             return false;
         }
@@ -473,7 +521,7 @@ class NfcDispatcher {
         if (intent == null) return false;
 
         // Try to start AAR activity with matching filter
-        List<String> aarPackages = extractAarPackages(message);
+        List<String> aarPackages = classification.getAarPackages();
         for (String pkg : aarPackages) {
             dispatch.intent.setPackage(pkg);
             if (dispatch.tryStartActivity()) {
@@ -485,16 +533,12 @@ class NfcDispatcher {
         // Try to perform regular launch of the first AAR
         if (aarPackages.size() > 0) {
             String firstPackage = aarPackages.get(0);
-            PackageManager pm;
-            try {
-                UserHandle currentUser = new UserHandle(ActivityManager.getCurrentUser());
-                pm = mContext.createPackageContextAsUser("android", 0,
-                        currentUser).getPackageManager();
-            } catch (NameNotFoundException e) {
-                Log.e(TAG, "Could not create user package context");
+            PackageManager pm = getCurrentUserPackageManager();
+            if (pm == null) {
                 return false;
             }
-            Intent appLaunchIntent = pm.getLaunchIntentForPackage(firstPackage);
+            Intent appLaunchIntent = mResolutionCache.getLaunchIntentForPackage(pm, firstPackage,
+                    ActivityManager.getCurrentUser());
             if (appLaunchIntent != null && dispatch.tryStartActivity(appLaunchIntent)) {
                 if (DBG) Log.i(TAG, "matched AAR to application launch");
                 return true;
@@ -517,17 +561,6 @@ class NfcDispatcher {
         return false;
     }
 
-    static List<String> extractAarPackages(NdefMessage message) {
-        List<String> aarPackages = new LinkedList<String>();
-        for (NdefRecord record : message.getRecords()) {
-            String pkg = checkForAar(record);
-            if (pkg != null) {
-                aarPackages.add(pkg);
-            }
-        }
-        return aarPackages;
-    }
-
     boolean tryTech(DispatchInfo dispatch, Tag tag) {
         dispatch.setTechIntent();
 
@@ -536,26 +569,20 @@ class NfcDispatcher {
 
         // Standard tech dispatch path
         ArrayList<ResolveInfo> matches = new ArrayList<ResolveInfo>();
-        List<ComponentInfo> registered = mTechListFilters.getComponents();
+        TechFilterIndex index = mTechListFilters.getTechFilterIndex();
+        if (index == null) {
+            return false;
+        }
 
-        PackageManager pm;
-        try {
-            UserHandle currentUser = new UserHandle(ActivityManager.getCurrentUser());
-            pm = mContext.createPackageContextAsUser("android", 0,
-                    currentUser).getPackageManager();
-        } catch (NameNotFoundException e) {
-            Log.e(TAG, "Could not create user package context");
+        PackageManager pm = getCurrentUserPackageManager();
+        if (pm == null) {
             return false;
         }
-        // Check each registered activity to see if it matches
-        for (ComponentInfo info : registered) {
-            // Don't allow wild card matching
-            if (filterMatch(tagTechs, info.techs) &&
-                    isComponentEnabled(pm, info.resolveInfo)) {
-                // Add the activity as a match if it's not already in the list
-                if (!matches.contains(info.resolveInfo)) {
-                    matches.add(info.resolveInfo);
-                }
+        // The index only returns registered activities with a matching,
+        // non-empty tech-list, each at most once
+        for (ResolveInfo info : index.match(tagTechs)) {
+            if (isComponentEnabled(pm, info)) {
+                matches.add(info);
             }
         }
 
@@ -582,12 +609,42 @@ class NfcDispatcher {
         return false;
     }
 
-    public boolean tryPeripheralHandover(NdefMessage m) {
-        if (m == null || !mDeviceSupportsBluetooth) return false;
+    /**
+     * Returns the PackageManager for the current user, creating the
+     * package context only when the current user changes.
+     */
+    private PackageManager getCurrentUserPackageManager() {
+        int userId = ActivityManager.getCurrentUser();
+        synchronized (this) {
+            if (mUserPackageManager != null && mUserPackageManagerUserId == userId) {
+                return mUserPackageManager;
+            }
+        }
+        PackageManager pm;
+        try {
+            pm = mContext.createPackageContextAsUser("android", 0,
+                    new UserHandle(userId)).getPackageManager();
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Could not create user package context");
+            return null;
+        }
+        synchronized (this) {
+            mUserPackageManager = pm;
+            mUserPackageManagerUserId = userId;
+        }
+        return pm;
+    }
+
+    boolean tryPeripheralHandover(NdefClassification classification) {
+        if (!classification.has(NdefClassification.FLAG_HANDOVER) ||
+                !mDeviceSupportsBluetooth) {
+            return false;
+        }
 
-        if (DBG) Log.d(TAG, "tryHandover(): " + m.toString());
+        if (DBG) Log.d(TAG, "tryHandover()");
 
-        HandoverDataParser.BluetoothHandoverData handover = mHandoverDataParser.parseBluetooth(m);
+        HandoverDataParser.BluetoothHandoverData handover =
+                mHandoverDataParser.parseBluetooth(classification.getBytes());
         if (handover == null || !handover.valid) return false;
         if (UserManager.get(mContext).hasUserRestriction(
                 UserManager.DISALLOW_CONFIG_BLUETOOTH,
@@ -635,14 +692,6 @@ class NfcDispatcher {
         return true;
     }
 
-    static String checkForAar(NdefRecord record) {
-        if (record.getTnf() == NdefRecord.TNF_EXTERNAL_TYPE &&
-                Arrays.equals(record.getType(), NdefRecord.RTD_ANDROID_APP)) {
-            return new String(record.getPayload(), StandardCharsets.US_ASCII);
-        }
-        return null;
-    }
-
     /**
      * Returns an intent that can be used to find an application not currently
      * installed on the device.
@@ -679,5 +728,6 @@ class NfcDispatcher {
             pw.println("mOverrideFilters=" + mOverrideFilters);
             pw.println("mOverrideTechLists=" + mOverrideTechLists);
         }
+        mResolutionCache.dump(pw);
     }
 }
@@ -87,6 +87,10 @@ import com.android.nfc.handover.HandoverDataParser;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -131,10 +135,13 @@ public class NfcService implements DeviceHostListener {
     static final int MSG_DEREGISTER_T3T_IDENTIFIER = 13;
     static final int MSG_TAG_DEBOUNCE = 14;
     static final int MSG_UPDATE_STATS = 15;
+    static final int MSG_RF_FIELD_FLUSH = 16;
 
     // Update stats every 4 hours
     static final long STATS_UPDATE_INTERVAL_MS = 4 * 60 * 60 * 1000;
     static final long MAX_POLLING_PAUSE_TIMEOUT = 40000;
+    // RF field broadcasts are sent at most this often, see onRfFieldChanged()
+    static final long RF_FIELD_BROADCAST_INTERVAL_MS = 200;
 
     static final int TASK_ENABLE = 1;
     static final int TASK_DISABLE = 2;
@@ -198,9 +205,19 @@ public class NfcService implements DeviceHostListener {
     private final NfceeAccessControl mNfceeAccessControl;
 
     List<PackageInfo> mInstalledPackages; // cached version of installed packages
+    // Packages in mInstalledPackages with NFCEE access, i.e. the recipients of
+    // RF field events; null until first computed
+    List<String> mNfceeAccessPackages;
+
+    // Handle registries for connected endpoints. These are concurrent rather
+    // than protected by synchronized(this), so that tag I/O lookups never wait
+    // behind routing or enable/disable work holding the NfcService monitor.
+    final ConcurrentHashMap<Integer, TagEndpoint> mTagObjects =
+            new ConcurrentHashMap<Integer, TagEndpoint>();
+    final ConcurrentHashMap<Integer, NfcDepEndpoint> mP2pObjects =
+            new ConcurrentHashMap<Integer, NfcDepEndpoint>();
 
     // fields below are used in multiple threads and protected by synchronized(this)
-    final HashMap<Integer, Object> mObjectMap = new HashMap<Integer, Object>();
     int mScreenState;
     boolean mInProvisionMode; // whether we're in setup wizard and enabled NFC provisioning
     boolean mIsNdefPushEnabled;
@@ -223,6 +240,12 @@ public class NfcService implements DeviceHostListener {
     AtomicInteger mNumTagsDetected;
     AtomicInteger mNumP2pDetected;
     AtomicInteger mNumHceDetected;
+    TagDispatchStats mTagDispatchStats;
+    // Concurrent startup steps and their timings
+    final StartupTasks mStartupTasks = new StartupTasks();
+    // Controller bring-up started by the constructor, consumed by the boot
+    // task; synchronized on this
+    Future<Boolean> mBootDeviceInit;
 
     // mState is protected by this, however it is only modified in onCreate()
     // and the default AsyncTask thread so it is read unprotected from that
@@ -335,6 +358,8 @@ public class NfcService implements DeviceHostListener {
     }
 
     public NfcService(Application nfcApplication) {
+        final long constructionStart = SystemClock.elapsedRealtime();
+        long stepStart = constructionStart;
         mUserId = ActivityManager.getCurrentUser();
         mContext = nfcApplication;
 
@@ -347,10 +372,36 @@ public class NfcService implements DeviceHostListener {
         mScreenStateHelper = new ScreenStateHelper(mContext);
         mContentResolver = mContext.getContentResolver();
         mDeviceHost = new NativeNfcManager(mContext, this);
+        stepStart = mStartupTasks.record("native_manager", stepStart);
+
+        mPrefs = mContext.getSharedPreferences(PREF, Context.MODE_PRIVATE);
+        mPrefsEditor = mPrefs.edit();
+
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+
+        mRoutingWakeLock = mPowerManager.newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, "NfcService:mRoutingWakeLock");
+
+        // Initializing the controller is the slowest part of boot and does
+        // not depend on anything below, so start it right away; the boot
+        // task waits for the result instead of initializing it again.
+        if (mPrefs.getBoolean(PREF_NFC_ON, NFC_ON_DEFAULT)) {
+            mBootDeviceInit = mStartupTasks.submit("device_init", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    mRoutingWakeLock.acquire();
+                    try {
+                        return mDeviceHost.initialize();
+                    } finally {
+                        mRoutingWakeLock.release();
+                    }
+                }
+            });
+        }
 
         mNfcUnlockManager = NfcUnlockManager.getInstance();
 
-        mHandoverDataParser = new HandoverDataParser();
+        mHandoverDataParser = new HandoverDataParser(mContext);
         boolean isNfcProvisioningEnabled = false;
         try {
             isNfcProvisioningEnabled = mContext.getResources().getBoolean(
@@ -365,26 +416,56 @@ public class NfcService implements DeviceHostListener {
             mInProvisionMode = false;
         }
 
-        mNfcDispatcher = new NfcDispatcher(mContext, mHandoverDataParser, mInProvisionMode);
-        mP2pLinkManager = new P2pLinkManager(mContext, mHandoverDataParser,
-                mDeviceHost.getDefaultLlcpMiu(), mDeviceHost.getDefaultLlcpRwSize());
+        mIsDebugBuild = "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE);
 
-        mPrefs = mContext.getSharedPreferences(PREF, Context.MODE_PRIVATE);
-        mPrefsEditor = mPrefs.edit();
+        // The binary tag dispatch trace is only kept on debug builds
+        mTagDispatchStats = new TagDispatchStats(mIsDebugBuild);
+
+        // These only query PackageManager or parse configuration, and don't
+        // need a Looper, so they load in the background while the components
+        // below are created. They are awaited before the service is published.
+        final boolean inProvisionMode = mInProvisionMode;
+        Future<NfcDispatcher> dispatcher = mStartupTasks.submit("dispatcher",
+                new Callable<NfcDispatcher>() {
+            @Override
+            public NfcDispatcher call() {
+                return new NfcDispatcher(mContext, mHandoverDataParser, mTagDispatchStats,
+                        inProvisionMode);
+            }
+        });
+        final Future<NfceeAccessControl> nfceeAccessControl = mStartupTasks.submit(
+                "nfcee_access_control", new Callable<NfceeAccessControl>() {
+            @Override
+            public NfceeAccessControl call() {
+                return new NfceeAccessControl(mContext);
+            }
+        });
+        Future<Void> packageCache = mStartupTasks.submit("package_cache", new Callable<Void>() {
+            @Override
+            public Void call() {
+                updatePackageCache();
+                return null;
+            }
+        });
+        // Checks every installed package, so nothing waits for it; field
+        // events arriving before it is done compute the recipients themselves.
+        mStartupTasks.submit("nfcee_access_packages", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                updateNfceeAccessPackages(nfceeAccessControl.get());
+                return null;
+            }
+        }, "package_cache", "nfcee_access_control");
 
-        mNfceeAccessControl = new NfceeAccessControl(mContext);
+        stepStart = SystemClock.elapsedRealtime();
+        mP2pLinkManager = new P2pLinkManager(mContext, mHandoverDataParser,
+                mDeviceHost.getDefaultLlcpMiu(), mDeviceHost.getDefaultLlcpRwSize());
+        stepStart = mStartupTasks.record("p2p_link_manager", stepStart);
 
         mState = NfcAdapter.STATE_OFF;
         mIsNdefPushEnabled = mPrefs.getBoolean(PREF_NDEF_PUSH_ON, NDEF_PUSH_ON_DEFAULT);
         setBeamShareActivityState(mIsNdefPushEnabled);
 
-        mIsDebugBuild = "userdebug".equals(Build.TYPE) || "eng".equals(Build.TYPE);
-
-        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-
-        mRoutingWakeLock = mPowerManager.newWakeLock(
-                PowerManager.PARTIAL_WAKE_LOCK, "NfcService:mRoutingWakeLock");
-
         mKeyguard = (KeyguardManager) mContext.getSystemService(Context.KEYGUARD_SERVICE);
         mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
 
@@ -414,8 +495,6 @@ public class NfcService implements DeviceHostListener {
         IntentFilter policyFilter = new IntentFilter(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
         mContext.registerReceiverAsUser(mPolicyReceiver, UserHandle.ALL, policyFilter, null, null);
 
-        updatePackageCache();
-
         PackageManager pm = mContext.getPackageManager();
         mIsHceCapable =
                 pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION) ||
@@ -423,16 +502,48 @@ public class NfcService implements DeviceHostListener {
         mIsHceFCapable =
                 pm.hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION_NFCF);
         if (mIsHceCapable) {
+            // Creates Handlers, so it has to stay on the main thread
+            stepStart = SystemClock.elapsedRealtime();
             mCardEmulationManager = new CardEmulationManager(mContext);
+            mStartupTasks.record("card_emulation", stepStart);
         }
         mForegroundUtils = ForegroundUtils.getInstance();
 
+        mNfcDispatcher = mStartupTasks.await(dispatcher);
+        mNfceeAccessControl = mStartupTasks.await(nfceeAccessControl);
+        mStartupTasks.await(packageCache);
+
         // Make sure this is only called when object construction is complete.
         ServiceManager.addService(SERVICE_NAME, mNfcAdapter);
 
         new EnableDisableTask().execute(TASK_BOOT);  // do blocking boot tasks
 
         mHandler.sendEmptyMessageDelayed(MSG_UPDATE_STATS, STATS_UPDATE_INTERVAL_MS);
+        mStartupTasks.record("constructor_total", constructionStart);
+    }
+
+    /**
+     * Initializes the controller, or waits for the initialization that the
+     * constructor started for the boot task.
+     */
+    boolean initializeDeviceHost() {
+        Future<Boolean> bootDeviceInit;
+        synchronized (this) {
+            bootDeviceInit = mBootDeviceInit;
+            mBootDeviceInit = null;
+        }
+        if (bootDeviceInit == null) {
+            return mDeviceHost.initialize();
+        }
+        try {
+            return bootDeviceInit.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for controller initialization");
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Controller initialization failed", e.getCause());
+            return false;
+        }
     }
 
     void initSoundPool() {
@@ -463,6 +574,32 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
+    /**
+     * Recomputes the recipients of NFCEE access protected broadcasts, which
+     * only change with the installed packages or the NFCEE access policy.
+     */
+    void updateNfceeAccessPackages(NfceeAccessControl accessControl) {
+        List<PackageInfo> installedPackages;
+        synchronized (this) {
+            installedPackages = mInstalledPackages;
+        }
+        ArrayList<String> packages = new ArrayList<String>();
+        if (installedPackages != null) {
+            for (PackageInfo pkg : installedPackages) {
+                if (pkg != null && pkg.applicationInfo != null &&
+                        accessControl.check(pkg.applicationInfo)) {
+                    packages.add(pkg.packageName);
+                }
+            }
+        }
+        synchronized (this) {
+            // Don't overwrite the result of a newer package list
+            if (mInstalledPackages == installedPackages) {
+                mNfceeAccessPackages = packages;
+            }
+        }
+    }
+
     /**
      * Manages tasks that involve turning on/off the NFC controller.
      * <p/>
@@ -519,6 +656,7 @@ public class NfcService implements DeviceHostListener {
                     disableInternal();
                     break;
                 case TASK_BOOT:
+                    final long bootStart = SystemClock.elapsedRealtime();
                     Log.d(TAG, "checking on firmware download");
                     if (mPrefs.getBoolean(PREF_NFC_ON, NFC_ON_DEFAULT)) {
                         Log.d(TAG, "NFC is on. Doing normal stuff");
@@ -532,6 +670,7 @@ public class NfcService implements DeviceHostListener {
                         mPrefsEditor.putBoolean(PREF_FIRST_BOOT, false);
                         mPrefsEditor.apply();
                     }
+                    mStartupTasks.record("boot_task", bootStart);
                     break;
             }
 
@@ -556,7 +695,7 @@ public class NfcService implements DeviceHostListener {
             try {
                 mRoutingWakeLock.acquire();
                 try {
-                    if (!mDeviceHost.initialize()) {
+                    if (!initializeDeviceHost()) {
                         Log.w(TAG, "Error enabling NFC");
                         updateState(NfcAdapter.STATE_OFF);
                         return false;
@@ -574,7 +713,8 @@ public class NfcService implements DeviceHostListener {
             }
 
             synchronized (NfcService.this) {
-                mObjectMap.clear();
+                mTagObjects.clear();
+                mP2pObjects.clear();
                 mP2pLinkManager.enableDisable(mIsNdefPushEnabled, true);
                 updateState(NfcAdapter.STATE_ON);
             }
@@ -881,7 +1021,7 @@ public class NfcService implements DeviceHostListener {
                 throws RemoteException {
             NfcPermissions.enforceUserPermissions(mContext);
 
-            TagEndpoint tag = (TagEndpoint) findAndRemoveObject(nativeHandle);
+            TagEndpoint tag = findAndRemoveTagObject(nativeHandle);
             if (tag != null) {
                 // Store UID and params
                 int uidLength = tag.getUid().length;
@@ -1107,7 +1247,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_DISCONNECT;
             }
@@ -1138,7 +1278,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag != null) {
                 if (tag.reconnect()) {
                     return ErrorCodes.SUCCESS;
@@ -1159,7 +1299,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            TagEndpoint tag = (TagEndpoint) findObject(nativeHandle);
+            TagEndpoint tag = findTagObject(nativeHandle);
             if (tag != null) {
                 return tag.getTechList();
             }
@@ -1176,7 +1316,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag == null) {
                 return false;
             }
@@ -1196,7 +1336,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             int[] ndefInfo = new int[2];
             if (tag == null) {
                 return false;
@@ -1218,7 +1358,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag != null) {
                 // Check if length is within limits
                 if (data.length > getMaxTransceiveLength(tag.getConnectedTechnology())) {
@@ -1251,7 +1391,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag != null) {
                 byte[] buf = tag.readNdef();
                 if (buf == null) {
@@ -1280,7 +1420,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
@@ -1312,7 +1452,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
@@ -1336,7 +1476,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
@@ -1360,7 +1500,7 @@ public class NfcService implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTagObject(nativeHandle);
             if (tag != null) {
                 // For now the prime usecase for rediscover() is to be able
                 // to access the NDEF technology after formatting without
@@ -1579,10 +1719,8 @@ public class NfcService implements DeviceHostListener {
     }
 
     private boolean isTagPresent() {
-        for (Object object : mObjectMap.values()) {
-            if (object instanceof TagEndpoint) {
-                return ((TagEndpoint) object).isPresent();
-            }
+        for (TagEndpoint tag : mTagObjects.values()) {
+            return tag.isPresent();
         }
         return false;
     }
@@ -1593,23 +1731,22 @@ public class NfcService implements DeviceHostListener {
         if (!isNfcEnabledOrShuttingDown()) {
             return;
         }
-        Object[] objectsToDisconnect;
-        synchronized (this) {
-            Object[] objectValues = mObjectMap.values().toArray();
-            // Copy the array before we clear mObjectMap,
-            // just in case the HashMap values are backed by the same array
-            objectsToDisconnect = Arrays.copyOf(objectValues, objectValues.length);
-            mObjectMap.clear();
-        }
-        for (Object o : objectsToDisconnect) {
-            if (DBG) Log.d(TAG, "disconnecting " + o.getClass().getName());
-            if (o instanceof TagEndpoint) {
+        // Remove each endpoint individually rather than snapshot-and-clear,
+        // so that an endpoint registered concurrently is never dropped
+        // without being disconnected.
+        for (Integer handle : mTagObjects.keySet()) {
+            TagEndpoint tag = mTagObjects.remove(handle);
+            if (tag != null) {
+                if (DBG) Log.d(TAG, "disconnecting " + tag.getClass().getName());
                 // Disconnect from tags
-                TagEndpoint tag = (TagEndpoint) o;
                 tag.disconnect();
-            } else if (o instanceof NfcDepEndpoint) {
+            }
+        }
+        for (Integer handle : mP2pObjects.keySet()) {
+            NfcDepEndpoint device = mP2pObjects.remove(handle);
+            if (device != null) {
+                if (DBG) Log.d(TAG, "disconnecting " + device.getClass().getName());
                 // Disconnect from P2P devices
-                NfcDepEndpoint device = (NfcDepEndpoint) o;
                 if (device.getMode() == NfcDepEndpoint.MODE_P2P_TARGET) {
                     // Remote peer is target, request disconnection
                     device.disconnect();
@@ -1621,38 +1758,36 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
-    Object findObject(int key) {
-        synchronized (this) {
-            Object device = mObjectMap.get(key);
-            if (device == null) {
-                Log.w(TAG, "Handle not found");
-            }
-            return device;
+    TagEndpoint findTagObject(int key) {
+        TagEndpoint tag = mTagObjects.get(key);
+        if (tag == null) {
+            Log.w(TAG, "Handle not found");
         }
+        return tag;
     }
 
-    Object findAndRemoveObject(int handle) {
-        synchronized (this) {
-            Object device = mObjectMap.get(handle);
-            if (device == null) {
-                Log.w(TAG, "Handle not found");
-            } else {
-                mObjectMap.remove(handle);
-            }
-            return device;
+    TagEndpoint findAndRemoveTagObject(int handle) {
+        TagEndpoint tag = mTagObjects.remove(handle);
+        if (tag == null) {
+            Log.w(TAG, "Handle not found");
         }
+        return tag;
     }
 
     void registerTagObject(TagEndpoint tag) {
-        synchronized (this) {
-            mObjectMap.put(tag.getHandle(), tag);
-        }
+        mTagObjects.put(tag.getHandle(), tag);
     }
 
-    void unregisterObject(int handle) {
-        synchronized (this) {
-            mObjectMap.remove(handle);
-        }
+    void unregisterTagObject(int handle) {
+        mTagObjects.remove(handle);
+    }
+
+    void registerP2pObject(NfcDepEndpoint device) {
+        mP2pObjects.put(device.getHandle(), device);
+    }
+
+    NfcDepEndpoint findAndRemoveP2pObject(int handle) {
+        return mP2pObjects.remove(handle);
     }
 
     /**
@@ -1746,6 +1881,15 @@ public class NfcService implements DeviceHostListener {
     }
 
     final class NfcServiceHandler extends Handler {
+        // RF field broadcast state, only used on the handler thread
+        boolean mRfFieldOn;
+        Boolean mRfFieldBroadcastState; // null until the first broadcast
+        boolean mRfFieldLeftBroadcastState; // since the last broadcast
+        long mLastRfFieldBroadcastMs;
+        boolean mRfFieldFlushScheduled;
+        int mRfFieldEvents;
+        int mRfFieldBroadcasts;
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -1828,6 +1972,8 @@ public class NfcService implements DeviceHostListener {
                     if (DBG) Log.d(TAG, "Tag detected, notifying applications");
                     mNumTagsDetected.incrementAndGet();
                     TagEndpoint tag = (TagEndpoint) msg.obj;
+                    TagDispatchStats.Session session =
+                            mTagDispatchStats.startSession(msg.getWhen());
                     byte[] debounceTagUid;
                     int debounceTagMs;
                     ITagRemovedCallback debounceTagRemovedCallback;
@@ -1853,7 +1999,7 @@ public class NfcService implements DeviceHostListener {
                         if ((readerParams.flags & NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK) != 0) {
                             if (DBG) Log.d(TAG, "Skipping NDEF detection in reader mode");
                             tag.startPresenceChecking(presenceCheckDelay, callback);
-                            dispatchTagEndpoint(tag, readerParams);
+                            dispatchTagEndpoint(tag, readerParams, session);
                             break;
                         }
                     }
@@ -1865,19 +2011,24 @@ public class NfcService implements DeviceHostListener {
                         // For now, don't consider NDEF on these.
                         if (DBG) Log.d(TAG, "Skipping NDEF detection for NFC Barcode");
                         tag.startPresenceChecking(presenceCheckDelay, callback);
-                        dispatchTagEndpoint(tag, readerParams);
+                        dispatchTagEndpoint(tag, readerParams, session);
                         break;
                     }
+                    long phaseStartNanos = SystemClock.elapsedRealtimeNanos();
                     NdefMessage ndefMsg = tag.findAndReadNdef();
+                    session.endPhase(TagDispatchStats.PHASE_READ_NDEF, phaseStartNanos);
 
                     if (ndefMsg == null) {
                         // First try to see if this was a bad tag read
                         if (!tag.reconnect()) {
                             tag.disconnect();
+                            mTagDispatchStats.finishSession(session,
+                                    TagDispatchStats.RESULT_NOT_DISPATCHED);
                             break;
                         }
                     }
 
+                    phaseStartNanos = SystemClock.elapsedRealtimeNanos();
                     if (debounceTagUid != null) {
                         // If we're debouncing and the UID or the NDEF message of the tag match,
                         // don't dispatch but drop it.
@@ -1886,6 +2037,9 @@ public class NfcService implements DeviceHostListener {
                             mHandler.removeMessages(MSG_TAG_DEBOUNCE);
                             mHandler.sendEmptyMessageDelayed(MSG_TAG_DEBOUNCE, debounceTagMs);
                             tag.disconnect();
+                            session.endPhase(TagDispatchStats.PHASE_DEBOUNCE, phaseStartNanos);
+                            mTagDispatchStats.finishSession(session,
+                                    TagDispatchStats.RESULT_NOT_DISPATCHED);
                             return;
                         } else {
                             synchronized (NfcService.this) {
@@ -1902,10 +2056,12 @@ public class NfcService implements DeviceHostListener {
                         }
                     }
 
+                    session.endPhase(TagDispatchStats.PHASE_DEBOUNCE, phaseStartNanos);
+
                     mLastReadNdefMessage = ndefMsg;
 
                     tag.startPresenceChecking(presenceCheckDelay, callback);
-                    dispatchTagEndpoint(tag, readerParams);
+                    dispatchTagEndpoint(tag, readerParams, session);
                     break;
                 case MSG_LLCP_LINK_ACTIVATION:
                     if (mIsDebugBuild) {
@@ -1924,16 +2080,14 @@ public class NfcService implements DeviceHostListener {
                     boolean needsDisconnect = false;
 
                     Log.d(TAG, "LLCP Link Deactivated message. Restart polling loop.");
-                    synchronized (NfcService.this) {
-                        /* Check if the device has been already unregistered */
-                        if (mObjectMap.remove(device.getHandle()) != null) {
-                            /* Disconnect if we are initiator */
-                            if (device.getMode() == NfcDepEndpoint.MODE_P2P_TARGET) {
-                                if (DBG) Log.d(TAG, "disconnecting from target");
-                                needsDisconnect = true;
-                            } else {
-                                if (DBG) Log.d(TAG, "not disconnecting from initiator");
-                            }
+                    /* Check if the device has been already unregistered */
+                    if (findAndRemoveP2pObject(device.getHandle()) != null) {
+                        /* Disconnect if we are initiator */
+                        if (device.getMode() == NfcDepEndpoint.MODE_P2P_TARGET) {
+                            if (DBG) Log.d(TAG, "disconnecting from target");
+                            needsDisconnect = true;
+                        } else {
+                            if (DBG) Log.d(TAG, "not disconnecting from initiator");
                         }
                     }
                     if (needsDisconnect) {
@@ -1946,12 +2100,14 @@ public class NfcService implements DeviceHostListener {
                     mP2pLinkManager.onLlcpFirstPacketReceived();
                     break;
                 case MSG_RF_FIELD_ACTIVATED:
-                    Intent fieldOnIntent = new Intent(ACTION_RF_FIELD_ON_DETECTED);
-                    sendNfcEeAccessProtectedBroadcast(fieldOnIntent);
+                    onRfFieldChanged(true);
                     break;
                 case MSG_RF_FIELD_DEACTIVATED:
-                    Intent fieldOffIntent = new Intent(ACTION_RF_FIELD_OFF_DETECTED);
-                    sendNfcEeAccessProtectedBroadcast(fieldOffIntent);
+                    onRfFieldChanged(false);
+                    break;
+                case MSG_RF_FIELD_FLUSH:
+                    mRfFieldFlushScheduled = false;
+                    flushRfFieldState();
                     break;
                 case MSG_RESUME_POLLING:
                     mNfcAdapter.resumePolling();
@@ -1994,39 +2150,90 @@ public class NfcService implements DeviceHostListener {
             }
         }
 
+        /**
+         * Broadcasts RF field changes at most once per
+         * RF_FIELD_BROADCAST_INTERVAL_MS. Changes within the interval are
+         * coalesced into the last state, so readers toggling the field do not
+         * cause a broadcast storm; a burst that ends in the state that was
+         * last broadcast sends the opposite state and back, so receivers
+         * still see that the field changed.
+         */
+        private void onRfFieldChanged(boolean fieldOn) {
+            mRfFieldEvents++;
+            mRfFieldOn = fieldOn;
+            if (mRfFieldBroadcastState != null && mRfFieldBroadcastState != fieldOn) {
+                mRfFieldLeftBroadcastState = true;
+            }
+            if (mRfFieldFlushScheduled) {
+                return;
+            }
+            long sinceLast = SystemClock.elapsedRealtime() - mLastRfFieldBroadcastMs;
+            if (sinceLast >= RF_FIELD_BROADCAST_INTERVAL_MS) {
+                flushRfFieldState();
+            } else {
+                mRfFieldFlushScheduled = true;
+                sendEmptyMessageDelayed(MSG_RF_FIELD_FLUSH,
+                        RF_FIELD_BROADCAST_INTERVAL_MS - sinceLast);
+            }
+        }
+
+        private void flushRfFieldState() {
+            if (mRfFieldBroadcastState != null && mRfFieldBroadcastState == mRfFieldOn) {
+                if (!mRfFieldLeftBroadcastState) {
+                    return;
+                }
+                // The field changed and came back within the interval
+                sendRfFieldBroadcast(!mRfFieldOn);
+            }
+            sendRfFieldBroadcast(mRfFieldOn);
+            mRfFieldBroadcastState = mRfFieldOn;
+            mRfFieldLeftBroadcastState = false;
+            mLastRfFieldBroadcastMs = SystemClock.elapsedRealtime();
+        }
+
+        private void sendRfFieldBroadcast(boolean fieldOn) {
+            mRfFieldBroadcasts++;
+            sendNfcEeAccessProtectedBroadcast(new Intent(fieldOn ?
+                    ACTION_RF_FIELD_ON_DETECTED : ACTION_RF_FIELD_OFF_DETECTED));
+        }
+
         private void sendNfcEeAccessProtectedBroadcast(Intent intent) {
+            List<String> recipients;
+            synchronized (NfcService.this) {
+                recipients = mNfceeAccessPackages;
+            }
+            if (recipients == null) {
+                // Still booting, compute them now
+                updateNfceeAccessPackages(mNfceeAccessControl);
+                synchronized (NfcService.this) {
+                    recipients = mNfceeAccessPackages;
+                }
+                if (recipients == null) {
+                    return;
+                }
+            }
+            if (recipients.isEmpty()) {
+                return;
+            }
             intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
             // Resume app switches so the receivers can start activites without delay
             mNfcDispatcher.resumeAppSwitches();
-            ArrayList<String> matchingPackages = new ArrayList<String>();
             ArrayList<String> preferredPackages = new ArrayList<String>();
-            synchronized (this) {
-                for (PackageInfo pkg : mInstalledPackages) {
-                    if (pkg != null && pkg.applicationInfo != null) {
-                        if (mNfceeAccessControl.check(pkg.applicationInfo)) {
-                            matchingPackages.add(pkg.packageName);
-                            if (mCardEmulationManager != null &&
-                                    mCardEmulationManager.packageHasPreferredService(pkg.packageName)) {
-                                preferredPackages.add(pkg.packageName);
-                            }
-                        }
-                    }
-                }
-                if (preferredPackages.size() > 0) {
-                    // If there's any packages in here which are preferred, only
-                    // send field events to those packages, to prevent other apps
-                    // with signatures in nfcee_access.xml from acting upon the events.
-                    for (String packageName : preferredPackages){
-                        intent.setPackage(packageName);
-                        mContext.sendBroadcast(intent);
-                    }
-                } else {
-                    for (String packageName : matchingPackages){
-                        intent.setPackage(packageName);
-                        mContext.sendBroadcast(intent);
+            if (mCardEmulationManager != null) {
+                for (String packageName : recipients) {
+                    if (mCardEmulationManager.packageHasPreferredService(packageName)) {
+                        preferredPackages.add(packageName);
                     }
                 }
             }
+            // If there's any packages in here which are preferred, only
+            // send field events to those packages, to prevent other apps
+            // with signatures in nfcee_access.xml from acting upon the events.
+            for (String packageName : preferredPackages.size() > 0 ?
+                    preferredPackages : recipients) {
+                intent.setPackage(packageName);
+                mContext.sendBroadcast(intent);
+            }
         }
 
         private boolean llcpActivated(NfcDepEndpoint device) {
@@ -2040,10 +2247,8 @@ public class NfcService implements DeviceHostListener {
                         /* Activate LLCP Link */
                         if (mDeviceHost.doActivateLlcp()) {
                             if (DBG) Log.d(TAG, "Initiator Activate LLCP OK");
-                            synchronized (NfcService.this) {
-                                // Register P2P device
-                                mObjectMap.put(device.getHandle(), device);
-                            }
+                            // Register P2P device
+                            registerP2pObject(device);
                             mP2pLinkManager.onLlcpActivated(device.getLlcpVersion());
                             return true;
                         } else {
@@ -2069,10 +2274,8 @@ public class NfcService implements DeviceHostListener {
                     /* Activate LLCP Link */
                     if (mDeviceHost.doActivateLlcp()) {
                         if (DBG) Log.d(TAG, "Target Activate LLCP OK");
-                        synchronized (NfcService.this) {
-                            // Register P2P device
-                            mObjectMap.put(device.getHandle(), device);
-                        }
+                        // Register P2P device
+                        registerP2pObject(device);
                         mP2pLinkManager.onLlcpActivated(device.getLlcpVersion());
                         return true;
                     }
@@ -2084,7 +2287,14 @@ public class NfcService implements DeviceHostListener {
             return false;
         }
 
-        private void dispatchTagEndpoint(TagEndpoint tagEndpoint, ReaderModeParams readerParams) {
+        private void dispatchTagEndpoint(TagEndpoint tagEndpoint, ReaderModeParams readerParams,
+                TagDispatchStats.Session session) {
+            int dispatchResult = dispatchTagEndpointInternal(tagEndpoint, readerParams, session);
+            mTagDispatchStats.finishSession(session, dispatchResult);
+        }
+
+        private int dispatchTagEndpointInternal(TagEndpoint tagEndpoint,
+                ReaderModeParams readerParams, TagDispatchStats.Session session) {
             Tag tag = new Tag(tagEndpoint.getUid(), tagEndpoint.getTechList(),
                     tagEndpoint.getTechExtras(), tagEndpoint.getHandle(), mNfcTagService);
             registerTagObject(tagEndpoint);
@@ -2094,8 +2304,9 @@ public class NfcService implements DeviceHostListener {
                         playSound(SOUND_END);
                     }
                     if (readerParams.callback != null) {
+                        session.setBranch(TagDispatchStats.BRANCH_READER_MODE);
                         readerParams.callback.onTagDiscovered(tag);
-                        return;
+                        return NfcDispatcher.DISPATCH_SUCCESS;
                     } else {
                         // Follow normal dispatch below
                     }
@@ -2105,16 +2316,17 @@ public class NfcService implements DeviceHostListener {
                 } catch (Exception e) {
                     // Catch any other exception
                     Log.e(TAG, "App exception, not dispatching.", e);
-                    return;
+                    return TagDispatchStats.RESULT_NOT_DISPATCHED;
                 }
             }
-            int dispatchResult = mNfcDispatcher.dispatchTag(tag);
+            int dispatchResult = mNfcDispatcher.dispatchTag(tag, session);
             if (dispatchResult == NfcDispatcher.DISPATCH_FAIL) {
-                unregisterObject(tagEndpoint.getHandle());
+                unregisterTagObject(tagEndpoint.getHandle());
                 playSound(SOUND_ERROR);
             } else if (dispatchResult == NfcDispatcher.DISPATCH_SUCCESS) {
                 playSound(SOUND_END);
             }
+            return dispatchResult;
         }
     }
 
@@ -2186,10 +2398,15 @@ public class NfcService implements DeviceHostListener {
                     action.equals(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE)) {
                 updatePackageCache();
 
-                if (action.equals(Intent.ACTION_PACKAGE_REMOVED)) {
-                    // Clear the NFCEE access cache in case a UID gets recycled
+                // Drop the cached NFCEE access of the package's UID in case it
+                // gets recycled or reinstalled; sdcard events affect many UIDs.
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    mNfceeAccessControl.invalidateCache(uid);
+                } else if (!action.equals(Intent.ACTION_PACKAGE_ADDED)) {
                     mNfceeAccessControl.invalidateCache();
                 }
+                updateNfceeAccessPackages(mNfceeAccessControl);
             }
         }
     };
@@ -2233,6 +2450,12 @@ public class NfcService implements DeviceHostListener {
             return;
         }
 
+        if (args != null && args.length > 0
+                && TagDispatchStats.DUMP_ARG_TRACE.equals(args[0])) {
+            mTagDispatchStats.dumpTrace(pw);
+            return;
+        }
+
         synchronized (this) {
             pw.println("mState=" + stateToString(mState));
             pw.println("mIsZeroClickRequested=" + mIsNdefPushEnabled);
@@ -2243,6 +2466,10 @@ public class NfcService implements DeviceHostListener {
                 mCardEmulationManager.dump(fd, pw, args);
             }
             mNfcDispatcher.dump(fd, pw, args);
+            mTagDispatchStats.dump(pw);
+            mStartupTasks.dump(pw);
+            pw.println("RF field events=" + mHandler.mRfFieldEvents + " broadcasts=" +
+                    mHandler.mRfFieldBroadcasts + " recipients=" + mNfceeAccessPackages);
             pw.println(mDeviceHost.dump());
         }
     }
@@ -20,9 +20,6 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.net.wifi.WifiConfiguration;
-import android.nfc.NdefMessage;
-import android.nfc.NdefRecord;
-import android.nfc.tech.Ndef;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
@@ -31,6 +28,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
 
 public final class NfcWifiProtectedSetup {
 
@@ -59,25 +57,27 @@ public final class NfcWifiProtectedSetup {
 
     private NfcWifiProtectedSetup() {}
 
-    public static boolean tryNfcWifiSetup(Ndef ndef, Context context) {
-
-        if (ndef == null || context == null) {
-            return false;
-        }
-
-        NdefMessage cachedNdefMessage = ndef.getCachedNdefMessage();
-        if (cachedNdefMessage == null) {
+    /**
+     * Starts configuring the Wi-Fi network of the first valid WPS token,
+     * given the payloads of the token records of a classified message.
+     */
+    public static boolean tryNfcWifiSetup(List<ByteBuffer> tokenPayloads, Context context) {
+        if (tokenPayloads.isEmpty() || context == null) {
             return false;
         }
 
         final WifiConfiguration wifiConfiguration;
         try {
-            wifiConfiguration = parse(cachedNdefMessage);
+            wifiConfiguration = parse(tokenPayloads);
         } catch (BufferUnderflowException e) {
             // malformed payload
             return false;
         }
+        return tryNfcWifiSetup(wifiConfiguration, context);
+    }
 
+    private static boolean tryNfcWifiSetup(WifiConfiguration wifiConfiguration,
+            Context context) {
         if (wifiConfiguration != null &&!UserManager.get(context).hasUserRestriction(
                 UserManager.DISALLOW_CONFIG_WIFI,
                 // hasUserRestriction does not support UserHandle.CURRENT.
@@ -94,19 +94,23 @@ public final class NfcWifiProtectedSetup {
         return false;
     }
 
-    private static WifiConfiguration parse(NdefMessage message) {
-        NdefRecord[] records = message.getRecords();
-
-        for (NdefRecord record : records) {
-            if (new String(record.getType()).equals(NFC_TOKEN_MIME_TYPE)) {
-                ByteBuffer payload = ByteBuffer.wrap(record.getPayload());
-                while (payload.hasRemaining()) {
-                    short fieldId = payload.getShort();
-                    short fieldSize = payload.getShort();
-                    if (fieldId == CREDENTIAL_FIELD_ID) {
-                        return parseCredential(payload, fieldSize);
-                    }
-                }
+    private static WifiConfiguration parse(List<ByteBuffer> tokenPayloads) {
+        for (ByteBuffer tokenPayload : tokenPayloads) {
+            // Leave the position of the caller's buffer alone
+            WifiConfiguration result = parseToken(tokenPayload.duplicate());
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static WifiConfiguration parseToken(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            short fieldId = payload.getShort();
+            short fieldSize = payload.getShort();
+            if (fieldId == CREDENTIAL_FIELD_ID) {
+                return parseCredential(payload, fieldSize);
             }
         }
         return null;
@@ -23,7 +23,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -44,6 +51,8 @@ public class NfceeAccessControl {
 
     public static final String NFCEE_ACCESS_PATH = "/etc/nfcee_access.xml";
 
+    static final int MAX_CACHED_UIDS = 256;
+
     /**
      * Map of signatures to valid packages names, as read from nfcee_access.xml.
      * An empty list of package names indicates that any package
@@ -51,13 +60,27 @@ public class NfceeAccessControl {
      */
     final HashMap<Signature, String[]> mNfceeAccess;  // contents final after onCreate()
 
+    /**
+     * mNfceeAccess as a lookup table: the set of allowed package names per
+     * signature, or null for wildcard access. The hash codes of the
+     * signatures are computed once when the table is built, so checking a
+     * package signature is a hash lookup followed by a set lookup.
+     */
+    final HashMap<Signature, HashSet<String>> mAccessTable;  // final after constructor
+
     /**
      * Map from UID to NFCEE access, used as a cache.
      * Note: if a UID contains multiple packages they must all be
      * signed with the same certificate so in effect UID == certificate
      * used to sign the package.
+     * Each UID is only computed once even with concurrent callers; other
+     * UIDs are not blocked while PackageManager is queried, as the lock is
+     * only held to look up or insert the task.
+     * Holds at most MAX_CACHED_UIDS entries; the least recently checked
+     * UID is evicted first.
+     * Synchronized on itself.
      */
-    final HashMap<Integer, Boolean> mUidCache;  // contents guarded by this
+    final LinkedHashMap<Integer, FutureTask<Boolean>> mUidCache;
 
     final Context mContext;
     final boolean mDebugPrintSignature;
@@ -65,8 +88,18 @@ public class NfceeAccessControl {
     NfceeAccessControl(Context context) {
         mContext = context;
         mNfceeAccess = new HashMap<Signature, String[]>();
-        mUidCache = new HashMap<Integer, Boolean>();
+        mUidCache = new LinkedHashMap<Integer, FutureTask<Boolean>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FutureTask<Boolean>> eldest) {
+                return size() > MAX_CACHED_UIDS;
+            }
+        };
         mDebugPrintSignature = parseNfceeAccess();
+        mAccessTable = new HashMap<Signature, HashSet<String>>();
+        for (Map.Entry<Signature, String[]> entry : mNfceeAccess.entrySet()) {
+            mAccessTable.put(entry.getKey(), entry.getValue().length == 0 ? null :
+                    new HashSet<String>(Arrays.asList(entry.getValue())));
+        }
     }
 
     /**
@@ -74,31 +107,28 @@ public class NfceeAccessControl {
      * Also verify with package manager that this {uid, pkg} combination
      * is valid if it is not cached.
      */
-    public boolean check(int uid, String pkg) {
-        synchronized (this) {
-            Boolean cached = mUidCache.get(uid);
-            if (cached != null) {
-                return cached;
-            }
-
-            boolean access = false;
-
-            // Ensure the claimed package is present in the calling UID
-            PackageManager pm = mContext.getPackageManager();
-            String[] pkgs = pm.getPackagesForUid(uid);
-            for (String uidPkg : pkgs) {
-                if (uidPkg.equals(pkg)) {
-                    // Ensure the package has access permissions
-                    if (checkPackageNfceeAccess(pkg)) {
-                        access = true;
+    public boolean check(final int uid, final String pkg) {
+        if (mAccessTable.isEmpty() && !mDebugPrintSignature) {
+            return false;
+        }
+        return getOrCompute(uid, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                // Ensure the claimed package is present in the calling UID
+                PackageManager pm = mContext.getPackageManager();
+                String[] pkgs = pm.getPackagesForUid(uid);
+                if (pkgs == null) {
+                    return false;
+                }
+                for (String uidPkg : pkgs) {
+                    if (uidPkg.equals(pkg)) {
+                        // Ensure the package has access permissions
+                        return checkPackageNfceeAccess(pkg);
                     }
-                    break;
                 }
+                return false;
             }
-
-            mUidCache.put(uid, access);
-            return access;
-        }
+        });
     }
 
     /**
@@ -106,23 +136,65 @@ public class NfceeAccessControl {
      * Assumes ApplicationInfo came from package manager,
      * so no need to confirm {uid, pkg} is valid.
      */
-    public boolean check(ApplicationInfo info) {
-        synchronized (this) {
-            Boolean access = mUidCache.get(info.uid);
-            if (access == null) {
-                access = checkPackageNfceeAccess(info.packageName);
-                mUidCache.put(info.uid, access);
+    public boolean check(final ApplicationInfo info) {
+        if (mAccessTable.isEmpty() && !mDebugPrintSignature) {
+            return false;
+        }
+        return getOrCompute(info.uid, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return checkPackageNfceeAccess(info.packageName);
+            }
+        });
+    }
+
+    boolean getOrCompute(int uid, Callable<Boolean> compute) {
+        FutureTask<Boolean> task;
+        boolean run = false;
+        synchronized (mUidCache) {
+            task = mUidCache.get(uid);
+            if (task == null) {
+                // Inserting may evict the least recently checked UID
+                task = new FutureTask<Boolean>(compute);
+                mUidCache.put(uid, task);
+                run = true;
             }
-            return access;
+        }
+        if (run) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to check NFCEE access for uid " + uid, e.getCause());
+            synchronized (mUidCache) {
+                if (mUidCache.get(uid) == task) {
+                    mUidCache.remove(uid);
+                }
+            }
+            return false;
         }
     }
 
     public void invalidateCache() {
-        synchronized (this) {
+        synchronized (mUidCache) {
             mUidCache.clear();
         }
     }
 
+    /**
+     * Drops the cached result of a single UID, e.g. when one of its
+     * packages was installed or removed.
+     */
+    public void invalidateCache(int uid) {
+        synchronized (mUidCache) {
+            mUidCache.remove(uid);
+        }
+    }
+
     /**
      * Check with package manager if the pkg may use NFCEE.
      * Does not use cache.
@@ -139,21 +211,19 @@ public class NfceeAccessControl {
                 if (s == null) {
                     continue;
                 }
-                String[] packages = mNfceeAccess.get(s);
-                if (packages == null) {
+                if (!mAccessTable.containsKey(s)) {
                     continue;
                 }
-                if (packages.length == 0) {
+                HashSet<String> packages = mAccessTable.get(s);
+                if (packages == null) {
                     // wildcard access
                     if (DBG) Log.d(TAG, "Granted NFCEE access to " + pkg + " (wildcard)");
                     return true;
                 }
-                for (String p : packages) {
-                    if (pkg.equals(p)) {
-                        // explicit package access
-                        if (DBG) Log.d(TAG, "Granted access to " + pkg + " (explicit)");
-                        return true;
-                    }
+                if (packages.contains(pkg)) {
+                    // explicit package access
+                    if (DBG) Log.d(TAG, "Granted access to " + pkg + " (explicit)");
+                    return true;
                 }
             }
 
@@ -278,12 +348,21 @@ public class NfceeAccessControl {
             }
             pw.println("]");
         }
-        synchronized (this) {
-            pw.println("mNfceeUidCache=");
-            for (Integer uid : mUidCache.keySet()) {
-                Boolean b = mUidCache.get(uid);
-                pw.printf("\t%d %s\n", uid, b);
+        pw.println("mNfceeUidCache=");
+        ArrayList<Map.Entry<Integer, FutureTask<Boolean>>> entries;
+        synchronized (mUidCache) {
+            entries = new ArrayList<Map.Entry<Integer, FutureTask<Boolean>>>(
+                    mUidCache.entrySet());
+        }
+        for (Map.Entry<Integer, FutureTask<Boolean>> entry : entries) {
+            FutureTask<Boolean> task = entry.getValue();
+            String b;
+            try {
+                b = task.isDone() ? String.valueOf(task.get()) : "pending";
+            } catch (Exception e) {
+                b = "failed";
             }
+            pw.printf("\t%d %s\n", entry.getKey(), b);
         }
     }
 }
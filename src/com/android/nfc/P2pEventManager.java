@@ -23,6 +23,8 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.os.Vibrator;
 
+import java.io.PrintWriter;
+
 /**
  * Manages vibration, sound and animation for P2P events.
  */
@@ -207,4 +209,10 @@ public class P2pEventManager implements P2pEventListener, SendUi.Callback {
         mInDebounce = false;
     }
 
+    @Override
+    public void dump(PrintWriter pw) {
+        if (mSendUi != null) {
+            mSendUi.dump(pw);
+        }
+    }
 }
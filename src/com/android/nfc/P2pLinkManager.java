@@ -129,6 +129,11 @@ interface P2pEventListener {
      */
     public void onP2pOutOfRange();
 
+    /**
+     * Dumps the state of the UI, for dumpsys.
+     */
+    public void dump(PrintWriter pw);
+
     public interface Callback {
         public void onP2pSendConfirmed();
         public void onP2pCanceled();
@@ -746,12 +751,13 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             NdefMessage response = null;
             BeamManager beamManager = BeamManager.getInstance();
 
-            if (beamManager.isBeamInProgress()) {
+            if (!beamManager.canAcceptBeam(false)) {
                 return HANDOVER_BUSY;
             }
 
             NdefMessage request = mHandoverDataParser.createHandoverRequestMessage();
             if (request != null) {
+                long start = SystemClock.elapsedRealtime();
                 if (handoverClient != null) {
                     response = handoverClient.sendHandoverRequest(request);
                 }
@@ -765,6 +771,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 if (response == null) {
                     return HANDOVER_UNSUPPORTED;
                 }
+                beamManager.recordHandoverNegotiation(SystemClock.elapsedRealtime() - start);
             } else {
                 return HANDOVER_UNSUPPORTED;
             }
@@ -1120,5 +1127,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             pw.println("mMessageToSend=" + mMessageToSend);
             pw.println("mUrisToSend=" + mUrisToSend);
         }
+        mEventListener.dump(pw);
+        BeamManager.getInstance().dump(pw);
     }
 }
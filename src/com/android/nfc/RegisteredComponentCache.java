@@ -35,6 +35,8 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -52,6 +54,7 @@ public class RegisteredComponentCache {
 
     // synchronized on this
     private ArrayList<ComponentInfo> mComponents;
+    private TechFilterIndex mTechFilterIndex;
 
     public RegisteredComponentCache(Context context, String action, String metaDataName) {
         mContext = context;
@@ -106,6 +109,106 @@ public class RegisteredComponentCache {
         }
     }
 
+    /**
+     * Registered tech-lists compiled to bitmasks, grouped per component.
+     * <p>Each distinct tech string seen in the registered tech-lists gets a bit,
+     * so that checking whether a tech-list is a subset of the techs on a tag is
+     * a single mask operation. A component matches if any of its tech-lists
+     * does. Components are kept in registration order, so matches come out in
+     * the same order as a linear scan of {@link #getComponents()} would produce,
+     * without duplicates.
+     */
+    public static class TechFilterIndex {
+        // Techs beyond this are matched by string, see ComponentFilters.overflowTechs
+        static final int MAX_INDEXED_TECHS = 64;
+
+        final HashMap<String, Integer> mTechBits = new HashMap<String, Integer>();
+        final ArrayList<ComponentFilters> mFilters = new ArrayList<ComponentFilters>();
+
+        static final class ComponentFilters {
+            final ResolveInfo resolveInfo;
+            final ArrayList<Long> masks = new ArrayList<Long>();
+            // Parallel to masks; null unless the tech-list has unindexed techs
+            final ArrayList<String[]> overflowTechs = new ArrayList<String[]>();
+            long[] maskArray;
+
+            ComponentFilters(ResolveInfo resolveInfo) {
+                this.resolveInfo = resolveInfo;
+            }
+        }
+
+        TechFilterIndex(ArrayList<ComponentInfo> components) {
+            ComponentFilters current = null;
+            for (ComponentInfo info : components) {
+                if (current == null || current.resolveInfo != info.resolveInfo) {
+                    current = new ComponentFilters(info.resolveInfo);
+                    mFilters.add(current);
+                }
+                long mask = 0;
+                ArrayList<String> overflow = null;
+                for (String tech : info.techs) {
+                    Integer bit = mTechBits.get(tech);
+                    if (bit == null && mTechBits.size() < MAX_INDEXED_TECHS) {
+                        bit = mTechBits.size();
+                        mTechBits.put(tech, bit);
+                    }
+                    if (bit != null) {
+                        mask |= 1L << bit;
+                    } else {
+                        if (overflow == null) overflow = new ArrayList<String>();
+                        overflow.add(tech);
+                    }
+                }
+                current.masks.add(mask);
+                current.overflowTechs.add(overflow == null ? null :
+                        overflow.toArray(new String[overflow.size()]));
+            }
+            for (ComponentFilters filters : mFilters) {
+                filters.maskArray = new long[filters.masks.size()];
+                for (int i = 0; i < filters.maskArray.length; i++) {
+                    filters.maskArray[i] = filters.masks.get(i);
+                }
+            }
+        }
+
+        /**
+         * @param sortedTagTechs the tech list of the tag, sorted
+         * @return the components with at least one tech-list fully contained
+         * in the tag techs, in registration order
+         */
+        public ArrayList<ResolveInfo> match(String[] sortedTagTechs) {
+            long tagMask = 0;
+            for (String tech : sortedTagTechs) {
+                Integer bit = mTechBits.get(tech);
+                if (bit != null) {
+                    tagMask |= 1L << bit;
+                }
+            }
+            ArrayList<ResolveInfo> matches = new ArrayList<ResolveInfo>();
+            for (ComponentFilters filters : mFilters) {
+                long[] masks = filters.maskArray;
+                for (int i = 0; i < masks.length; i++) {
+                    if ((masks[i] & ~tagMask) == 0 &&
+                            overflowMatch(sortedTagTechs, filters.overflowTechs.get(i))) {
+                        matches.add(filters.resolveInfo);
+                        break;
+                    }
+                }
+            }
+            return matches;
+        }
+
+        static boolean overflowMatch(String[] sortedTagTechs, String[] techs) {
+            if (techs == null) return true;
+            for (String tech : techs) {
+                if (Arrays.binarySearch(sortedTagTechs, tech) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     /**
      * @return a collection of {@link RegisteredComponentCache.ComponentInfo} objects for all
      * registered authenticators.
@@ -118,6 +221,17 @@ public class RegisteredComponentCache {
         }
     }
 
+    /**
+     * @return the index of registered tech-lists, rebuilt together with
+     * {@link #getComponents()}.
+     */
+    public TechFilterIndex getTechFilterIndex() {
+        synchronized (this) {
+            // Like mComponents, the index is replaced and never updated in place.
+            return mTechFilterIndex;
+        }
+    }
+
     /**
      * Stops the monitoring of package additions, removals and changes.
      */
@@ -170,8 +284,10 @@ public class RegisteredComponentCache {
             dump(components);
         }
 
+        TechFilterIndex techFilterIndex = new TechFilterIndex(components);
         synchronized (this) {
             mComponents = components;
+            mTechFilterIndex = techFilterIndex;
         }
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the independent steps of bringing up the NFC service concurrently and
+ * records how long every step took.
+ * <p>Each background step runs on its own thread, after the steps it depends
+ * on have completed. Steps that have to run on the main thread, such as
+ * those creating Handlers, are timed with {@link #record} instead. Consumers
+ * call {@link #await} right before they first need a result, so the
+ * dependencies between components are explicit at their use site.
+ */
+class StartupTasks {
+    static final String TAG = "NfcStartupTasks";
+    static final boolean DBG = false;
+
+    final long mStartMs;
+
+    // All variables below synchronized on this
+    final HashMap<String, FutureTask<?>> mTasks = new HashMap<String, FutureTask<?>>();
+    // name -> {start offset, duration}, in ms, in order of completion
+    final LinkedHashMap<String, long[]> mTimings = new LinkedHashMap<String, long[]>();
+
+    StartupTasks() {
+        mStartMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Starts a step on a background thread once all steps named in
+     * dependencies have completed.
+     */
+    synchronized <T> Future<T> submit(final String name, final Callable<T> callable,
+            final String... dependencies) {
+        final FutureTask<?>[] waitFor = new FutureTask<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            waitFor[i] = mTasks.get(dependencies[i]);
+            if (waitFor[i] == null) {
+                throw new IllegalArgumentException("Unknown startup step " + dependencies[i]);
+            }
+        }
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                for (FutureTask<?> dependency : waitFor) {
+                    dependency.get();
+                }
+                long start = SystemClock.elapsedRealtime();
+                T result = callable.call();
+                record(name, start);
+                return result;
+            }
+        });
+        mTasks.put(name, task);
+        new Thread(task, "NfcStartup-" + name).start();
+        return task;
+    }
+
+    /**
+     * Returns the result of a step, waiting for it if needed. Failures of
+     * the step are rethrown, just as if it had run on the calling thread.
+     */
+    <T> T await(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records a step that ran from startMs until now, and returns the current
+     * time so that consecutive steps can be chained.
+     */
+    long record(String name, long startMs) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mTimings.put(name, new long[] { startMs - mStartMs, now - startMs });
+        }
+        if (DBG) Log.d(TAG, name + " took " + (now - startMs) + "ms");
+        return now;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Startup timings (start offset + duration):");
+        for (Map.Entry<String, long[]> entry : mTimings.entrySet()) {
+            pw.println("  " + entry.getKey() + ": +" + entry.getValue()[0] + "ms " +
+                    entry.getValue()[1] + "ms");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.util.Base64;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Phase timing of the tap-to-dispatch path.
+ * <p>Each tag gets a {@link Session} that records how long the individual
+ * phases took and which dispatch branch was taken. When the session is
+ * finished the timings are folded into per-phase histograms, and optionally
+ * appended to a fixed-size binary ring buffer that can be pulled with
+ * "dumpsys nfc tagtrace" for offline analysis.
+ */
+class TagDispatchStats {
+    static final int PHASE_RF_DISCOVERY = 0;
+    static final int PHASE_READ_NDEF = 1;
+    static final int PHASE_DEBOUNCE = 2;
+    static final int PHASE_DISPATCH = 3;
+    static final int PHASE_ACTIVITY_START = 4;
+    static final int PHASE_TOTAL = 5;
+    static final int PHASE_COUNT = 6;
+
+    static final int BRANCH_NONE = 0;
+    static final int BRANCH_OVERRIDE = 1;
+    static final int BRANCH_HANDOVER = 2;
+    static final int BRANCH_WPS = 3;
+    static final int BRANCH_NDEF = 4;
+    static final int BRANCH_TECH = 5;
+    static final int BRANCH_TAG = 6;
+    static final int BRANCH_READER_MODE = 7;
+    static final int BRANCH_COUNT = 8;
+
+    // Result recorded for tags that were dropped before dispatch, e.g. by
+    // debouncing or a failed read; otherwise one of NfcDispatcher.DISPATCH_*
+    static final int RESULT_NOT_DISPATCHED = 0;
+
+    static final String DUMP_ARG_TRACE = "tagtrace";
+
+    // Trace format: header followed by TRACE_CAPACITY records, oldest first.
+    // Record: int64 elapsedRealtime ms, int8 branch, int8 result, int16 pad,
+    //         PHASE_COUNT x int32 microseconds (-1 if the phase was skipped)
+    static final int TRACE_MAGIC = 0x4e544454; // "NTDT"
+    static final int TRACE_VERSION = 1;
+    static final int TRACE_RECORD_SIZE = 8 + 4 + PHASE_COUNT * 4;
+    static final int TRACE_CAPACITY = 256;
+
+    static final String[] PHASE_NAMES = new String[] {
+            "rf_discovery", "read_ndef", "debounce", "dispatch", "activity_start", "total"
+    };
+    static final String[] BRANCH_NAMES = new String[] {
+            "none", "override", "handover", "wps", "ndef", "tech", "tag", "reader_mode"
+    };
+
+    final Histogram[] mPhaseHistograms = new Histogram[PHASE_COUNT];
+    final Histogram[] mBranchHistograms = new Histogram[BRANCH_COUNT];
+    final boolean mTraceEnabled;
+
+    // Fields below are protected by this
+    final ByteBuffer mTrace;
+    int mTraceCount;
+
+    TagDispatchStats(boolean traceEnabled) {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseHistograms[i] = new Histogram(PHASE_NAMES[i], "ms",
+                    Histogram.LATENCY_MS_BOUNDS);
+        }
+        for (int i = 0; i < BRANCH_COUNT; i++) {
+            mBranchHistograms[i] = new Histogram("dispatch_" + BRANCH_NAMES[i], "ms",
+                    Histogram.LATENCY_MS_BOUNDS);
+        }
+        mTraceEnabled = traceEnabled;
+        mTrace = traceEnabled ? ByteBuffer.allocate(TRACE_RECORD_SIZE * TRACE_CAPACITY) : null;
+    }
+
+    /**
+     * Starts timing a new tag.
+     *
+     * @param discoveredUptimeMs uptime at which the controller reported the tag,
+     *        or 0 if the RF discovery phase is unknown (e.g. mock or API dispatch)
+     */
+    Session startSession(long discoveredUptimeMs) {
+        return new Session(discoveredUptimeMs);
+    }
+
+    void finishSession(Session session, int result) {
+        session.mPhaseMicros[PHASE_TOTAL] =
+                (SystemClock.elapsedRealtimeNanos() - session.mStartNanos) / 1000;
+        if (session.mDiscoveredUptimeMs != 0) {
+            session.mPhaseMicros[PHASE_TOTAL] += session.mPhaseMicros[PHASE_RF_DISCOVERY];
+        }
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (session.mPhaseMicros[i] >= 0) {
+                mPhaseHistograms[i].add(session.mPhaseMicros[i] / 1000);
+            }
+        }
+        if (session.mPhaseMicros[PHASE_DISPATCH] >= 0) {
+            mBranchHistograms[session.mBranch].add(session.mPhaseMicros[PHASE_DISPATCH] / 1000);
+        }
+        if (mTraceEnabled) {
+            appendTrace(session, result);
+        }
+    }
+
+    synchronized void appendTrace(Session session, int result) {
+        int position = (mTraceCount % TRACE_CAPACITY) * TRACE_RECORD_SIZE;
+        mTrace.position(position);
+        mTrace.putLong(SystemClock.elapsedRealtime());
+        mTrace.put((byte) session.mBranch);
+        mTrace.put((byte) result);
+        mTrace.putShort((short) 0);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            long micros = session.mPhaseMicros[i];
+            mTrace.putInt(micros > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) micros);
+        }
+        mTraceCount++;
+    }
+
+    /**
+     * Returns the trace with its header, records ordered oldest first.
+     */
+    synchronized byte[] getTrace() {
+        if (!mTraceEnabled) return null;
+        int records = Math.min(mTraceCount, TRACE_CAPACITY);
+        ByteBuffer out = ByteBuffer.allocate(16 + records * TRACE_RECORD_SIZE);
+        out.putInt(TRACE_MAGIC);
+        out.putInt(TRACE_VERSION);
+        out.putInt(TRACE_RECORD_SIZE);
+        out.putInt(records);
+        int first = mTraceCount > TRACE_CAPACITY ? mTraceCount % TRACE_CAPACITY : 0;
+        for (int i = 0; i < records; i++) {
+            int position = ((first + i) % TRACE_CAPACITY) * TRACE_RECORD_SIZE;
+            out.put(mTrace.array(), position, TRACE_RECORD_SIZE);
+        }
+        return out.array();
+    }
+
+    void dumpTrace(PrintWriter pw) {
+        byte[] trace = getTrace();
+        if (trace == null) {
+            pw.println("Tag dispatch trace not enabled");
+        } else {
+            pw.println(Base64.encodeToString(trace, Base64.NO_WRAP));
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Tag dispatch latency:");
+        for (Histogram histogram : mPhaseHistograms) {
+            histogram.dump(pw);
+        }
+        for (Histogram histogram : mBranchHistograms) {
+            if (histogram.getCount() > 0) {
+                histogram.dump(pw);
+            }
+        }
+    }
+
+    /**
+     * Timing state for a single tag; only used from the thread dispatching it.
+     */
+    static final class Session {
+        final long mDiscoveredUptimeMs;
+        final long mStartNanos;
+        final long[] mPhaseMicros = new long[PHASE_COUNT];
+        int mBranch = BRANCH_NONE;
+
+        Session(long discoveredUptimeMs) {
+            mDiscoveredUptimeMs = discoveredUptimeMs;
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhaseMicros[i] = -1;
+            }
+            if (discoveredUptimeMs != 0) {
+                mPhaseMicros[PHASE_RF_DISCOVERY] =
+                        (SystemClock.uptimeMillis() - discoveredUptimeMs) * 1000;
+            }
+        }
+
+        /**
+         * Adds the time elapsed since startNanos, taken from
+         * {@link SystemClock#elapsedRealtimeNanos}, to the given phase.
+         * Phases such as activity start may run more than once per tag.
+         */
+        void endPhase(int phase, long startNanos) {
+            long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+            mPhaseMicros[phase] = mPhaseMicros[phase] < 0 ? micros : mPhaseMicros[phase] + micros;
+        }
+
+        void setBranch(int branch) {
+            mBranch = branch;
+        }
+    }
+}
@@ -15,22 +15,40 @@
 */
 package com.android.nfc.beam;
 
+import com.android.nfc.R;
 import com.android.nfc.handover.HandoverDataParser;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 /**
- * Manager for starting and stopping Beam transfers. Prevents more than one transfer from
- * happening at a time.
+ * Manager for starting and stopping Beam transfers.
+ * <p>Transfers with different remote devices may run at the same time, up
+ * to a configured limit; there is at most one transfer per remote device.
+ * Outgoing transfers beyond the limit wait in a queue, and are started in
+ * order as running ones complete. Incoming transfers are never queued: the
+ * remote device starts pushing as soon as it has our Handover Select, so
+ * they are rejected as busy when all slots are taken.
+ * <p>Bluetooth is shared by the transfers in both directions: if Beam had
+ * to enable it, it is disabled only once no transfer uses it anymore.
  */
 public class BeamManager implements Handler.Callback {
     private static final String TAG = "BeamManager";
@@ -40,10 +58,54 @@ public class BeamManager implements Handler.Callback {
             "android.btopp.intent.action.WHITELIST_DEVICE";
     public static final int MSG_BEAM_COMPLETE = 0;
 
+    // Queued transfers not started within this time are dropped; it is
+    // below BeamTransferManager.ALIVE_CHECK_MS, after which the remote
+    // device gives up waiting for the transfer
+    static final int QUEUED_BEAM_TIMEOUT_MS = 15000;
+
+    static final int DEFAULT_MAX_CONCURRENT_BEAMS = 1;
+
     private final Object mLock;
 
-    private boolean mBeamInProgress;
+    // All variables below synchronized on mLock
+    // remote device address -> transfer id, for running transfers
+    private final HashMap<String, Integer> mActiveBeams = new HashMap<String, Integer>();
+    private final ArrayDeque<PendingBeam> mPendingBeams = new ArrayDeque<PendingBeam>();
+    private int mNextTransferId = 1;
+    private int mMaxActiveBeams = DEFAULT_MAX_CONCURRENT_BEAMS;
+    private int mMaxPendingBeams;
+    private boolean mLimitsLoaded;
+    private int mQueuedCount;
+    private int mDroppedCount;
+    // Transfers using Bluetooth, sending or receiving
+    private int mBluetoothUsers;
+    private boolean mBluetoothEnabledByNfc;
+
     private final Handler mCallback;
+    private final BeamStatistics mStatistics = new BeamStatistics();
+
+    /**
+     * A transfer ready to be started.
+     */
+    static final class PendingBeam {
+        final Context context;
+        final Intent intent;
+        final UserHandle user;
+        final BluetoothDevice device;
+        final boolean incoming;
+        final long queuedMs;
+        int transferId;
+
+        PendingBeam(Context context, Intent intent, UserHandle user, BluetoothDevice device,
+                boolean incoming) {
+            this.context = context;
+            this.intent = intent;
+            this.user = user;
+            this.device = device;
+            this.incoming = incoming;
+            this.queuedMs = SystemClock.elapsedRealtime();
+        }
+    }
 
     private static final class Singleton {
         public static final BeamManager INSTANCE = new BeamManager();
@@ -51,7 +113,6 @@ public class BeamManager implements Handler.Callback {
 
     private BeamManager() {
         mLock = new Object();
-        mBeamInProgress = false;
         mCallback = new Handler(Looper.getMainLooper(), this);
     }
 
@@ -61,68 +122,213 @@ public class BeamManager implements Handler.Callback {
 
     public boolean isBeamInProgress() {
         synchronized (mLock) {
-            return mBeamInProgress;
+            return !mActiveBeams.isEmpty();
         }
     }
 
-    public boolean startBeamReceive(Context context,
-                                 HandoverDataParser.BluetoothHandoverData handoverData) {
+    /**
+     * Returns whether another transfer in the given direction can be
+     * started, or for outgoing transfers, queued; a transfer with a device
+     * that already has one is still rejected when started.
+     */
+    public boolean canAcceptBeam(boolean incoming) {
         synchronized (mLock) {
-            if (mBeamInProgress) {
-                return false;
-            } else {
-                mBeamInProgress = true;
+            if (mActiveBeams.size() < mMaxActiveBeams) {
+                return true;
             }
+            return !incoming && mPendingBeams.size() < mMaxPendingBeams;
         }
+    }
 
+    public boolean startBeamReceive(Context context,
+                                 HandoverDataParser.BluetoothHandoverData handoverData) {
         BeamTransferRecord transferRecord =
                 BeamTransferRecord.forBluetoothDevice(
                         handoverData.device, handoverData.carrierActivating, null);
 
         Intent receiveIntent = new Intent(context.getApplicationContext(),
                 BeamReceiveService.class);
-        receiveIntent.putExtra(BeamReceiveService.EXTRA_BEAM_TRANSFER_RECORD, transferRecord);
         receiveIntent.putExtra(BeamReceiveService.EXTRA_BEAM_COMPLETE_CALLBACK,
                 new Messenger(mCallback));
-        whitelistOppDevice(context, handoverData.device);
-        context.startServiceAsUser(receiveIntent, UserHandle.CURRENT);
-        return true;
+        return startOrQueue(transferRecord, new PendingBeam(context, receiveIntent,
+                UserHandle.CURRENT, handoverData.device, true),
+                BeamReceiveService.EXTRA_BEAM_TRANSFER_RECORD);
     }
 
     public boolean startBeamSend(Context context,
                                HandoverDataParser.BluetoothHandoverData outgoingHandoverData,
                                Uri[] uris, UserHandle userHandle) {
-        synchronized (mLock) {
-            if (mBeamInProgress) {
-                return false;
-            } else {
-                mBeamInProgress = true;
-            }
-        }
-
         BeamTransferRecord transferRecord = BeamTransferRecord.forBluetoothDevice(
                 outgoingHandoverData.device, outgoingHandoverData.carrierActivating,
                 uris);
         Intent sendIntent = new Intent(context.getApplicationContext(),
                 BeamSendService.class);
-        sendIntent.putExtra(BeamSendService.EXTRA_BEAM_TRANSFER_RECORD, transferRecord);
         sendIntent.putExtra(BeamSendService.EXTRA_BEAM_COMPLETE_CALLBACK,
                 new Messenger(mCallback));
-        context.startServiceAsUser(sendIntent, userHandle);
+        return startOrQueue(transferRecord, new PendingBeam(context, sendIntent, userHandle,
+                outgoingHandoverData.device, false),
+                BeamSendService.EXTRA_BEAM_TRANSFER_RECORD);
+    }
+
+    private boolean startOrQueue(BeamTransferRecord transferRecord, PendingBeam beam,
+            String recordExtra) {
+        String address = beam.device.getAddress();
+        synchronized (mLock) {
+            loadLimitsLocked(beam.context);
+            if (mActiveBeams.containsKey(address) || isPendingLocked(address)) {
+                if (DBG) Log.d(TAG, "Transfer with " + address + " already in progress");
+                return false;
+            }
+            if (mActiveBeams.size() < mMaxActiveBeams) {
+                transferRecord.id = mNextTransferId++;
+                mActiveBeams.put(address, transferRecord.id);
+            } else if (!beam.incoming && mPendingBeams.size() < mMaxPendingBeams) {
+                transferRecord.id = mNextTransferId++;
+                beam.transferId = transferRecord.id;
+                beam.intent.putExtra(recordExtra, transferRecord);
+                mPendingBeams.add(beam);
+                mQueuedCount++;
+                if (DBG) Log.d(TAG, "Queued transfer with " + address);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        beam.intent.putExtra(recordExtra, transferRecord);
+        launch(beam);
         return true;
     }
 
+    private boolean isPendingLocked(String address) {
+        for (PendingBeam beam : mPendingBeams) {
+            if (beam.device.getAddress().equals(address)) return true;
+        }
+        return false;
+    }
+
+    private void loadLimitsLocked(Context context) {
+        if (mLimitsLoaded) return;
+        mLimitsLoaded = true;
+        try {
+            Resources res = context.getResources();
+            mMaxActiveBeams = Math.max(1, res.getInteger(R.integer.max_concurrent_beams));
+            mMaxPendingBeams = Math.max(0, res.getInteger(R.integer.max_queued_beams));
+        } catch (Resources.NotFoundException e) {
+            Log.w(TAG, "Beam limits not configured, allowing one transfer");
+        }
+    }
+
+    private void launch(PendingBeam beam) {
+        if (DBG) Log.d(TAG, "Starting transfer with " + beam.device.getAddress());
+        if (beam.incoming) {
+            whitelistOppDevice(beam.context, beam.device);
+        }
+        beam.context.startServiceAsUser(beam.intent, beam.user);
+    }
+
     @Override
     public boolean handleMessage(Message msg) {
         if (msg.what == MSG_BEAM_COMPLETE) {
+            Bundle statistics = msg.peekData();
+            if (statistics != null) {
+                mStatistics.addTransfer(statistics);
+            }
+            PendingBeam next = null;
             synchronized (mLock) {
-                mBeamInProgress = false;
+                Iterator<Map.Entry<String, Integer>> it = mActiveBeams.entrySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getValue() == msg.arg1) {
+                        it.remove();
+                        break;
+                    }
+                }
+                long now = SystemClock.elapsedRealtime();
+                while (next == null && !mPendingBeams.isEmpty() &&
+                        mActiveBeams.size() < mMaxActiveBeams) {
+                    PendingBeam beam = mPendingBeams.poll();
+                    if (now - beam.queuedMs > QUEUED_BEAM_TIMEOUT_MS) {
+                        Log.i(TAG, "Dropping stale transfer with " + beam.device.getAddress());
+                        mDroppedCount++;
+                        continue;
+                    }
+                    mActiveBeams.put(beam.device.getAddress(), beam.transferId);
+                    next = beam;
+                }
+            }
+            if (next != null) {
+                launch(next);
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Called by the Beam services for each transfer that needs Bluetooth,
+     * enabling it if needed. The transfer must wait for Bluetooth to be on
+     * if it isn't yet.
+     *
+     * @return false if Bluetooth couldn't be enabled
+     */
+    boolean acquireBluetooth(BluetoothAdapter adapter) {
+        synchronized (mLock) {
+            if (!adapter.isEnabled() && !mBluetoothEnabledByNfc) {
+                if (!adapter.enableNoAutoConnect()) {
+                    Log.e(TAG, "Error enabling Bluetooth.");
+                    return false;
+                }
+                mBluetoothEnabledByNfc = true;
+            }
+            mBluetoothUsers++;
+            return true;
+        }
+    }
+
+    /**
+     * Called by the Beam services when a transfer that acquired Bluetooth
+     * is done with it; disables Bluetooth after the last one if Beam
+     * enabled it.
+     */
+    void releaseBluetooth(BluetoothAdapter adapter) {
+        synchronized (mLock) {
+            if (mBluetoothUsers > 0) mBluetoothUsers--;
+            if (mBluetoothUsers > 0 || !mBluetoothEnabledByNfc) {
+                return;
+            }
+            mBluetoothEnabledByNfc = false;
+        }
+        if (DBG) Log.d(TAG, "Last transfer done, disabling Bluetooth");
+        adapter.disable();
+    }
+
+    /**
+     * Called by the Beam services when Bluetooth turned off; if it is
+     * enabled again it wasn't by Beam.
+     */
+    void onBluetoothOff() {
+        synchronized (mLock) {
+            mBluetoothEnabledByNfc = false;
+        }
+    }
+
+    /**
+     * Records how long negotiating an outgoing handover over NFC took.
+     */
+    public void recordHandoverNegotiation(long ms) {
+        mStatistics.addHandoverNegotiation(ms);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Beam sessions: active=" + mActiveBeams.keySet() + " queued=" +
+                    mPendingBeams.size() + " limit=" + mMaxActiveBeams + "+" +
+                    mMaxPendingBeams + " total queued=" + mQueuedCount + " dropped=" +
+                    mDroppedCount + " bluetooth users=" + mBluetoothUsers +
+                    (mBluetoothEnabledByNfc ? " (enabled by NFC)" : ""));
+        }
+        mStatistics.dump(pw);
+    }
+
     void whitelistOppDevice(Context context, BluetoothDevice device) {
         if (DBG) Log.d(TAG, "Whitelisting " + device + " for BT OPP");
         Intent intent = new Intent(ACTION_WHITELIST_DEVICE);
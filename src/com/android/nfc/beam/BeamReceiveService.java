@@ -12,11 +12,11 @@ import android.media.AudioManager;
 import android.media.SoundPool;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.Messenger;
-import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.HashMap;
+
 
 /**
  * @hide
@@ -30,13 +30,11 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
     public static final String EXTRA_BEAM_COMPLETE_CALLBACK
             = "com.android.nfc.beam.TRANSFER_COMPLETE_CALLBACK";
 
-    private BeamStatusReceiver mBeamStatusReceiver;
-    private boolean mBluetoothEnabledByNfc;
-    private int mStartId;
+    // Transfers in progress, by remote device address
+    private final HashMap<String, BeamSession> mSessions = new HashMap<String, BeamSession>();
+    private int mLastStartId;
     private SoundPool mSoundPool;
     private int mSuccessSound;
-    private BeamTransferManager mTransferManager;
-    private Messenger mCompleteCallback;
 
     private final BluetoothAdapter mBluetoothAdapter;
     private final BroadcastReceiver mBluetoothStateReceiver = new BroadcastReceiver() {
@@ -47,7 +45,7 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
                 int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
                         BluetoothAdapter.ERROR);
                 if (state == BluetoothAdapter.STATE_OFF) {
-                    mBluetoothEnabledByNfc = false;
+                    BeamManager.getInstance().onBluetoothOff();
                 }
             }
         }
@@ -59,24 +57,24 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        mStartId = startId;
+        mLastStartId = startId;
 
         BeamTransferRecord transferRecord;
         if (intent == null ||
                 (transferRecord = intent.getParcelableExtra(EXTRA_BEAM_TRANSFER_RECORD)) == null) {
             if (DBG) Log.e(TAG, "No transfer record provided. Stopping.");
-            stopSelf(startId);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
 
-        mCompleteCallback = intent.getParcelableExtra(EXTRA_BEAM_COMPLETE_CALLBACK);
+        Messenger completeCallback = intent.getParcelableExtra(EXTRA_BEAM_COMPLETE_CALLBACK);
 
-        if (prepareToReceive(transferRecord)) {
+        if (prepareToReceive(transferRecord, completeCallback)) {
             if (DBG) Log.i(TAG, "Ready for incoming Beam transfer");
             return START_STICKY;
         } else {
-            invokeCompleteCallback();
-            stopSelf(startId);
+            BeamSession.invokeCompleteCallback(completeCallback, transferRecord.id, null);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
     }
@@ -101,14 +99,16 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
             mSoundPool.release();
         }
 
-        if (mBeamStatusReceiver != null) {
-            unregisterReceiver(mBeamStatusReceiver);
+        for (BeamSession session : mSessions.values()) {
+            unregisterReceiver(session.statusReceiver);
+            BeamManager.getInstance().releaseBluetooth(mBluetoothAdapter);
         }
+        mSessions.clear();
         unregisterReceiver(mBluetoothStateReceiver);
     }
 
-    boolean prepareToReceive(BeamTransferRecord transferRecord) {
-        if (mTransferManager != null) {
+    boolean prepareToReceive(BeamTransferRecord transferRecord, Messenger completeCallback) {
+        if (mSessions.containsKey(transferRecord.remoteDevice.getAddress())) {
             return false;
         }
 
@@ -117,35 +117,28 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
             return false;
         }
 
-        if (!mBluetoothAdapter.isEnabled()) {
-            if (!mBluetoothAdapter.enableNoAutoConnect()) {
-                Log.e(TAG, "Error enabling Bluetooth.");
-                return false;
-            }
-            mBluetoothEnabledByNfc = true;
-            if (DBG) Log.d(TAG, "Queueing out transfer "
-                    + Integer.toString(transferRecord.id));
+        if (!BeamManager.getInstance().acquireBluetooth(mBluetoothAdapter)) {
+            return false;
         }
 
-        mTransferManager = new BeamTransferManager(this, this, transferRecord, true);
+        BeamTransferManager transferManager =
+                new BeamTransferManager(this, this, transferRecord, true);
 
         // register Beam status receiver
-        mBeamStatusReceiver = new BeamStatusReceiver(this, mTransferManager);
-        registerReceiver(mBeamStatusReceiver, mBeamStatusReceiver.getIntentFilter(),
+        BeamStatusReceiver statusReceiver = new BeamStatusReceiver(this, transferManager);
+        registerReceiver(statusReceiver, statusReceiver.getIntentFilter(),
                 BeamStatusReceiver.BEAM_STATUS_PERMISSION, new Handler());
+        mSessions.put(transferRecord.remoteDevice.getAddress(),
+                new BeamSession(transferManager, statusReceiver, completeCallback));
 
-        mTransferManager.start();
-        mTransferManager.updateNotification();
+        transferManager.start();
+        transferManager.updateNotification();
         return true;
     }
 
-    private void invokeCompleteCallback() {
-        if (mCompleteCallback != null) {
-            try {
-                mCompleteCallback.send(Message.obtain(null, BeamManager.MSG_BEAM_COMPLETE));
-            } catch (RemoteException e) {
-                Log.e(TAG, "failed to invoke Beam complete callback", e);
-            }
+    private void stopIfIdle() {
+        if (mSessions.isEmpty()) {
+            stopSelf(mLastStartId);
         }
     }
 
@@ -159,13 +152,14 @@ public class BeamReceiveService extends Service implements BeamTransferManager.C
                     Integer.toString(transfer.mState));
         }
 
-        if (mBluetoothEnabledByNfc) {
-            mBluetoothEnabledByNfc = false;
-            mBluetoothAdapter.disable();
+        BeamSession session = mSessions.remove(transfer.mRemoteDevice.getAddress());
+        if (session != null) {
+            unregisterReceiver(session.statusReceiver);
+            BeamManager.getInstance().releaseBluetooth(mBluetoothAdapter);
+            session.invokeCompleteCallback(transfer.getStatistics());
         }
 
-        invokeCompleteCallback();
-        stopSelf(mStartId);
+        stopIfIdle();
     }
 
     @Override
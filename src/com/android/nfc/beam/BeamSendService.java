@@ -28,11 +28,11 @@ import android.media.AudioManager;
 import android.media.SoundPool;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.Messenger;
-import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.HashMap;
+
 public class BeamSendService extends Service implements BeamTransferManager.Callback {
     private static String TAG = "BeamSendService";
     private static boolean DBG = true;
@@ -42,11 +42,9 @@ public class BeamSendService extends Service implements BeamTransferManager.Call
     public static final String EXTRA_BEAM_COMPLETE_CALLBACK
             = "com.android.nfc.beam.TRANSFER_COMPLETE_CALLBACK";
 
-    private BeamTransferManager mTransferManager;
-    private BeamStatusReceiver mBeamStatusReceiver;
-    private boolean mBluetoothEnabledByNfc;
-    private Messenger mCompleteCallback;
-    private int mStartId;
+    // Transfers in progress, by remote device address
+    private final HashMap<String, BeamSession> mSessions = new HashMap<String, BeamSession>();
+    private int mLastStartId;
     SoundPool mSoundPool;
     int mSuccessSound;
 
@@ -84,99 +82,101 @@ public class BeamSendService extends Service implements BeamTransferManager.Call
             mSoundPool.release();
         }
 
-        if (mBeamStatusReceiver != null) {
-            unregisterReceiver(mBeamStatusReceiver);
+        for (BeamSession session : mSessions.values()) {
+            unregisterReceiver(session.statusReceiver);
+            BeamManager.getInstance().releaseBluetooth(mBluetoothAdapter);
         }
+        mSessions.clear();
         unregisterReceiver(mBluetoothStateReceiver);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        mStartId = startId;
+        mLastStartId = startId;
 
         BeamTransferRecord transferRecord;
         if (intent == null ||
                 (transferRecord = intent.getParcelableExtra(EXTRA_BEAM_TRANSFER_RECORD)) == null) {
             if (DBG) Log.e(TAG, "No transfer record provided. Stopping.");
-            stopSelf(startId);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
 
-        mCompleteCallback = intent.getParcelableExtra(EXTRA_BEAM_COMPLETE_CALLBACK);
+        Messenger completeCallback = intent.getParcelableExtra(EXTRA_BEAM_COMPLETE_CALLBACK);
 
-        if (doTransfer(transferRecord)) {
+        if (doTransfer(transferRecord, completeCallback)) {
             if (DBG) Log.i(TAG, "Starting outgoing Beam transfer");
             return START_STICKY;
         } else {
-            invokeCompleteCallback();
-            stopSelf(startId);
+            BeamSession.invokeCompleteCallback(completeCallback, transferRecord.id, null);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
     }
 
-    boolean doTransfer(BeamTransferRecord transferRecord) {
-        if (createBeamTransferManager(transferRecord)) {
-            // register Beam status receiver
-            mBeamStatusReceiver = new BeamStatusReceiver(this, mTransferManager);
-            registerReceiver(mBeamStatusReceiver, mBeamStatusReceiver.getIntentFilter(),
-                    BeamStatusReceiver.BEAM_STATUS_PERMISSION, new Handler());
-
-            if (transferRecord.dataLinkType == BeamTransferRecord.DATA_LINK_TYPE_BLUETOOTH) {
-                if (mBluetoothAdapter.isEnabled()) {
-                    // Start the transfer
-                    mTransferManager.start();
-                } else {
-                    if (!mBluetoothAdapter.enableNoAutoConnect()) {
-                        Log.e(TAG, "Error enabling Bluetooth.");
-                        mTransferManager = null;
-                        return false;
-                    }
-                    mBluetoothEnabledByNfc = true;
-                    if (DBG) Log.d(TAG, "Queueing out transfer "
-                            + Integer.toString(transferRecord.id));
-                }
-            }
-            return true;
+    boolean doTransfer(BeamTransferRecord transferRecord, Messenger completeCallback) {
+        BeamTransferManager transferManager = createBeamTransferManager(transferRecord);
+        if (transferManager == null) {
+            return false;
         }
 
-        return false;
+        // register Beam status receiver
+        BeamStatusReceiver statusReceiver = new BeamStatusReceiver(this, transferManager);
+        registerReceiver(statusReceiver, statusReceiver.getIntentFilter(),
+                BeamStatusReceiver.BEAM_STATUS_PERMISSION, new Handler());
+
+        if (transferRecord.dataLinkType == BeamTransferRecord.DATA_LINK_TYPE_BLUETOOTH) {
+            if (!BeamManager.getInstance().acquireBluetooth(mBluetoothAdapter)) {
+                unregisterReceiver(statusReceiver);
+                return false;
+            }
+            if (mBluetoothAdapter.isEnabled()) {
+                // Start the transfer
+                transferManager.start();
+            } else {
+                if (DBG) Log.d(TAG, "Queueing out transfer "
+                        + Integer.toString(transferRecord.id));
+            }
+        }
+        mSessions.put(transferRecord.remoteDevice.getAddress(),
+                new BeamSession(transferManager, statusReceiver, completeCallback));
+        return true;
     }
 
-    boolean createBeamTransferManager(BeamTransferRecord transferRecord) {
-        if (mTransferManager != null) {
-            return false;
+    BeamTransferManager createBeamTransferManager(BeamTransferRecord transferRecord) {
+        if (mSessions.containsKey(transferRecord.remoteDevice.getAddress())) {
+            return null;
         }
 
         if (transferRecord.dataLinkType != BeamTransferRecord.DATA_LINK_TYPE_BLUETOOTH) {
             // only support BT
-            return false;
+            return null;
         }
 
-        mTransferManager = new BeamTransferManager(this, this, transferRecord, false);
-        mTransferManager.updateNotification();
-        return true;
+        BeamTransferManager transferManager =
+                new BeamTransferManager(this, this, transferRecord, false);
+        transferManager.updateNotification();
+        return transferManager;
     }
 
     private void handleBluetoothStateChanged(Intent intent) {
         int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
                 BluetoothAdapter.ERROR);
         if (state == BluetoothAdapter.STATE_ON) {
-            if (mTransferManager != null &&
-                    mTransferManager.mDataLinkType == BeamTransferRecord.DATA_LINK_TYPE_BLUETOOTH) {
-                mTransferManager.start();
+            for (BeamSession session : mSessions.values()) {
+                if (session.transferManager.mDataLinkType ==
+                        BeamTransferRecord.DATA_LINK_TYPE_BLUETOOTH) {
+                    session.transferManager.start();
+                }
             }
         } else if (state == BluetoothAdapter.STATE_OFF) {
-            mBluetoothEnabledByNfc = false;
+            BeamManager.getInstance().onBluetoothOff();
         }
     }
 
-    private void invokeCompleteCallback() {
-        if (mCompleteCallback != null) {
-            try {
-                mCompleteCallback.send(Message.obtain(null, BeamManager.MSG_BEAM_COMPLETE));
-            } catch (RemoteException e) {
-                Log.e(TAG, "failed to invoke Beam complete callback", e);
-            }
+    private void stopIfIdle() {
+        if (mSessions.isEmpty()) {
+            stopSelf(mLastStartId);
         }
     }
 
@@ -190,13 +190,14 @@ public class BeamSendService extends Service implements BeamTransferManager.Call
                     Integer.toString(transfer.mState));
         }
 
-        if (mBluetoothEnabledByNfc) {
-            mBluetoothEnabledByNfc = false;
-            mBluetoothAdapter.disable();
+        BeamSession session = mSessions.remove(transfer.mRemoteDevice.getAddress());
+        if (session != null) {
+            unregisterReceiver(session.statusReceiver);
+            BeamManager.getInstance().releaseBluetooth(mBluetoothAdapter);
+            session.invokeCompleteCallback(transfer.getStatistics());
         }
 
-        invokeCompleteCallback();
-        stopSelf(mStartId);
+        stopIfIdle();
     }
 
     @Override
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.beam;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * A transfer running in BeamSendService or BeamReceiveService, with the
+ * receiver of its status broadcasts and the BeamManager callback to invoke
+ * once it completes.
+ */
+final class BeamSession {
+    private static final String TAG = "BeamSession";
+
+    final BeamTransferManager transferManager;
+    final BeamStatusReceiver statusReceiver;
+    final Messenger completeCallback;
+
+    BeamSession(BeamTransferManager transferManager, BeamStatusReceiver statusReceiver,
+            Messenger completeCallback) {
+        this.transferManager = transferManager;
+        this.statusReceiver = statusReceiver;
+        this.completeCallback = completeCallback;
+    }
+
+    void invokeCompleteCallback(Bundle statistics) {
+        invokeCompleteCallback(completeCallback, transferManager.mTransferId, statistics);
+    }
+
+    /**
+     * Tells BeamManager that the transfer with the given id is done, so
+     * that queued transfers can start.
+     */
+    static void invokeCompleteCallback(Messenger completeCallback, int transferId,
+            Bundle statistics) {
+        if (completeCallback != null) {
+            try {
+                Message msg = Message.obtain(null, BeamManager.MSG_BEAM_COMPLETE);
+                msg.arg1 = transferId;
+                msg.setData(statistics);
+                completeCallback.send(msg);
+            } catch (RemoteException e) {
+                Log.e(TAG, "failed to invoke Beam complete callback", e);
+            }
+        }
+    }
+}
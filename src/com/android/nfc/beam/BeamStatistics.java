@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.beam;
+
+import com.android.nfc.Histogram;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Timing and throughput of Beam transfers, for dumpsys.
+ * <p>Transfers run in the Beam process; each one records its metrics in a
+ * {@link Transfer}, which is sent back with the completion message as a
+ * Bundle and folded into the histograms here, in the NFC process. Handover
+ * negotiation over NFC is timed separately, so slow Beams can be told apart
+ * from slow Bluetooth setup or OPP throughput.
+ */
+class BeamStatistics {
+    static final long[] THROUGHPUT_KBPS_BOUNDS = new long[] {
+            10, 25, 50, 100, 150, 200, 300, 500, 1000
+    };
+    static final long[] STALL_COUNT_BOUNDS = new long[] {
+            0, 1, 2, 5, 10
+    };
+
+    // Per-file durations kept for a single transfer
+    static final int MAX_FILE_SAMPLES = 64;
+
+    static final String KEY_INCOMING = "incoming";
+    static final String KEY_SUCCESS = "success";
+    static final String KEY_BT_SETUP_MS = "bt_setup_ms";
+    static final String KEY_FIRST_BYTE_MS = "first_byte_ms";
+    static final String KEY_FILE_MS = "file_ms";
+    static final String KEY_BYTES = "bytes";
+    static final String KEY_TRANSFER_MS = "transfer_ms";
+    static final String KEY_STALLS = "stalls";
+    static final String KEY_TIMED_OUT = "timed_out";
+
+    final Histogram mHandoverMs = new Histogram("handover_negotiation", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mBluetoothSetupMs = new Histogram("bt_setup", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mFirstByteMs = new Histogram("time_to_first_byte", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mFileMs = new Histogram("file_duration", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mThroughput = new Histogram("throughput", "kB/s",
+            THROUGHPUT_KBPS_BOUNDS);
+    final Histogram mStalls = new Histogram("stalls_per_transfer", "",
+            STALL_COUNT_BOUNDS);
+
+    // All variables below synchronized on this
+    int mIncoming;
+    int mOutgoing;
+    int mSucceeded;
+    int mTimedOut;
+
+    void addHandoverNegotiation(long ms) {
+        mHandoverMs.add(ms);
+    }
+
+    /**
+     * Folds in the metrics of a completed transfer, as sent by
+     * {@link Transfer#toBundle}.
+     */
+    void addTransfer(Bundle transfer) {
+        synchronized (this) {
+            if (transfer.getBoolean(KEY_INCOMING)) {
+                mIncoming++;
+            } else {
+                mOutgoing++;
+            }
+            if (transfer.getBoolean(KEY_SUCCESS)) mSucceeded++;
+            if (transfer.getBoolean(KEY_TIMED_OUT)) mTimedOut++;
+        }
+        long setupMs = transfer.getLong(KEY_BT_SETUP_MS, -1);
+        if (setupMs >= 0) mBluetoothSetupMs.add(setupMs);
+        long firstByteMs = transfer.getLong(KEY_FIRST_BYTE_MS, -1);
+        if (firstByteMs >= 0) mFirstByteMs.add(firstByteMs);
+        long[] fileMs = transfer.getLongArray(KEY_FILE_MS);
+        if (fileMs != null) {
+            for (long ms : fileMs) {
+                mFileMs.add(ms);
+            }
+        }
+        long bytes = transfer.getLong(KEY_BYTES);
+        long transferMs = transfer.getLong(KEY_TRANSFER_MS);
+        if (bytes > 0 && transferMs > 0) {
+            // bytes per ms is kB per s
+            mThroughput.add(bytes / transferMs);
+        }
+        mStalls.add(transfer.getInt(KEY_STALLS));
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("Beam transfers: incoming=" + mIncoming + " outgoing=" + mOutgoing +
+                    " succeeded=" + mSucceeded + " timed out=" + mTimedOut);
+        }
+        mHandoverMs.dump(pw);
+        mBluetoothSetupMs.dump(pw);
+        mFirstByteMs.dump(pw);
+        mFileMs.dump(pw);
+        mThroughput.dump(pw);
+        mStalls.dump(pw);
+    }
+
+    /**
+     * Metrics of a single transfer; only used on the thread of its
+     * BeamTransferManager. Times are taken from
+     * {@link SystemClock#elapsedRealtime}.
+     */
+    static final class Transfer {
+        final boolean mIncoming;
+        final long mCreatedMs;
+        long mConnectedMs = -1;
+        long mFirstByteMs = -1;
+        long mFileStartMs = -1;
+        long mLastFileMs = -1;
+        final long[] mFileMs;
+        int mFileCount;
+        long mBytes;
+        int mStalls;
+        boolean mTimedOut;
+
+        Transfer(boolean incoming) {
+            mIncoming = incoming;
+            mCreatedMs = SystemClock.elapsedRealtime();
+            mFileMs = new long[MAX_FILE_SAMPLES];
+        }
+
+        /**
+         * Bluetooth is connected and OPP started sending.
+         */
+        void onConnected() {
+            if (mConnectedMs < 0) mConnectedMs = SystemClock.elapsedRealtime();
+        }
+
+        void onProgress() {
+            long now = SystemClock.elapsedRealtime();
+            if (mFirstByteMs < 0) mFirstByteMs = now;
+            if (mFileStartMs < 0) mFileStartMs = now;
+        }
+
+        /**
+         * A file completed; bytes is its size, or negative if unknown.
+         */
+        void onFileDone(long bytes) {
+            long now = SystemClock.elapsedRealtime();
+            if (mFirstByteMs < 0) mFirstByteMs = now;
+            long start = mFileStartMs >= 0 ? mFileStartMs :
+                    (mLastFileMs >= 0 ? mLastFileMs : mFirstByteMs);
+            if (mFileCount < mFileMs.length) {
+                mFileMs[mFileCount] = now - start;
+            }
+            mFileCount++;
+            if (bytes > 0) mBytes += bytes;
+            mLastFileMs = now;
+            mFileStartMs = -1;
+        }
+
+        void onStall() {
+            mStalls++;
+        }
+
+        void onTimeout() {
+            mTimedOut = true;
+        }
+
+        Bundle toBundle(boolean success) {
+            Bundle bundle = new Bundle();
+            bundle.putBoolean(KEY_INCOMING, mIncoming);
+            bundle.putBoolean(KEY_SUCCESS, success);
+            long connectedMs = mConnectedMs >= 0 ? mConnectedMs : mFirstByteMs;
+            if (connectedMs >= 0) {
+                bundle.putLong(KEY_BT_SETUP_MS, connectedMs - mCreatedMs);
+            }
+            if (mFirstByteMs >= 0) {
+                bundle.putLong(KEY_FIRST_BYTE_MS, mFirstByteMs - mCreatedMs);
+            }
+            long[] fileMs = new long[Math.min(mFileCount, mFileMs.length)];
+            System.arraycopy(mFileMs, 0, fileMs, 0, fileMs.length);
+            bundle.putLongArray(KEY_FILE_MS, fileMs);
+            bundle.putLong(KEY_BYTES, mBytes);
+            if (mFirstByteMs >= 0 && mLastFileMs >= 0) {
+                bundle.putLong(KEY_TRANSFER_MS, mLastFileMs - mFirstByteMs);
+            }
+            bundle.putInt(KEY_STALLS, mStalls);
+            bundle.putBoolean(KEY_TIMED_OUT, mTimedOut);
+            return bundle;
+        }
+    }
+}
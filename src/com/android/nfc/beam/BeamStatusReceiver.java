@@ -86,7 +86,10 @@ public class BeamStatusReceiver extends BroadcastReceiver {
                 BeamTransferManager.DATA_LINK_TYPE_BLUETOOTH);
 
         if (ACTION_CANCEL_HANDOVER_TRANSFER.equals(action)) {
-            if (mTransferManager != null) {
+            // Several transfers may run at once, each with its own receiver
+            if (mTransferManager != null && isForTransfer(intent.getStringExtra(EXTRA_ADDRESS))
+                    && intent.getIntExtra(EXTRA_INCOMING, -1) ==
+                    (mTransferManager.mIncoming ? DIRECTION_INCOMING : DIRECTION_OUTGOING)) {
                 mTransferManager.cancel();
             }
         } else if (ACTION_TRANSFER_PROGRESS.equals(action) ||
@@ -104,6 +107,10 @@ public class BeamStatusReceiver extends BroadcastReceiver {
         return filter;
     }
 
+    private boolean isForTransfer(String address) {
+        return mTransferManager.mRemoteDevice.getAddress().equals(address);
+    }
+
     private void handleTransferEvent(Intent intent, int deviceType) {
         String action = intent.getAction();
         int id = intent.getIntExtra(EXTRA_TRANSFER_ID, -1);
@@ -112,6 +119,11 @@ public class BeamStatusReceiver extends BroadcastReceiver {
 
         if (sourceAddress == null) return;
 
+        if (mTransferManager != null && !isForTransfer(sourceAddress)) {
+            // Handled by the receiver of another transfer
+            return;
+        }
+
         if (mTransferManager == null) {
             // There is no transfer running for this source address; most likely
             // the transfer was cancelled. We need to tell BT OPP to stop transferring.
@@ -146,6 +158,7 @@ public class BeamStatusReceiver extends BroadcastReceiver {
             float progress = intent.getFloatExtra(EXTRA_TRANSFER_PROGRESS, 0.0f);
             mTransferManager.updateFileProgress(progress);
         } else if (action.equals(ACTION_HANDOVER_STARTED)) {
+            mTransferManager.onBluetoothConnected();
             int count = intent.getIntExtra(EXTRA_OBJECT_COUNT, 0);
             if (count > 0) {
                 mTransferManager.setObjectCount(count);
@@ -26,8 +26,10 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
@@ -37,12 +39,15 @@ import android.os.UserHandle;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * A BeamTransferManager object represents a set of files
@@ -61,6 +66,10 @@ import java.util.Locale;
  * same source address as part of the same transfer.
  * The corresponding URIs will be grouped in a single folder.
  *
+ * Once more than one file is expected, each received file is moved
+ * to that folder and handed to the media scanner as soon as it
+ * completes, rather than after the last one.
+ *
  * @hide
  */
 
@@ -87,6 +96,7 @@ public class BeamTransferManager implements Handler.Callback,
     static final int MSG_NEXT_TRANSFER_TIMER = 0;
 
     static final int MSG_TRANSFER_TIMEOUT = 1;
+    static final int MSG_STALL_CHECK = 2;
     static final int DATA_LINK_TYPE_BLUETOOTH = 1;
 
     // We need to receive an update within this time period
@@ -98,6 +108,10 @@ public class BeamTransferManager implements Handler.Callback,
     // once the current one completes.
     static final int WAIT_FOR_NEXT_TRANSFER_MS = 4000;
 
+    // A running file transfer without progress for this long is
+    // counted as stalled
+    static final int STALL_MS = 3000;
+
     static final String BEAM_DIR = "beam";
 
     static final String ACTION_WHITELIST_DEVICE =
@@ -118,6 +132,7 @@ public class BeamTransferManager implements Handler.Callback,
     final BluetoothDevice mRemoteDevice;
     final Callback mCallback;
     final boolean mRemoteActivating;
+    final BeamStatistics.Transfer mStatistics;
 
     // Variables below are only accessed on the main thread
     int mState;
@@ -136,6 +151,10 @@ public class BeamTransferManager implements Handler.Callback,
     HashMap<String, Uri> mMediaUris; // URIs found by the media scanner for each path
     int mUrisScanned;
     Long mStartTime;
+    File mBeamPath; // Where received files are moved to, once known
+    HashSet<String> mDestinationNames; // Names taken in mBeamPath
+    int mFinalizedCount; // Number of mUris moved to mBeamPath
+    boolean mScanMedia; // Whether moved files are handed to the media scanner
 
     public BeamTransferManager(Context context, Callback callback,
                                BeamTransferRecord pendingTransfer, boolean incoming) {
@@ -147,6 +166,7 @@ public class BeamTransferManager implements Handler.Callback,
         mBluetoothTransferId = -1;
         mDataLinkType = pendingTransfer.dataLinkType;
         mRemoteActivating = pendingTransfer.remoteActivating;
+        mStatistics = new BeamStatistics.Transfer(incoming);
         mStartTime = 0L;
         // For incoming transfers, count can be set later
         mTotalCount = (pendingTransfer.uris != null) ? pendingTransfer.uris.length : 0;
@@ -197,6 +217,9 @@ public class BeamTransferManager implements Handler.Callback,
         if (!isRunning()) return; // Ignore when we're no longer running
 
         mHandler.removeMessages(MSG_NEXT_TRANSFER_TIMER);
+        mHandler.removeMessages(MSG_STALL_CHECK);
+        mHandler.sendEmptyMessageDelayed(MSG_STALL_CHECK, STALL_MS);
+        mStatistics.onProgress();
 
         this.mProgress = progress;
 
@@ -216,9 +239,18 @@ public class BeamTransferManager implements Handler.Callback,
         }
     }
 
+    /**
+     * Bluetooth is connected and OPP started the transfer.
+     */
+    public void onBluetoothConnected() {
+        mStatistics.onConnected();
+    }
+
     public void finishTransfer(boolean success, Uri uri, String mimeType) {
         if (!isRunning()) return; // Ignore when we're no longer running
 
+        mHandler.removeMessages(MSG_STALL_CHECK);
+        mStatistics.onFileDone(success && uri != null ? getContentLength(uri) : -1);
         mCurrentCount++;
         if (success && uri != null) {
             mSuccessCount++;
@@ -233,6 +265,10 @@ public class BeamTransferManager implements Handler.Callback,
             } else {
                 if (DBG) Log.d(TAG, "Could not get mimeType for file.");
             }
+            if (mIncoming && mTotalCount > 1 && prepareDestination()) {
+                // Files go to a separate folder; move this one right away
+                finalizeFiles();
+            }
         } else {
             Log.e(TAG, "Handover transfer failed");
             // Do wait to see if there's another file coming.
@@ -267,10 +303,15 @@ public class BeamTransferManager implements Handler.Callback,
         if (!isRunning()) return;
 
         // Delete all files received so far
-        for (Uri uri : mUris) {
-            File file = new File(uri.getPath());
+        for (int i = mFinalizedCount; i < mUris.size(); i++) {
+            File file = new File(mUris.get(i).getPath());
             if (file.exists()) file.delete();
         }
+        synchronized (this) {
+            for (String path : mPaths) {
+                new File(path).delete();
+            }
+        }
 
         if (mBluetoothTransferId != -1) {
             // we know the ID, we can cancel immediately
@@ -361,6 +402,8 @@ public class BeamTransferManager implements Handler.Callback,
         if (isRunning()) {
             // Update timeout timer if we're still running
             mHandler.sendEmptyMessageDelayed(MSG_TRANSFER_TIMEOUT, ALIVE_CHECK_MS);
+        } else {
+            mHandler.removeMessages(MSG_STALL_CHECK);
         }
 
         updateNotification();
@@ -374,62 +417,91 @@ public class BeamTransferManager implements Handler.Callback,
     }
 
     void processFiles() {
-        // Check the amount of files we received in this transfer;
-        // If more than one, create a separate directory for it.
-        String extRoot = Environment.getExternalStorageDirectory().getPath();
-        File beamPath = new File(extRoot + "/" + BEAM_DIR);
-
-        if (!checkMediaStorage(beamPath) || mUris.size() == 0) {
+        if (mUris.size() == 0 || !prepareDestination()) {
             Log.e(TAG, "Media storage not valid or no uris received.");
             updateStateAndNotification(STATE_FAILED);
             return;
         }
 
-        if (mUris.size() > 1) {
+        finalizeFiles();
+
+        synchronized (this) {
+            if (mPaths.size() == 0) {
+                updateStateAndNotification(STATE_FAILED);
+            } else if (mScanMedia && mUrisScanned < mPaths.size()) {
+                updateStateAndNotification(STATE_W4_MEDIA_SCANNER);
+            } else {
+                // We're done.
+                updateStateAndNotification(STATE_SUCCESS);
+            }
+        }
+    }
+
+    /**
+     * Picks the folder that received files are moved to: a separate one
+     * if more than one file is expected or was received.
+     */
+    boolean prepareDestination() {
+        if (mBeamPath != null) return true;
+
+        String extRoot = Environment.getExternalStorageDirectory().getPath();
+        File beamPath = new File(extRoot + "/" + BEAM_DIR);
+
+        if (!checkMediaStorage(beamPath)) {
+            return false;
+        }
+
+        if (mUris.size() > 1 || mTotalCount > 1) {
             beamPath = generateMultiplePath(extRoot + "/" + BEAM_DIR + "/");
             if (!beamPath.isDirectory() && !beamPath.mkdir()) {
                 Log.e(TAG, "Failed to create multiple path " + beamPath.toString());
-                updateStateAndNotification(STATE_FAILED);
-                return;
+                return false;
             }
         }
 
-        for (int i = 0; i < mUris.size(); i++) {
-            Uri uri = mUris.get(i);
-            String mimeType = mTransferMimeTypes.get(i);
+        mBeamPath = beamPath;
+        mDestinationNames = listNames(beamPath);
+        return true;
+    }
+
+    /**
+     * Moves the received files that were not moved yet to mBeamPath.
+     */
+    void finalizeFiles() {
+        for (; mFinalizedCount < mUris.size(); mFinalizedCount++) {
+            Uri uri = mUris.get(mFinalizedCount);
+            String mimeType = mTransferMimeTypes.get(mFinalizedCount);
 
             File srcFile = new File(uri.getPath());
 
-            File dstFile = generateUniqueDestination(beamPath.getAbsolutePath(),
-                    uri.getLastPathSegment());
+            File dstFile = generateUniqueDestination(mBeamPath.getAbsolutePath(),
+                    uri.getLastPathSegment(), mDestinationNames);
             Log.d(TAG, "Renaming from " + srcFile);
             if (!srcFile.renameTo(dstFile)) {
                 if (DBG) Log.d(TAG, "Failed to rename from " + srcFile + " to " + dstFile);
                 srcFile.delete();
-                return;
-            } else {
-                mPaths.add(dstFile.getAbsolutePath());
-                mMimeTypes.put(dstFile.getAbsolutePath(), mimeType);
-                if (DBG) Log.d(TAG, "Did successful rename from " + srcFile + " to " + dstFile);
+                continue;
+            }
+            if (DBG) Log.d(TAG, "Did successful rename from " + srcFile + " to " + dstFile);
+
+            String path = dstFile.getAbsolutePath();
+            synchronized (this) {
+                if (mPaths.size() == 0) {
+                    // We can either add files to the media provider, or provide an
+                    // ACTION_VIEW intent to the file directly. We base this decision
+                    // on the mime type of the first file; if it's media the platform
+                    // can deal with, use the media provider, if it's something else,
+                    // just launch an ACTION_VIEW on the file.
+                    mScanMedia = mimeType.startsWith("image/") ||
+                            mimeType.startsWith("video/") || mimeType.startsWith("audio/");
+                }
+                mPaths.add(path);
+                mMimeTypes.put(path, mimeType);
+            }
+            if (mScanMedia) {
+                MediaScannerConnection.scanFile(mContext, new String[] { path }, null, this);
             }
         }
-
-        // We can either add files to the media provider, or provide an ACTION_VIEW
-        // intent to the file directly. We base this decision on the mime type
-        // of the first file; if it's media the platform can deal with,
-        // use the media provider, if it's something else, just launch an ACTION_VIEW
-        // on the file.
-        String mimeType = mMimeTypes.get(mPaths.get(0));
-        if (mimeType.startsWith("image/") || mimeType.startsWith("video/") ||
-                mimeType.startsWith("audio/")) {
-            String[] arrayPaths = new String[mPaths.size()];
-            MediaScannerConnection.scanFile(mContext, mPaths.toArray(arrayPaths), null, this);
-            updateStateAndNotification(STATE_W4_MEDIA_SCANNER);
-        } else {
-            // We're done.
-            updateStateAndNotification(STATE_SUCCESS);
-        }
-
     }
 
     public boolean handleMessage(Message msg) {
@@ -444,7 +516,14 @@ public class BeamTransferManager implements Handler.Callback,
         } else if (msg.what == MSG_TRANSFER_TIMEOUT) {
             // No update on this transfer for a while, fail it.
             if (DBG) Log.d(TAG, "Transfer timed out for id: " + Integer.toString(mTransferId));
+            mStatistics.onTimeout();
             updateStateAndNotification(STATE_FAILED);
+        } else if (msg.what == MSG_STALL_CHECK) {
+            if (mState == STATE_IN_PROGRESS) {
+                if (DBG) Log.d(TAG, "No progress for " + STALL_MS + "ms");
+                mStatistics.onStall();
+            }
+            return true;
         }
         return false;
     }
@@ -455,13 +534,41 @@ public class BeamTransferManager implements Handler.Callback,
             mMediaUris.put(path, uri);
         }
         mUrisScanned++;
-        if (mUrisScanned == mPaths.size()) {
+        // Files may still be arriving while earlier ones are scanned
+        if (mState == STATE_W4_MEDIA_SCANNER && mUrisScanned == mPaths.size()) {
             // We're done
             updateStateAndNotification(STATE_SUCCESS);
         }
     }
 
 
+    /**
+     * Returns the metrics of this transfer, to be aggregated by BeamManager.
+     */
+    Bundle getStatistics() {
+        return mStatistics.toBundle(mState == STATE_SUCCESS);
+    }
+
+    long getContentLength(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return new File(uri.getPath()).length();
+        }
+        AssetFileDescriptor fd = null;
+        try {
+            fd = mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+            return fd != null ? fd.getLength() : -1;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     Intent buildViewIntent() {
         if (mPaths.size() == 0) return null;
 
@@ -500,7 +607,24 @@ public class BeamTransferManager implements Handler.Callback,
         }
     }
 
-    static File generateUniqueDestination(String path, String fileName) {
+    /**
+     * Returns the names of the entries of a directory, listed once so that
+     * unique names can be picked without probing the file system.
+     */
+    static HashSet<String> listNames(File dir) {
+        HashSet<String> names = new HashSet<String>();
+        String[] list = dir.list();
+        if (list != null) {
+            names.addAll(Arrays.asList(list));
+        }
+        return names;
+    }
+
+    /**
+     * Picks a name not in takenNames, and adds it to them.
+     */
+    static File generateUniqueDestination(String path, String fileName,
+            Set<String> takenNames) {
         int dotIndex = fileName.lastIndexOf(".");
         String extension = null;
         String fileNameWithoutExtension = null;
@@ -511,30 +635,29 @@ public class BeamTransferManager implements Handler.Callback,
             extension = fileName.substring(dotIndex);
             fileNameWithoutExtension = fileName.substring(0, dotIndex);
         }
-        File dstFile = new File(path + File.separator + fileName);
+        String name = fileName;
         int count = 0;
-        while (dstFile.exists()) {
-            dstFile = new File(path + File.separator + fileNameWithoutExtension + "-" +
-                    Integer.toString(count) + extension);
+        while (takenNames.contains(name)) {
+            name = fileNameWithoutExtension + "-" + Integer.toString(count) + extension;
             count++;
         }
-        return dstFile;
+        takenNames.add(name);
+        return new File(path + File.separator + name);
     }
 
     static File generateMultiplePath(String beamRoot) {
         // Generate a unique directory with the date
         String format = "yyyy-MM-dd";
         SimpleDateFormat sdf = new SimpleDateFormat(format, Locale.US);
-        String newPath = beamRoot + "beam-" + sdf.format(new Date());
-        File newFile = new File(newPath);
+        String date = sdf.format(new Date());
+        HashSet<String> names = listNames(new File(beamRoot));
+        String newName = "beam-" + date;
         int count = 0;
-        while (newFile.exists()) {
-            newPath = beamRoot + "beam-" + sdf.format(new Date()) + "-" +
-                    Integer.toString(count);
-            newFile = new File(newPath);
+        while (names.contains(newName)) {
+            newName = "beam-" + date + "-" + Integer.toString(count);
             count++;
         }
-        return newFile;
+        return new File(beamRoot + newName);
     }
 }
 
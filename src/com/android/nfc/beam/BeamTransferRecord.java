@@ -69,8 +69,10 @@ public class BeamTransferRecord implements Parcelable {
                 in.readTypedArray(uris, Uri.CREATOR);
             }
 
-            return new BeamTransferRecord(remoteDevice,
+            BeamTransferRecord record = new BeamTransferRecord(remoteDevice,
                     remoteActivating, uris);
+            record.id = in.readInt();
+            return record;
 
         }
 
@@ -94,5 +96,6 @@ public class BeamTransferRecord implements Parcelable {
         if (uris != null && uris.length > 0) {
             dest.writeTypedArray(uris, 0);
         }
+        dest.writeInt(id);
     }
 }
@@ -17,15 +17,25 @@
 
 package com.android.nfc.beam;
 
+import com.android.nfc.Histogram;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLUtils;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -38,6 +48,10 @@ import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.egl.EGLSurface;
 import javax.microedition.khronos.opengles.GL10;
 
+/**
+ * Renders the fireflies behind the Beam screenshot, on a render thread
+ * that lives as long as the renderer. Frames are drawn on vsync.
+ */
 public class FireflyRenderer {
     private static final String LOG_TAG = "NfcFireflyThread";
 
@@ -55,6 +69,13 @@ public class FireflyRenderer {
         EGL10.EGL_ALPHA_SIZE, 0,
         EGL10.EGL_DEPTH_SIZE, 0,
         EGL10.EGL_STENCIL_SIZE, 0,
+        EGL10.EGL_SURFACE_TYPE, EGL10.EGL_WINDOW_BIT | EGL10.EGL_PBUFFER_BIT,
+        EGL10.EGL_NONE
+    };
+
+    static final int[] sIdleSurfaceAttribs = {
+        EGL10.EGL_WIDTH, 1,
+        EGL10.EGL_HEIGHT, 1,
         EGL10.EGL_NONE
     };
 
@@ -77,6 +98,18 @@ public class FireflyRenderer {
     // Connecting order (draws a square)
     static final short[] mIndices = { 0, 1, 2, 0, 2, 3 };
 
+    // Frame times for dumpsys, in ms
+    static final long[] FRAME_MS_BOUNDS = new long[] {
+            2, 4, 8, 12, 16, 20, 33, 50, 100
+    };
+
+    // How long stop() waits for the render thread to let go of the surface
+    static final int STOP_TIMEOUT_MS = 500;
+
+    static final int MSG_PREPARE = 0;
+    static final int MSG_START = 1;
+    static final int MSG_STOP = 2;
+
     final Context mContext;
 
     // Buffer holding the vertices
@@ -90,13 +123,50 @@ public class FireflyRenderer {
 
     final Firefly[] mFireflies;
 
-    FireflyRenderThread mFireflyRenderThread;
-
-    // The surface to render the flies on, including width and height
-    SurfaceTexture mSurface;
+    // The render thread lives as long as the renderer; it keeps the EGL
+    // context and the texture between Beams, and only the window surface
+    // is created for each Beam.
+    final HandlerThread mRenderThread;
+    final Handler mHandler;
+    final RenderCallback mRenderCallback;
+    final ConditionVariable mStopped;
+    final long mFrameBudgetNanos;
+
+    final Histogram mInitMs = new Histogram("firefly_gl_init", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mStartMs = new Histogram("firefly_start", "ms",
+            Histogram.LATENCY_MS_BOUNDS);
+    final Histogram mFrameMs = new Histogram("firefly_frame", "ms", FRAME_MS_BOUNDS);
+
+    // Only used on the UI thread
+    boolean mStarted;
+
+    // All variables below are only used on the render thread
+    EGL10 mEgl;
+    EGLDisplay mEglDisplay;
+    EGLConfig mEglConfig;
+    EGLContext mEglContext;
+    // Kept current between Beams, so the texture can be loaded without a window
+    EGLSurface mIdleSurface;
+    EGLSurface mEglSurface;
+    GL10 mGL;
+    Choreographer mChoreographer;
+
+    // Holding the handle to the texture
+    int mTextureId;
+
+    boolean mRendering;
+    long mLastFrameNanos;
+    long mLastFrameCostNanos;
+
+    // The surface to render the flies on
     int mDisplayWidth;
     int mDisplayHeight;
 
+    // All variables below synchronized on this
+    int mFramesRendered;
+    int mFramesSkipped;
+
     public FireflyRenderer(Context context) {
         mContext = context;
 
@@ -123,6 +193,27 @@ public class FireflyRenderer {
         for (int i = 0; i < NUM_FIREFLIES; i++) {
             mFireflies[i] = new Firefly();
         }
+
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = wm.getDefaultDisplay().getRefreshRate();
+        if (refreshRate < 1f) {
+            refreshRate = 60f;
+        }
+        mFrameBudgetNanos = (long) (1000000000L / refreshRate);
+
+        mStopped = new ConditionVariable(true);
+        mRenderCallback = new RenderCallback();
+        mRenderThread = new HandlerThread(LOG_TAG);
+        mRenderThread.start();
+        mHandler = new Handler(mRenderThread.getLooper(), mRenderCallback);
+    }
+
+    /**
+     * Sets up OpenGL ahead of the first start(), if it isn't yet.
+     * May be called from any thread.
+     */
+    public void prepare() {
+        mHandler.sendEmptyMessage(MSG_PREPARE);
     }
 
     /**
@@ -130,237 +221,316 @@ public class FireflyRenderer {
      * Must be called from the UI-thread.
      */
     public void start(SurfaceTexture surface, int width, int height) {
-        mSurface = surface;
-        mDisplayWidth = width;
-        mDisplayHeight = height;
-
-        mFireflyRenderThread = new FireflyRenderThread();
-        mFireflyRenderThread.start();
+        mStarted = true;
+        mStopped.close();
+        mHandler.obtainMessage(MSG_START, width, height, surface).sendToTarget();
     }
 
     /**
-     * Stops rendering fireflies.
+     * Stops rendering fireflies, and waits for the render thread
+     * to let go of the surface.
      * Must be called from the UI-thread.
      */
     public void stop() {
-        if (mFireflyRenderThread != null) {
-            mFireflyRenderThread.finish();
-            try {
-                mFireflyRenderThread.join();
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, "Couldn't wait for FireflyRenderThread.");
-            }
-            mFireflyRenderThread = null;
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mHandler.sendEmptyMessage(MSG_STOP);
+        if (!mStopped.block(STOP_TIMEOUT_MS)) {
+            Log.e(LOG_TAG, "Couldn't wait for FireflyRenderThread.");
         }
     }
 
-    private class FireflyRenderThread extends Thread {
-        EGL10 mEgl;
-        EGLDisplay mEglDisplay;
-        EGLConfig mEglConfig;
-        EGLContext mEglContext;
-        EGLSurface mEglSurface;
-        GL10 mGL;
-
-        // Holding the handle to the texture
-        int mTextureId;
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("Fireflies: frames rendered=" + mFramesRendered +
+                    " skipped=" + mFramesSkipped + " budget=" +
+                    (mFrameBudgetNanos / 1000) + "us");
+        }
+        mInitMs.dump(pw);
+        mStartMs.dump(pw);
+        mFrameMs.dump(pw);
+    }
 
-        // Read/written by multiple threads
-        volatile boolean mFinished;
+    /**
+     * Runs on the render thread.
+     */
+    final class RenderCallback implements Handler.Callback, Choreographer.FrameCallback {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PREPARE:
+                    prepareGL();
+                    break;
+                case MSG_START:
+                    startRendering((SurfaceTexture) msg.obj, msg.arg1, msg.arg2);
+                    break;
+                case MSG_STOP:
+                    stopRendering();
+                    mStopped.open();
+                    break;
+            }
+            return true;
+        }
 
         @Override
-        public void run() {
-            if (!initGL()) {
-                Log.e(LOG_TAG, "Failed to initialize OpenGL.");
+        public void doFrame(long frameTimeNanos) {
+            if (!mRendering) {
                 return;
             }
-            loadStarTexture();
-
-            mGL.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-
-            mGL.glViewport(0, 0, mDisplayWidth, mDisplayHeight);
-
-            // make adjustments for screen ratio
-            mGL.glMatrixMode(GL10.GL_PROJECTION);
-            mGL.glLoadIdentity();
-            mGL.glFrustumf(-mDisplayWidth, mDisplayWidth, mDisplayHeight, -mDisplayHeight, NEAR_CLIPPING_PLANE, FAR_CLIPPING_PLANE);
-
-            // Switch back to modelview
-            mGL.glMatrixMode(GL10.GL_MODELVIEW);
-            mGL.glLoadIdentity();
-
-            mGL.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
-            mGL.glDepthMask(true);
-
-
-            for (Firefly firefly : mFireflies) {
-                firefly.reset();
+            mChoreographer.postFrameCallback(this);
+
+            long timeElapsedMs = mLastFrameNanos == 0 ? 0 :
+                    (frameTimeNanos - mLastFrameNanos) / 1000000;
+            if (mLastFrameCostNanos > mFrameBudgetNanos) {
+                // The last frame took more than a vsync; skip this one so the
+                // swap chain doesn't back up, and catch up on the next one.
+                mLastFrameCostNanos = 0;
+                synchronized (FireflyRenderer.this) {
+                    mFramesSkipped++;
+                }
+                return;
             }
+            mLastFrameNanos = frameTimeNanos;
 
-            for (int i = 0; i < 3; i++) {
-                // Call eglSwapBuffers 3 times - this will allocate the necessary
-                // buffers, and make sure the animation looks smooth from the start.
-                mGL.glClear(GL10.GL_COLOR_BUFFER_BIT);
-                if (!mEgl.eglSwapBuffers(mEglDisplay, mEglSurface)) {
-                    Log.e(LOG_TAG, "Could not swap buffers");
-                    mFinished = true;
-                }
+            long start = System.nanoTime();
+            if (!renderFrame(timeElapsedMs)) {
+                Log.e(LOG_TAG, "Could not swap buffers");
+                stopRendering();
+                return;
+            }
+            mLastFrameCostNanos = System.nanoTime() - start;
+            mFrameMs.add(mLastFrameCostNanos / 1000000);
+            synchronized (FireflyRenderer.this) {
+                mFramesRendered++;
             }
+        }
+    }
 
-            long startTime = System.currentTimeMillis();
+    boolean prepareGL() {
+        if (mEglContext != null) {
+            return true;
+        }
+        long start = SystemClock.elapsedRealtime();
+        if (!initGL()) {
+            Log.e(LOG_TAG, "Failed to initialize OpenGL.");
+            finishGL();
+            return false;
+        }
+        loadStarTexture();
+        mInitMs.add(SystemClock.elapsedRealtime() - start);
+        return true;
+    }
 
-            while (!mFinished) {
-                long timeElapsedMs = System.currentTimeMillis() - startTime;
-                startTime = System.currentTimeMillis();
+    void startRendering(SurfaceTexture surface, int width, int height) {
+        long start = SystemClock.elapsedRealtime();
+        if (!prepareGL()) {
+            return;
+        }
+        mEglSurface = mEgl.eglCreateWindowSurface(mEglDisplay, mEglConfig, surface, null);
+        if (mEglSurface == null || mEglSurface == EGL10.EGL_NO_SURFACE) {
+            int error = mEgl.eglGetError();
+            Log.e(LOG_TAG,"createWindowSurface returned error " + Integer.toString(error));
+            mEglSurface = null;
+            return;
+        }
+        if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
+            Log.e(LOG_TAG, "eglMakeCurrent failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            destroyWindowSurface();
+            return;
+        }
+        mDisplayWidth = width;
+        mDisplayHeight = height;
 
-                checkCurrent();
+        mGL.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 
-                mGL.glClear(GL10.GL_COLOR_BUFFER_BIT);
-                mGL.glLoadIdentity();
+        mGL.glViewport(0, 0, mDisplayWidth, mDisplayHeight);
 
-                mGL.glEnable(GL10.GL_TEXTURE_2D);
-                mGL.glEnable(GL10.GL_BLEND);
-                mGL.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE);
+        // make adjustments for screen ratio
+        mGL.glMatrixMode(GL10.GL_PROJECTION);
+        mGL.glLoadIdentity();
+        mGL.glFrustumf(-mDisplayWidth, mDisplayWidth, mDisplayHeight, -mDisplayHeight, NEAR_CLIPPING_PLANE, FAR_CLIPPING_PLANE);
 
-                for (Firefly firefly : mFireflies) {
-                    firefly.updatePositionAndScale(timeElapsedMs);
-                    firefly.draw(mGL);
-                }
+        // Switch back to modelview
+        mGL.glMatrixMode(GL10.GL_MODELVIEW);
+        mGL.glLoadIdentity();
 
-                if (!mEgl.eglSwapBuffers(mEglDisplay, mEglSurface)) {
-                    Log.e(LOG_TAG, "Could not swap buffers");
-                    mFinished = true;
-                }
+        mGL.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
+        mGL.glDepthMask(true);
 
-                long elapsed = System.currentTimeMillis() - startTime;
-                try {
-                    Thread.sleep(Math.max(30 - elapsed, 0));
-                } catch (InterruptedException e) {
+        for (Firefly firefly : mFireflies) {
+            firefly.reset();
+        }
 
-                }
+        for (int i = 0; i < 3; i++) {
+            // Call eglSwapBuffers 3 times - this will allocate the necessary
+            // buffers, and make sure the animation looks smooth from the start.
+            mGL.glClear(GL10.GL_COLOR_BUFFER_BIT);
+            if (!mEgl.eglSwapBuffers(mEglDisplay, mEglSurface)) {
+                Log.e(LOG_TAG, "Could not swap buffers");
+                destroyWindowSurface();
+                return;
             }
-            finishGL();
         }
+        mStartMs.add(SystemClock.elapsedRealtime() - start);
 
-        public void finish() {
-            mFinished = true;
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
         }
+        mRendering = true;
+        mLastFrameNanos = 0;
+        mLastFrameCostNanos = 0;
+        mChoreographer.postFrameCallback(mRenderCallback);
+    }
 
-        void loadStarTexture() {
-            int[] textureIds = new int[1];
-            mGL.glGenTextures(1, textureIds, 0);
-            mTextureId = textureIds[0];
+    void stopRendering() {
+        if (mRendering) {
+            mRendering = false;
+            mChoreographer.removeFrameCallback(mRenderCallback);
+        }
+        destroyWindowSurface();
+    }
 
-            InputStream in = null;
-            try {
-                // Remember that both texture dimensions must be a power of 2!
-                in = mContext.getAssets().open("star.png");
+    boolean renderFrame(long timeElapsedMs) {
+        mGL.glClear(GL10.GL_COLOR_BUFFER_BIT);
+        mGL.glLoadIdentity();
 
-                Bitmap bitmap = BitmapFactory.decodeStream(in);
-                mGL.glBindTexture(GL10.GL_TEXTURE_2D, mTextureId);
+        mGL.glEnable(GL10.GL_TEXTURE_2D);
+        mGL.glEnable(GL10.GL_BLEND);
+        mGL.glBlendFunc(GL10.GL_SRC_ALPHA, GL10.GL_ONE);
 
-                mGL.glTexParameterx(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-                mGL.glTexParameterx(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        for (Firefly firefly : mFireflies) {
+            firefly.updatePositionAndScale(timeElapsedMs);
+            firefly.draw(mGL);
+        }
 
-                GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
+        return mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
+    }
 
-                bitmap.recycle();
+    void loadStarTexture() {
+        int[] textureIds = new int[1];
+        mGL.glGenTextures(1, textureIds, 0);
+        mTextureId = textureIds[0];
 
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "IOException opening assets.");
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) { }
-                }
-            }
-        }
+        InputStream in = null;
+        try {
+            // Remember that both texture dimensions must be a power of 2!
+            in = mContext.getAssets().open("star.png");
 
-        private void checkCurrent() {
-            if (!mEglContext.equals(mEgl.eglGetCurrentContext()) ||
-                    !mEglSurface.equals(mEgl.eglGetCurrentSurface(EGL10.EGL_DRAW))) {
-                if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
-                    throw new RuntimeException("eglMakeCurrent failed "
-                            + GLUtils.getEGLErrorString(mEgl.eglGetError()));
-                }
+            Bitmap bitmap = BitmapFactory.decodeStream(in);
+            mGL.glBindTexture(GL10.GL_TEXTURE_2D, mTextureId);
+
+            mGL.glTexParameterx(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+            mGL.glTexParameterx(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+
+            GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bitmap, 0);
+
+            bitmap.recycle();
+
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "IOException opening assets.");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
             }
         }
+    }
 
-        boolean initGL() {
-            // Initialize openGL engine
-            mEgl = (EGL10) EGLContext.getEGL();
+    boolean initGL() {
+        // Initialize openGL engine
+        mEgl = (EGL10) EGLContext.getEGL();
 
-            mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-            if (mEglDisplay == EGL10.EGL_NO_DISPLAY) {
-                Log.e(LOG_TAG, "eglGetDisplay failed " +
-                        GLUtils.getEGLErrorString(mEgl.eglGetError()));
-                return false;
-            }
+        mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        if (mEglDisplay == EGL10.EGL_NO_DISPLAY) {
+            Log.e(LOG_TAG, "eglGetDisplay failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            return false;
+        }
 
-            int[] version = new int[2];
-            if (!mEgl.eglInitialize(mEglDisplay, version)) {
-                Log.e(LOG_TAG, "eglInitialize failed " +
-                        GLUtils.getEGLErrorString(mEgl.eglGetError()));
-                return false;
-            }
+        int[] version = new int[2];
+        if (!mEgl.eglInitialize(mEglDisplay, version)) {
+            Log.e(LOG_TAG, "eglInitialize failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            return false;
+        }
 
-            mEglConfig = chooseEglConfig();
-            if (mEglConfig == null) {
-                Log.e(LOG_TAG, "eglConfig not initialized.");
-                return false;
-            }
+        mEglConfig = chooseEglConfig();
+        if (mEglConfig == null) {
+            Log.e(LOG_TAG, "eglConfig not initialized.");
+            return false;
+        }
 
-            mEglContext = mEgl.eglCreateContext(mEglDisplay, mEglConfig, EGL10.EGL_NO_CONTEXT, null);
+        mEglContext = mEgl.eglCreateContext(mEglDisplay, mEglConfig, EGL10.EGL_NO_CONTEXT, null);
+        if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
+            Log.e(LOG_TAG, "eglCreateContext failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            mEglContext = null;
+            return false;
+        }
 
-            mEglSurface = mEgl.eglCreateWindowSurface(mEglDisplay, mEglConfig, mSurface, null);
+        mIdleSurface = mEgl.eglCreatePbufferSurface(mEglDisplay, mEglConfig, sIdleSurfaceAttribs);
+        if (mIdleSurface == null || mIdleSurface == EGL10.EGL_NO_SURFACE) {
+            Log.e(LOG_TAG, "eglCreatePbufferSurface failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            mIdleSurface = null;
+            return false;
+        }
 
-            if (mEglSurface == null || mEglSurface == EGL10.EGL_NO_SURFACE) {
-                int error = mEgl.eglGetError();
-                Log.e(LOG_TAG,"createWindowSurface returned error " + Integer.toString(error));
-                return false;
-            }
+        if (!mEgl.eglMakeCurrent(mEglDisplay, mIdleSurface, mIdleSurface, mEglContext)) {
+            Log.e(LOG_TAG, "eglMakeCurrent failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+            return false;
+        }
 
-            if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
-                Log.e(LOG_TAG, "eglMakeCurrent failed " +
-                        GLUtils.getEGLErrorString(mEgl.eglGetError()));
-                return false;
-            }
+        mGL = (GL10) mEglContext.getGL();
 
-            mGL = (GL10) mEglContext.getGL();
+        return true;
+    }
 
-            return true;
+    private void destroyWindowSurface() {
+        if (mEglSurface == null) {
+            return;
         }
+        // Go back to the idle surface, keeping the context and texture
+        mEgl.eglMakeCurrent(mEglDisplay, mIdleSurface, mIdleSurface, mEglContext);
+        mEgl.eglDestroySurface(mEglDisplay, mEglSurface);
+        mEglSurface = null;
+    }
 
-        private void finishGL() {
-            if (mEgl == null || mEglDisplay == null) {
-                // Nothing to free
-                return;
-            }
-            // Unbind the current surface and context from the display
-            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
-                    EGL10.EGL_NO_CONTEXT);
+    private void finishGL() {
+        if (mEgl == null || mEglDisplay == null) {
+            // Nothing to free
+            return;
+        }
+        // Unbind the current surface and context from the display
+        mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                EGL10.EGL_NO_CONTEXT);
 
-            if (mEglSurface != null) {
-                mEgl.eglDestroySurface(mEglDisplay, mEglSurface);
-            }
+        if (mIdleSurface != null) {
+            mEgl.eglDestroySurface(mEglDisplay, mIdleSurface);
+            mIdleSurface = null;
+        }
 
-            if (mEglContext != null) {
-                mEgl.eglDestroyContext(mEglDisplay, mEglContext);
-            }
+        if (mEglContext != null) {
+            mEgl.eglDestroyContext(mEglDisplay, mEglContext);
+            mEglContext = null;
         }
+    }
 
-        private EGLConfig chooseEglConfig() {
-            int[] configsCount = new int[1];
-            EGLConfig[] configs = new EGLConfig[1];
-            if (!mEgl.eglChooseConfig(mEglDisplay, sEglConfig, configs, 1, configsCount)) {
-                throw new IllegalArgumentException("eglChooseConfig failed " +
-                        GLUtils.getEGLErrorString(mEgl.eglGetError()));
-            } else if (configsCount[0] > 0) {
-                return configs[0];
-            }
-            return null;
+    private EGLConfig chooseEglConfig() {
+        int[] configsCount = new int[1];
+        EGLConfig[] configs = new EGLConfig[1];
+        if (!mEgl.eglChooseConfig(mEglDisplay, sEglConfig, configs, 1, configsCount)) {
+            throw new IllegalArgumentException("eglChooseConfig failed " +
+                    GLUtils.getEGLErrorString(mEgl.eglGetError()));
+        } else if (configsCount[0] > 0) {
+            return configs[0];
         }
+        return null;
     }
 
     private class Firefly {
@@ -32,6 +32,7 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.os.AsyncTask;
@@ -63,6 +64,8 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -91,9 +94,16 @@ import java.util.List;
 public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
         TimeAnimator.TimeListener, TextureView.SurfaceTextureListener, android.view.Window.Callback {
     static final String TAG = "SendUi";
+    static final boolean DBG = false;
 
     static final float INTERMEDIATE_SCALE = 0.6f;
 
+    // Screenshots are captured at the scale the pre-animation ends at,
+    // and drawn without alpha; the view scales them back up to fit.
+    static final float SCREENSHOT_SCALE = INTERMEDIATE_SCALE;
+    static final Bitmap.Config SCREENSHOT_CONFIG = Bitmap.Config.RGB_565;
+    static final int SCREENSHOT_POOL_SIZE = 2;
+
     static final float[] PRE_SCREENSHOT_SCALE = {1.0f, INTERMEDIATE_SCALE};
     static final int PRE_DURATION_MS = 350;
 
@@ -146,6 +156,8 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
     final TextView mTextHint;
     final TextView mTextRetry;
     final Callback mCallback;
+    final BitmapPool mBitmapPool;
+    final Paint mScreenshotPaint;
 
     // The mFrameCounter animation is purely used to count down a certain
     // number of (vsync'd) frames. This is needed because the first 3
@@ -202,6 +214,8 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
 
         mDisplayMetrics = new DisplayMetrics();
         mDisplayMatrix = new Matrix();
+        mBitmapPool = new BitmapPool(SCREENSHOT_POOL_SIZE);
+        mScreenshotPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
         mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         mStatusBarManager = (StatusBarManager) context.getSystemService(Context.STATUS_BAR_SERVICE);
 
@@ -322,6 +336,17 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
         }
         mState = STATE_W4_SCREENSHOT;
         new ScreenshotTask().execute();
+        if (mFireflyRenderer != null) {
+            // Set up GL while the screenshot is taken
+            mFireflyRenderer.prepare();
+        }
+    }
+
+    void setScreenshotBitmap(Bitmap bitmap) {
+        if (mScreenshotBitmap != null && mScreenshotBitmap != bitmap) {
+            mBitmapPool.release(mScreenshotBitmap);
+        }
+        mScreenshotBitmap = bitmap;
     }
 
     /** Show pre-send animation */
@@ -460,7 +485,7 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
                 // We didn't build up any animation state yet, but
                 // did store the bitmap. Clear out the bitmap, reset
                 // state and bail.
-                mScreenshotBitmap = null;
+                setScreenshotBitmap(null);
                 mState = STATE_IDLE;
                 return;
             default:
@@ -528,7 +553,9 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
         mAlphaDownAnimator.cancel();
         mWindowManager.removeView(mDecor);
         mStatusBarManager.disable(StatusBarManager.DISABLE_NONE);
-        mScreenshotBitmap = null;
+        // The view must let go of the bitmap before it is reused
+        mScreenshotView.setImageBitmap(null);
+        setScreenshotBitmap(null);
         if (mToastString != null) {
             Toast.makeText(mContext, mToastString, Toast.LENGTH_LONG).show();
         }
@@ -560,15 +587,16 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
         protected void onPostExecute(Bitmap result) {
             if (mState == STATE_W4_SCREENSHOT) {
                 // Screenshot done, wait for request to start preSend anim
-                mScreenshotBitmap = result;
+                setScreenshotBitmap(result);
                 mState = STATE_W4_PRESEND;
             } else if (mState == STATE_W4_SCREENSHOT_THEN_STOP) {
                 // We were asked to finish, move to idle state and exit
+                mBitmapPool.release(result);
                 mState = STATE_IDLE;
             } else if (mState == STATE_W4_SCREENSHOT_PRESEND_REQUESTED ||
                     mState == STATE_W4_SCREENSHOT_PRESEND_NFC_TAP_REQUESTED) {
                 if (result != null) {
-                    mScreenshotBitmap = result;
+                    setScreenshotBitmap(result);
                     boolean requestTap = (mState == STATE_W4_SCREENSHOT_PRESEND_NFC_TAP_REQUESTED);
                     mState = STATE_W4_PRESEND;
                     showPreSend(requestTap);
@@ -580,12 +608,57 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
                 }
             } else {
                 Log.e(TAG, "Invalid state on screenshot completion: " + Integer.toString(mState));
+                mBitmapPool.release(result);
             }
         }
     };
 
     /**
-     * Returns a screenshot of the current display contents.
+     * Keeps screenshot bitmaps between Beams, so that taking a screenshot
+     * doesn't need a large allocation each time. Bitmaps are acquired on the
+     * screenshot thread and released on the UI thread.
+     */
+    static final class BitmapPool {
+        final int mMaxSize;
+
+        // All variables below synchronized on this
+        final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+
+        BitmapPool(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        /**
+         * @return a mutable bitmap of the given size; its contents are undefined
+         */
+        Bitmap acquire(int width, int height, Bitmap.Config config) {
+            int bytes = width * height * (config == Bitmap.Config.ARGB_8888 ? 4 : 2);
+            synchronized (this) {
+                for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+                    Bitmap bitmap = mBitmaps.get(i);
+                    if (bitmap.getAllocationByteCount() >= bytes) {
+                        mBitmaps.remove(i);
+                        bitmap.reconfigure(width, height, config);
+                        return bitmap;
+                    }
+                }
+            }
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        void release(Bitmap bitmap) {
+            if (bitmap == null) return;
+            synchronized (this) {
+                if (mBitmaps.size() < mMaxSize && !mBitmaps.contains(bitmap)) {
+                    mBitmaps.add(bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a screenshot of the current display contents, scaled down by
+     * SCREENSHOT_SCALE. The bitmap comes from mBitmapPool.
      */
     Bitmap createScreenshot() {
         // We need to orient the screenshot correctly (and the Surface api seems to
@@ -618,49 +691,55 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
             dims[1] = Math.abs(dims[1]);
         }
 
-        Bitmap bitmap = SurfaceControl.screenshot((int) dims[0], (int) dims[1]);
+        // Take the screenshot at the size it will be shown at
+        int screenshotWidth = Math.round(dims[0] * SCREENSHOT_SCALE);
+        int screenshotHeight = Math.round(dims[1] * SCREENSHOT_SCALE);
+        Bitmap screenshot = SurfaceControl.screenshot(screenshotWidth, screenshotHeight);
         // Bail if we couldn't take the screenshot
-        if (bitmap == null) {
+        if (screenshot == null) {
             return null;
         }
 
-        if (requiresRotation) {
-            // Rotate the screenshot to the current orientation
-            Bitmap ss = Bitmap.createBitmap(mDisplayMetrics.widthPixels,
-                    mDisplayMetrics.heightPixels, Bitmap.Config.ARGB_8888);
-            Canvas c = new Canvas(ss);
-            c.translate(ss.getWidth() / 2, ss.getHeight() / 2);
-            c.rotate(360f - degrees);
-            c.translate(-dims[0] / 2, -dims[1] / 2);
-            c.drawBitmap(bitmap, 0, 0, null);
-
-            bitmap = ss;
-        }
-
         // TODO this is somewhat device-specific; need generic solution.
         // Crop off the status bar and the nav bar
         // Portrait: 0, statusBarHeight, width, height - status - nav
         // Landscape: 0, statusBarHeight, width - navBar, height - status
+        int width = mDisplayMetrics.widthPixels;
+        int height = mDisplayMetrics.heightPixels;
         int newLeft = 0;
         int newTop = statusBarHeight;
-        int newWidth = bitmap.getWidth();
-        int newHeight = bitmap.getHeight();
+        int newWidth = width;
+        int newHeight = height;
         float smallestWidth = (float)Math.min(newWidth, newHeight);
         float smallestWidthDp = smallestWidth / (mDisplayMetrics.densityDpi / 160f);
-        if (bitmap.getWidth() < bitmap.getHeight()) {
+        if (width < height) {
             // Portrait mode: status bar is at the top, navbar bottom, width unchanged
-            newHeight = bitmap.getHeight() - statusBarHeight - navBarHeight;
+            newHeight = height - statusBarHeight - navBarHeight;
         } else {
             // Landscape mode: status bar is at the top
             // Navbar: bottom on >599dp width devices, otherwise to the side
             if (smallestWidthDp > 599) {
-                newHeight = bitmap.getHeight() - statusBarHeight - navBarHeightLandscape;
+                newHeight = height - statusBarHeight - navBarHeightLandscape;
             } else {
-                newHeight = bitmap.getHeight() - statusBarHeight;
-                newWidth = bitmap.getWidth() - navBarWidth;
+                newHeight = height - statusBarHeight;
+                newWidth = width - navBarWidth;
             }
         }
-        bitmap = Bitmap.createBitmap(bitmap, newLeft, newTop, newWidth, newHeight);
+
+        // Rotate to the current orientation and crop in a single draw,
+        // straight into a pooled bitmap.
+        Bitmap bitmap = mBitmapPool.acquire(Math.round(newWidth * SCREENSHOT_SCALE),
+                Math.round(newHeight * SCREENSHOT_SCALE), SCREENSHOT_CONFIG);
+        Canvas c = new Canvas(bitmap);
+        c.translate(-newLeft * SCREENSHOT_SCALE, -newTop * SCREENSHOT_SCALE);
+        if (requiresRotation) {
+            c.translate(width * SCREENSHOT_SCALE / 2, height * SCREENSHOT_SCALE / 2);
+            c.rotate(360f - degrees);
+            c.translate(-screenshotWidth / 2f, -screenshotHeight / 2f);
+        }
+        c.drawBitmap(screenshot, 0, 0, mScreenshotPaint);
+        c.setBitmap(null);
+        screenshot.recycle();
 
         return bitmap;
     }
@@ -751,6 +830,16 @@ public class SendUi implements Animator.AnimatorListener, View.OnTouchListener,
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) { }
 
+    /**
+     * Unlike the other methods, may be called from any thread.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("SendUi state=" + mState);
+        if (mFireflyRenderer != null) {
+            mFireflyRenderer.dump(pw);
+        }
+    }
+
     public void showSendHint() {
         if (mAlphaDownAnimator.isRunning()) {
            mAlphaDownAnimator.cancel();
@@ -81,6 +81,27 @@ public class AidRoutingManager {
         if (DBG) Log.d(TAG, "mAidMatchingSupport=0x" + Integer.toHexString(mAidMatchingSupport));
     }
 
+    /**
+     * For tests, which override the calls into the controller below.
+     */
+    AidRoutingManager(int defaultRoute, int defaultOffHostRoute, int aidMatchingSupport) {
+        mDefaultRoute = defaultRoute;
+        mDefaultOffHostRoute = defaultOffHostRoute;
+        mAidMatchingSupport = aidMatchingSupport;
+    }
+
+    void routeAids(String aid, int route) {
+        NfcService.getInstance().routeAids(aid, route);
+    }
+
+    void unrouteAids(String aid) {
+        NfcService.getInstance().unrouteAids(aid);
+    }
+
+    void commitRouting() {
+        NfcService.getInstance().commitRouting();
+    }
+
     public boolean supportsAidPrefixRouting() {
         return mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX ||
                 mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY;
@@ -104,7 +125,7 @@ public class AidRoutingManager {
                 if (DBG) Log.d(TAG, "Unrouting exact AID " + aid);
             }
 
-            NfcService.getInstance().unrouteAids(aid);
+            unrouteAids(aid);
         }
     }
 
@@ -159,7 +180,7 @@ public class AidRoutingManager {
                                     Log.d(TAG, "Adding AID " + defaultRouteAid + " for default " +
                                             "route, because a conflicting shorter AID will be " +
                                             "added to the routing table");
-                                NfcService.getInstance().routeAids(defaultRouteAid, mDefaultRoute);
+                                routeAids(defaultRouteAid, mDefaultRoute);
                             }
                         }
                     }
@@ -179,17 +200,16 @@ public class AidRoutingManager {
                                 if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
                                         + Integer.toString(route));
                                 // Cut off '*' since controller anyway treats all AIDs as a prefix
-                                NfcService.getInstance().routeAids(aid.substring(0,
-                                                aid.length() - 1), route);
+                                routeAids(aid.substring(0, aid.length() - 1), route);
                             } else if (mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX) {
                                 if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
                                         + Integer.toString(route));
-                                NfcService.getInstance().routeAids(aid, route);
+                                routeAids(aid, route);
                             }
                         } else {
                             if (DBG) Log.d(TAG, "Routing exact AID " + aid + " to route "
                                     + Integer.toString(route));
-                            NfcService.getInstance().routeAids(aid, route);
+                            routeAids(aid, route);
                         }
                     }
                 }
@@ -197,7 +217,7 @@ public class AidRoutingManager {
         }
 
         // And finally commit the routing
-        NfcService.getInstance().commitRouting();
+        commitRouting();
 
         return true;
     }
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.NfcFServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Ordered log of the changes that card emulation state is derived from:
+ * the services of a user, and the preferred payment and foreground services.
+ * <p>Producers append changes instead of pushing them to every component
+ * right away. Pending changes are folded into a single {@link Batch} and
+ * handed to the {@link Consumer}, so a burst of updates, e.g. from a
+ * multi-package install or a restore, causes one recomputation and one
+ * routing commit. Each change gets a version number; a batch covers a range
+ * of versions, and the log tracks up to which version its consumer has
+ * applied changes.
+ * <p>Batches are applied on the looper the log was created with, or right
+ * away by {@link #flush}, which callers use before reading derived state.
+ * {@link #replay} runs a recorded sequence of changes through the same
+ * folding without a Handler, for tests and benchmarks; replaying into a
+ * {@link RegisteredAidCache} with a fake {@link AidRoutingManager} runs the
+ * AID cache and routing table updates of each batch.
+ */
+class CardEmulationChangeLog {
+    static final String TAG = "CardEmulationChangeLog";
+    static final boolean DBG = false;
+
+    static final int CHANGE_SERVICES = 0;
+    static final int CHANGE_PREFERRED_PAYMENT = 1;
+    static final int CHANGE_PREFERRED_FOREGROUND = 2;
+    static final int CHANGE_NFCF_SERVICES = 3;
+    static final int CHANGE_NFCF_SERVICES_DELTA = 4;
+
+    static final String[] CHANGE_NAMES = new String[] {
+            "services", "preferred_payment", "preferred_foreground", "nfcf_services",
+            "nfcf_services_delta"
+    };
+
+    // Number of changes kept for dumpsys
+    static final int HISTORY_SIZE = 32;
+
+    public interface Consumer {
+        /**
+         * Applies a batch of changes. Batches are delivered one at a time,
+         * in version order.
+         */
+        void onChanges(Batch batch);
+    }
+
+    /**
+     * A single change; instances are immutable once appended.
+     */
+    static final class Change {
+        final int type;
+        final int userId;
+        final List<ApduServiceInfo> services;
+        final List<NfcFServiceInfo> nfcFServices;
+        final List<ComponentName> removed;
+        final ComponentName component;
+        long version;
+        long timeMs;
+
+        Change(int type, int userId, List<ApduServiceInfo> services,
+                List<NfcFServiceInfo> nfcFServices, List<ComponentName> removed,
+                ComponentName component) {
+            this.type = type;
+            this.userId = userId;
+            this.services = services;
+            this.nfcFServices = nfcFServices;
+            this.removed = removed;
+            this.component = component;
+        }
+
+        static Change services(int userId, List<ApduServiceInfo> services) {
+            return new Change(CHANGE_SERVICES, userId, services, null, null, null);
+        }
+
+        static Change preferredPayment(ComponentName service) {
+            return new Change(CHANGE_PREFERRED_PAYMENT, -1, null, null, null, service);
+        }
+
+        static Change preferredForeground(ComponentName service) {
+            return new Change(CHANGE_PREFERRED_FOREGROUND, -1, null, null, null, service);
+        }
+
+        static Change nfcFServices(int userId, List<NfcFServiceInfo> services) {
+            return new Change(CHANGE_NFCF_SERVICES, userId, null, services, null, null);
+        }
+
+        static Change nfcFServicesDelta(int userId, List<NfcFServiceInfo> updated,
+                List<ComponentName> removed) {
+            return new Change(CHANGE_NFCF_SERVICES_DELTA, userId, null, updated, removed, null);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + version + " " + CHANGE_NAMES[type] +
+                    (userId >= 0 ? " user=" + userId : "") +
+                    (component != null ? " " + component : "");
+        }
+    }
+
+    /**
+     * NFC-F services of a user after folding: either the complete list of
+     * services, or a delta to apply to the last complete list.
+     */
+    static final class NfcFChange {
+        boolean complete;
+        final LinkedHashMap<ComponentName, NfcFServiceInfo> updated =
+                new LinkedHashMap<ComponentName, NfcFServiceInfo>();
+        final LinkedHashSet<ComponentName> removed = new LinkedHashSet<ComponentName>();
+    }
+
+    /**
+     * The net effect of a range of changes. Only the latest service list of
+     * each user and the latest preferred services are kept.
+     */
+    static final class Batch {
+        long fromVersion;
+        long toVersion;
+        int changeCount;
+        final SparseArray<List<ApduServiceInfo>> services =
+                new SparseArray<List<ApduServiceInfo>>();
+        boolean preferredPaymentChanged;
+        ComponentName preferredPayment;
+        boolean preferredForegroundChanged;
+        ComponentName preferredForeground;
+        final SparseArray<NfcFChange> nfcFServices = new SparseArray<NfcFChange>();
+
+        boolean hasHceChanges() {
+            return services.size() > 0 || preferredPaymentChanged ||
+                    preferredForegroundChanged;
+        }
+    }
+
+    final Consumer mConsumer;
+    final Handler mHandler;
+    final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    // Serializes batches; taken before the lock of the log
+    final Object mApplyLock = new Object();
+
+    // All variables below synchronized on this
+    final ArrayList<Change> mPending = new ArrayList<Change>();
+    final ArrayList<Change> mHistory = new ArrayList<Change>();
+    long mVersion;
+    long mAppliedVersion;
+    boolean mDrainScheduled;
+    int mBatchCount;
+    int mChangeCount;
+    long mLastBatchMs = -1;
+
+    CardEmulationChangeLog(Looper looper, Consumer consumer) {
+        mConsumer = consumer;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Appends a change and schedules it to be applied; returns its version.
+     */
+    long append(Change change) {
+        synchronized (this) {
+            change.version = ++mVersion;
+            change.timeMs = SystemClock.elapsedRealtime();
+            mPending.add(change);
+            mChangeCount++;
+            mHistory.add(change);
+            if (mHistory.size() > HISTORY_SIZE) {
+                mHistory.remove(0);
+            }
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+            if (DBG) Log.d(TAG, "Appended " + change);
+            return change.version;
+        }
+    }
+
+    /**
+     * Applies all pending changes on the calling thread. Returns the version
+     * up to which changes have been applied.
+     */
+    long flush() {
+        synchronized (mApplyLock) {
+            ArrayList<Change> pending;
+            synchronized (this) {
+                mDrainScheduled = false;
+                if (mPending.isEmpty()) {
+                    return mAppliedVersion;
+                }
+                pending = new ArrayList<Change>(mPending);
+                mPending.clear();
+            }
+            long start = SystemClock.elapsedRealtime();
+            Batch batch = fold(pending);
+            mConsumer.onChanges(batch);
+            synchronized (this) {
+                mAppliedVersion = batch.toVersion;
+                mBatchCount++;
+                mLastBatchMs = SystemClock.elapsedRealtime() - start;
+                if (DBG) Log.d(TAG, "Applied " + batch.changeCount + " changes up to #" +
+                        batch.toVersion + " in " + mLastBatchMs + "ms");
+                return mAppliedVersion;
+            }
+        }
+    }
+
+    /**
+     * Folds an ordered list of changes into their net effect.
+     */
+    static Batch fold(List<Change> changes) {
+        Batch batch = new Batch();
+        batch.changeCount = changes.size();
+        if (!changes.isEmpty()) {
+            batch.fromVersion = changes.get(0).version;
+            batch.toVersion = changes.get(changes.size() - 1).version;
+        }
+        for (Change change : changes) {
+            switch (change.type) {
+                case CHANGE_SERVICES:
+                    // Service lists are complete, the last one wins
+                    batch.services.put(change.userId, change.services);
+                    break;
+                case CHANGE_PREFERRED_PAYMENT:
+                    batch.preferredPaymentChanged = true;
+                    batch.preferredPayment = change.component;
+                    break;
+                case CHANGE_PREFERRED_FOREGROUND:
+                    batch.preferredForegroundChanged = true;
+                    batch.preferredForeground = change.component;
+                    break;
+                case CHANGE_NFCF_SERVICES:
+                    NfcFChange complete = new NfcFChange();
+                    complete.complete = true;
+                    for (NfcFServiceInfo service : change.nfcFServices) {
+                        complete.updated.put(service.getComponent(), service);
+                    }
+                    batch.nfcFServices.put(change.userId, complete);
+                    break;
+                case CHANGE_NFCF_SERVICES_DELTA:
+                    NfcFChange delta = batch.nfcFServices.get(change.userId);
+                    if (delta == null) {
+                        delta = new NfcFChange();
+                        batch.nfcFServices.put(change.userId, delta);
+                    }
+                    for (ComponentName component : change.removed) {
+                        delta.updated.remove(component);
+                        if (!delta.complete) {
+                            delta.removed.add(component);
+                        }
+                    }
+                    for (NfcFServiceInfo service : change.nfcFServices) {
+                        delta.removed.remove(service.getComponent());
+                        delta.updated.put(service.getComponent(), service);
+                    }
+                    break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Replays recorded changes into a consumer on the calling thread, folding
+     * up to batchSize consecutive changes into each batch. Versions are
+     * assigned in order, starting at 1. Returns the number of batches.
+     */
+    static int replay(List<Change> changes, int batchSize, Consumer consumer) {
+        int batches = 0;
+        for (int i = 0; i < changes.size(); i += batchSize) {
+            List<Change> slice = changes.subList(i, Math.min(i + batchSize, changes.size()));
+            for (int j = 0; j < slice.size(); j++) {
+                slice.get(j).version = i + j + 1;
+            }
+            consumer.onChanges(fold(slice));
+            batches++;
+        }
+        return batches;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Card emulation change log:");
+        pw.println("    version=" + mVersion + " applied=" + mAppliedVersion +
+                " pending=" + mPending.size() + " changes=" + mChangeCount +
+                " batches=" + mBatchCount + " last batch=" + mLastBatchMs + "ms");
+        for (Change change : mHistory) {
+            pw.println("    " + change + " at " + change.timeMs);
+        }
+    }
+}
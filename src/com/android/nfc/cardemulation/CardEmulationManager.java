@@ -17,6 +17,7 @@ package com.android.nfc.cardemulation;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.content.ComponentName;
@@ -30,6 +31,7 @@ import android.nfc.cardemulation.NfcFServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.NfcFCardEmulation;
 import android.os.Binder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.PowerManager;
@@ -59,7 +61,7 @@ import com.android.nfc.cardemulation.RegisteredNfcFServicesCache;
  */
 public class CardEmulationManager implements RegisteredServicesCache.Callback,
         RegisteredNfcFServicesCache.Callback, PreferredServices.Callback,
-        EnabledNfcFServices.Callback {
+        EnabledNfcFServices.Callback, CardEmulationChangeLog.Consumer {
     static final String TAG = "CardEmulationManager";
     static final boolean DBG = false;
 
@@ -78,9 +80,12 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     final CardEmulationInterface mCardEmulationInterface;
     final NfcFCardEmulationInterface mNfcFCardEmulationInterface;
     final PowerManager mPowerManager;
+    // Service and preferred service updates, applied in batches
+    final CardEmulationChangeLog mChangeLog;
 
     public CardEmulationManager(Context context) {
         mContext = context;
+        mChangeLog = new CardEmulationChangeLog(Looper.getMainLooper(), this);
         mCardEmulationInterface = new CardEmulationInterface();
         mNfcFCardEmulationInterface = new NfcFCardEmulationInterface();
         mAidCache = new RegisteredAidCache(context);
@@ -110,6 +115,8 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         if (mPowerManager != null) {
             mPowerManager.userActivity(SystemClock.uptimeMillis(), PowerManager.USER_ACTIVITY_EVENT_TOUCH, 0);
         }
+        // Make sure AID resolution and routing reflect all updates
+        mChangeLog.flush();
         if (technology == NFC_HCE_APDU) {
             mHostEmulationManager.onHostEmulationActivated();
             mPreferredServices.onHostEmulationActivated();
@@ -147,14 +154,30 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onUserSwitched(int userId) {
-        // for HCE
-        mServiceCache.invalidateCache(userId);
-        mPreferredServices.onUserSwitched(userId);
-        // for HCE-F
-        mHostNfcFEmulationManager.onUserSwitched();
-        mT3tIdentifiersCache.onUserSwitched();
-        mEnabledNfcFServices.onUserSwitched(userId);
-        mNfcFServicesCache.invalidateCache(userId);
+        // The services and AID/T3T tables of recently current users are kept,
+        // so only what changed in the meantime is rebuilt. All updates of the
+        // switch are applied as a single batch, with one routing commit.
+        boolean aidTablesKept = mAidCache.onUserSwitching(userId);
+        try {
+            // for HCE
+            if (!mServiceCache.onUserSwitched(userId) && !aidTablesKept) {
+                onServicesUpdated(userId, mServiceCache.getServices(userId));
+            }
+            mPreferredServices.onUserSwitched(userId);
+            // for HCE-F
+            mHostNfcFEmulationManager.onUserSwitched();
+            boolean t3tServicesKept = mT3tIdentifiersCache.onUserSwitched(userId);
+            mEnabledNfcFServices.onUserSwitched(userId);
+            if (!mNfcFServicesCache.onUserSwitched(userId) && !t3tServicesKept) {
+                onNfcFServicesUpdated(userId, mNfcFServicesCache.getServices(userId));
+            }
+        } finally {
+            try {
+                mChangeLog.flush();
+            } finally {
+                mAidCache.endUpdate();
+            }
+        }
     }
 
     public void onNfcEnabled() {
@@ -175,6 +198,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mChangeLog.dump(pw);
         mServiceCache.dump(fd, pw, args);
         mNfcFServicesCache.dump(fd, pw ,args);
         mPreferredServices.dump(fd, pw, args);
@@ -187,20 +211,67 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
     @Override
     public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
-        // Verify defaults are still sane
-        verifyDefaults(userId, services);
-        // Update the AID cache
-        mAidCache.onServicesUpdated(userId, services);
-        // Update the preferred services list
-        mPreferredServices.onServicesUpdated();
+        mChangeLog.append(CardEmulationChangeLog.Change.services(userId, services));
     }
 
     @Override
     public void onNfcFServicesUpdated(int userId, List<NfcFServiceInfo> services) {
-        // Update the T3T identifier cache
-        mT3tIdentifiersCache.onServicesUpdated(userId, services);
-        // Update the enabled services list
-        mEnabledNfcFServices.onServicesUpdated();
+        mChangeLog.append(CardEmulationChangeLog.Change.nfcFServices(userId, services));
+    }
+
+    @Override
+    public void onNfcFServicesChanged(int userId, List<NfcFServiceInfo> updated,
+            List<ComponentName> removed) {
+        mChangeLog.append(
+                CardEmulationChangeLog.Change.nfcFServicesDelta(userId, updated, removed));
+    }
+
+    /**
+     * Applies a batch of changes from the change log; the AID cache is
+     * regenerated and routing committed at most once per batch.
+     */
+    @Override
+    public void onChanges(CardEmulationChangeLog.Batch batch) {
+        // for HCE
+        if (batch.hasHceChanges()) {
+            for (int i = 0; i < batch.services.size(); i++) {
+                // Verify defaults are still sane
+                verifyDefaults(batch.services.keyAt(i), batch.services.valueAt(i));
+            }
+            // Update the AID cache, and the routing table once
+            mAidCache.onChanges(batch);
+            if (batch.preferredPaymentChanged) {
+                mHostEmulationManager.onPreferredPaymentServiceChanged(
+                        batch.preferredPayment);
+            }
+            if (batch.preferredForegroundChanged) {
+                mHostEmulationManager.onPreferredForegroundServiceChanged(
+                        batch.preferredForeground);
+            }
+            if (batch.services.size() > 0) {
+                // Update the preferred services list
+                mPreferredServices.onServicesUpdated();
+            }
+        }
+        // for HCE-F
+        for (int i = 0; i < batch.nfcFServices.size(); i++) {
+            int userId = batch.nfcFServices.keyAt(i);
+            CardEmulationChangeLog.NfcFChange change = batch.nfcFServices.valueAt(i);
+            List<NfcFServiceInfo> updated =
+                    new ArrayList<NfcFServiceInfo>(change.updated.values());
+            if (change.complete) {
+                // Update the T3T identifier cache
+                mT3tIdentifiersCache.onServicesUpdated(userId, updated);
+                // Update the enabled services list
+                mEnabledNfcFServices.onServicesUpdated();
+            } else {
+                List<ComponentName> removed = new ArrayList<ComponentName>(change.removed);
+                // Apply the delta to the T3T identifier cache
+                mT3tIdentifiersCache.onServicesChanged(userId, updated, removed);
+                // Only affects the enabled service if it changed
+                mEnabledNfcFServices.onServicesChanged(updated, removed);
+            }
+        }
     }
 
     void verifyDefaults(int userId, List<ApduServiceInfo> services) {
@@ -379,6 +450,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
             if (!isServiceRegistered(userId, service)) {
                 return false;
             }
+            mChangeLog.flush();
             return mAidCache.isDefaultServiceForAid(userId, service, aid);
         }
 
@@ -456,6 +528,8 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                 Log.e(TAG, "setPreferredService: unknown component.");
                 return false;
             }
+            // Conflicts are checked against the AID cache
+            mChangeLog.flush();
             return mPreferredServices.registerPreferredForegroundService(service,
                     Binder.getCallingUid());
         }
@@ -575,14 +649,12 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
     @Override
     public void onPreferredPaymentServiceChanged(ComponentName service) {
-        mAidCache.onPreferredPaymentServiceChanged(service);
-        mHostEmulationManager.onPreferredPaymentServiceChanged(service);
+        mChangeLog.append(CardEmulationChangeLog.Change.preferredPayment(service));
     }
 
     @Override
     public void onPreferredForegroundServiceChanged(ComponentName service) {
-        mAidCache.onPreferredForegroundServiceChanged(service);
-        mHostEmulationManager.onPreferredForegroundServiceChanged(service);
+        mChangeLog.append(CardEmulationChangeLog.Change.preferredForeground(service));
     }
 
     @Override
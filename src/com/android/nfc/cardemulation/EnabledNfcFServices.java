@@ -17,6 +17,7 @@ package com.android.nfc.cardemulation;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.List;
 
 import com.android.nfc.ForegroundUtils;
 
@@ -107,6 +108,28 @@ public class EnabledNfcFServices implements com.android.nfc.ForegroundUtils.Call
         }
     }
 
+    /**
+     * Only drops the enabled foreground service if it is one of the services
+     * that changed; updates of unrelated packages keep it enabled.
+     */
+    public void onServicesChanged(List<NfcFServiceInfo> updated,
+            List<ComponentName> removed) {
+        if (DBG) Log.d(TAG, "onServicesChanged");
+        boolean affected = false;
+        synchronized (mLock) {
+            if (mForegroundComponent == null) {
+                return;
+            }
+            affected = removed.contains(mForegroundComponent);
+            for (int i = 0; i < updated.size() && !affected; i++) {
+                affected = mForegroundComponent.equals(updated.get(i).getComponent());
+            }
+        }
+        if (affected) {
+            onServicesUpdated();
+        }
+    }
+
     public boolean registerEnabledForegroundService(ComponentName service, int callingUid) {
         if (DBG) Log.d(TAG, "registerEnabledForegroundService");
         boolean success = false;
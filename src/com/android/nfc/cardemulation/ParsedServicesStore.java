@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of parsed service metadata, keyed by user, package and
+ * package version.
+ * <p>Parsing the metadata XML of a card emulation service requires loading
+ * the resources of its package, which makes rescanning all services on boot,
+ * user switch and package broadcasts scale with the number of installed
+ * apps. This store keeps the parsed service info of every component, and
+ * only hands it out again as long as the package's versionCode and
+ * lastUpdateTime have not changed.
+ * <p>Entries are persisted in their Parcel form. Parcels are not stable across
+ * platform builds, so the whole store is dropped when the build fingerprint
+ * changes, which also covers OTAs changing the parsing code. Labels and
+ * descriptions are resolved at parse time, so the store is also dropped
+ * when the locale changes.
+ * <p>Changes are written on the registration writer thread, coalescing
+ * the bursts of package broadcasts seen during installs and updates.
+ */
+class ParsedServicesStore<T extends Parcelable> {
+    static final String TAG = "ParsedServicesStore";
+    static final boolean DBG = false;
+
+    static final int FILE_MAGIC = 0x4e504153; // "NPAS"
+    static final int FILE_VERSION = 2;
+
+    static final long WRITE_DELAY_MS = 1000;
+
+    final AtomicFile mFile;
+    final Parcelable.Creator<T> mCreator;
+    final Handler mHandler;
+    final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    // All variables below synchronized on this
+    final HashMap<String, PackageEntry> mEntries = new HashMap<String, PackageEntry>();
+    // Locale the labels and descriptions of the entries were resolved in
+    String mLocale = currentLocale();
+    boolean mDirty;
+    boolean mWriteScheduled;
+
+    static final class PackageEntry {
+        final int versionCode;
+        final long lastUpdateTime;
+        final HashMap<ComponentName, byte[]> services = new HashMap<ComponentName, byte[]>();
+
+        PackageEntry(int versionCode, long lastUpdateTime) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        PackageEntry(PackageEntry other) {
+            this(other.versionCode, other.lastUpdateTime);
+            services.putAll(other.services);
+        }
+    }
+
+    ParsedServicesStore(File file, Parcelable.Creator<T> creator) {
+        mFile = new AtomicFile(file);
+        mCreator = creator;
+        mHandler = new Handler(RegistrationJournal.getWriterLooper());
+    }
+
+    static String currentLocale() {
+        return Locale.getDefault().toLanguageTag();
+    }
+
+    /**
+     * Drops all entries if they were parsed in another locale.
+     */
+    void checkLocaleLocked() {
+        String locale = currentLocale();
+        if (!locale.equals(mLocale)) {
+            if (DBG) Log.d(TAG, "Locale changed to " + locale + ", dropping entries");
+            mEntries.clear();
+            mLocale = locale;
+            mDirty = true;
+        }
+    }
+
+    static String key(int userId, String packageName) {
+        return userId + ":" + packageName;
+    }
+
+    /**
+     * Returns a freshly unparcelled copy of the cached service info, or null
+     * if the component is not cached for this version of the package.
+     */
+    synchronized T get(int userId, ComponentName component, int versionCode,
+            long lastUpdateTime) {
+        checkLocaleLocked();
+        PackageEntry entry = mEntries.get(key(userId, component.getPackageName()));
+        if (entry == null || entry.versionCode != versionCode ||
+                entry.lastUpdateTime != lastUpdateTime) {
+            return null;
+        }
+        byte[] bytes = entry.services.get(component);
+        if (bytes == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return mCreator.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable cache entry for " + component);
+            entry.services.remove(component);
+            mDirty = true;
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Stores freshly parsed service info; must be called before any dynamic
+     * state is applied to the object.
+     */
+    synchronized void put(int userId, ComponentName component, int versionCode,
+            long lastUpdateTime, T service) {
+        checkLocaleLocked();
+        String key = key(userId, component.getPackageName());
+        PackageEntry entry = mEntries.get(key);
+        if (entry == null || entry.versionCode != versionCode ||
+                entry.lastUpdateTime != lastUpdateTime) {
+            entry = new PackageEntry(versionCode, lastUpdateTime);
+            mEntries.put(key, entry);
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            service.writeToParcel(parcel, 0);
+            entry.services.put(component, parcel.marshall());
+        } finally {
+            parcel.recycle();
+        }
+        mDirty = true;
+    }
+
+    synchronized void removePackage(int userId, String packageName) {
+        if (mEntries.remove(key(userId, packageName)) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drops the entries of all packages of the user not in packageNames.
+     */
+    synchronized void retainPackages(int userId, Set<String> packageNames) {
+        String prefix = userId + ":";
+        Iterator<Map.Entry<String, PackageEntry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next().getKey();
+            if (key.startsWith(prefix) &&
+                    !packageNames.contains(key.substring(prefix.length()))) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    synchronized void load() {
+        mEntries.clear();
+        mLocale = currentLocale();
+        if (!mFile.getBaseFile().exists()) {
+            if (DBG) Log.d(TAG, mFile.getBaseFile() + " does not exist.");
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION ||
+                    !Build.FINGERPRINT.equals(in.readUTF()) ||
+                    !mLocale.equals(in.readUTF())) {
+                Log.d(TAG, "Discarding parsed services cache from other build or locale.");
+                mDirty = true;
+                return;
+            }
+            int packages = in.readInt();
+            for (int i = 0; i < packages; i++) {
+                String key = in.readUTF();
+                PackageEntry entry = new PackageEntry(in.readInt(), in.readLong());
+                int services = in.readInt();
+                for (int j = 0; j < services; j++) {
+                    ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    if (component != null) {
+                        entry.services.put(component, bytes);
+                    }
+                }
+                mEntries.put(key, entry);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read parsed services cache, trashing.");
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules writing the store to disk if it changed since the last
+     * write; the write happens on the writer thread, after a short delay.
+     */
+    synchronized void saveIfDirty() {
+        if (mDirty && !mWriteScheduled) {
+            mWriteScheduled = true;
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes a copy of the entries; only runs on the writer thread.
+     */
+    void write() {
+        HashMap<String, PackageEntry> entries;
+        String locale;
+        synchronized (this) {
+            mWriteScheduled = false;
+            if (!mDirty) {
+                return;
+            }
+            entries = new HashMap<String, PackageEntry>(mEntries.size());
+            for (Map.Entry<String, PackageEntry> pkg : mEntries.entrySet()) {
+                entries.put(pkg.getKey(), new PackageEntry(pkg.getValue()));
+            }
+            locale = mLocale;
+            mDirty = false;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeUTF(locale);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, PackageEntry> pkg : entries.entrySet()) {
+                PackageEntry entry = pkg.getValue();
+                out.writeUTF(pkg.getKey());
+                out.writeInt(entry.versionCode);
+                out.writeLong(entry.lastUpdateTime);
+                out.writeInt(entry.services.size());
+                for (Map.Entry<ComponentName, byte[]> service : entry.services.entrySet()) {
+                    out.writeUTF(service.getKey().flattenToString());
+                    out.writeInt(service.getValue().length);
+                    out.write(service.getValue());
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing parsed services cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            // Retry later, rather than waiting for the next package change
+            synchronized (this) {
+                mDirty = true;
+                saveIfDirty();
+            }
+        }
+    }
+}
@@ -31,29 +31,63 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.TreeMap;
 
-public class RegisteredAidCache {
+public class RegisteredAidCache implements CardEmulationChangeLog.Consumer {
     static final String TAG = "RegisteredAidCache";
 
     static final boolean DBG = false;
 
+    static final int MAX_CACHED_USERS = WarmUserSet.MAX_WARM_USERS;
+
     // mAidServices maps AIDs to services that have registered them.
     // It's a TreeMap in order to be able to quickly select subsets
     // of AIDs that conflict with each other.
-    final TreeMap<String, ArrayList<ServiceAidInfo>> mAidServices =
-            new TreeMap<String, ArrayList<ServiceAidInfo>>();
+    // Points to the tables of the current user.
+    TreeMap<String, ArrayList<ServiceAidInfo>> mAidServices;
 
     // mAidCache is a lookup table for quickly mapping an exact or prefix AID to one or
     // more handling services. It differs from mAidServices in the sense that it
     // has already accounted for defaults, and hence its return value
     // is authoritative for the current set of services and defaults.
     // It is only valid for the current user.
-    final TreeMap<String, AidResolveInfo> mAidCache = new TreeMap<String, AidResolveInfo>();
+    TreeMap<String, AidResolveInfo> mAidCache;
+
+    // The AID tables of recently current users, including the current one.
+    // Updates for background users drop their tables, so switching back to
+    // a user whose tables are kept only needs the routing to be committed.
+    final LinkedHashMap<Integer, AidTables> mUserTables =
+            new LinkedHashMap<Integer, AidTables>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, AidTables> eldest) {
+            return size() > MAX_CACHED_USERS;
+        }
+    };
+    AidTables mTables;
+    int mCurrentUserId;
+    // Greater than zero while updates are batched, see beginUpdate()
+    int mUpdateDepth = 0;
+    // Whether the routing table has to be committed at the end of the batch
+    // even if the AID cache is still valid, e.g. after a user switch
+    boolean mRoutingStale = false;
+
+    // The AID tables of a single user
+    final class AidTables {
+        final TreeMap<String, ArrayList<ServiceAidInfo>> aidServices =
+                new TreeMap<String, ArrayList<ServiceAidInfo>>();
+        final TreeMap<String, AidResolveInfo> aidCache = new TreeMap<String, AidResolveInfo>();
+        // Whether aidCache was generated from the current aidServices
+        boolean valid = false;
+        // The preferred services aidCache was generated with
+        ComponentName preferredPaymentService;
+        ComponentName preferredForegroundService;
+    }
 
     // Represents a single AID registration of a service
     final class ServiceAidInfo {
@@ -126,14 +160,27 @@ public class RegisteredAidCache {
     boolean mSupportsPrefixes = false;
 
     public RegisteredAidCache(Context context) {
+        this(context, new AidRoutingManager());
+    }
+
+    RegisteredAidCache(Context context, AidRoutingManager routingManager) {
         mContext = context;
-        mRoutingManager = new AidRoutingManager();
+        mRoutingManager = routingManager;
         mPreferredPaymentService = null;
         mPreferredForegroundService = null;
         mSupportsPrefixes = mRoutingManager.supportsAidPrefixRouting();
         if (mSupportsPrefixes) {
             if (DBG) Log.d(TAG, "Controller supports AID prefix routing");
         }
+        mCurrentUserId = ActivityManager.getCurrentUser();
+        setTablesLocked(new AidTables());
+        mUserTables.put(mCurrentUserId, mTables);
+    }
+
+    void setTablesLocked(AidTables tables) {
+        mTables = tables;
+        mAidServices = tables.aidServices;
+        mAidCache = tables.aidCache;
     }
 
     public AidResolveInfo resolveAid(String aid) {
@@ -435,6 +482,11 @@ public class RegisteredAidCache {
     }
 
     void generateAidCacheLocked() {
+        if (mUpdateDepth > 0) {
+            // Generated once when the batch ends
+            mTables.valid = false;
+            return;
+        }
         mAidCache.clear();
         // Get all exact and prefix AIDs in an ordered list
         PriorityQueue<String> aidsToResolve = new PriorityQueue<String>(mAidServices.keySet());
@@ -521,6 +573,9 @@ public class RegisteredAidCache {
             aidsToResolve.removeAll(resolvedAids);
             resolvedAids.clear();
         }
+        mTables.valid = true;
+        mTables.preferredPaymentService = mPreferredPaymentService;
+        mTables.preferredForegroundService = mPreferredForegroundService;
 
         updateRoutingLocked();
     }
@@ -561,13 +616,97 @@ public class RegisteredAidCache {
     public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
         if (DBG) Log.d(TAG, "onServicesUpdated");
         synchronized (mLock) {
-            if (ActivityManager.getCurrentUser() == userId) {
+            if (mCurrentUserId == userId) {
                 // Rebuild our internal data-structures
                 generateServiceMapLocked(services);
                 generateAidCacheLocked();
             } else {
                 if (DBG) Log.d(TAG, "Ignoring update because it's not for the current user.");
+                // Rebuilt when switching to the user
+                mUserTables.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Starts a batch of updates. Until the matching {@link #endUpdate}, the
+     * AID cache is not regenerated and the routing table is left alone, so
+     * that a burst of service and preferred service updates causes at most
+     * one regeneration and one routing commit. Batches may be nested.
+     */
+    public void beginUpdate() {
+        synchronized (mLock) {
+            mUpdateDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch. The outermost call regenerates the AID cache only if the
+     * services or preferred services changed since it was last generated.
+     */
+    public void endUpdate() {
+        synchronized (mLock) {
+            if (--mUpdateDepth > 0) {
+                return;
+            }
+            if (!mTables.valid ||
+                    !Objects.equals(mTables.preferredPaymentService, mPreferredPaymentService) ||
+                    !Objects.equals(mTables.preferredForegroundService,
+                            mPreferredForegroundService)) {
+                generateAidCacheLocked();
+            } else if (mRoutingStale) {
+                updateRoutingLocked();
+            }
+            mRoutingStale = false;
+        }
+    }
+
+    /**
+     * Applies the services and preferred services of a change log batch as
+     * a single update.
+     */
+    @Override
+    public void onChanges(CardEmulationChangeLog.Batch batch) {
+        beginUpdate();
+        try {
+            for (int i = 0; i < batch.services.size(); i++) {
+                onServicesUpdated(batch.services.keyAt(i), batch.services.valueAt(i));
+            }
+            if (batch.preferredPaymentChanged) {
+                onPreferredPaymentServiceChanged(batch.preferredPayment);
+            }
+            if (batch.preferredForegroundChanged) {
+                onPreferredForegroundServiceChanged(batch.preferredForeground);
+            }
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Swaps in the AID tables of the user, if they were kept since the user
+     * was last current, and starts a batch for the updates of the switch;
+     * the caller must call {@link #endUpdate} once they are applied.
+     *
+     * @return whether the tables of the user were kept; if not, the caller
+     *         must report the services of the user through
+     *         {@link #onServicesUpdated}
+     */
+    public boolean onUserSwitching(int userId) {
+        synchronized (mLock) {
+            mUpdateDepth++;
+            mRoutingStale = true;
+            mCurrentUserId = userId;
+            AidTables tables = mUserTables.get(userId);
+            boolean kept = tables != null;
+            if (tables == null) {
+                tables = new AidTables();
+                mUserTables.put(userId, tables);
+            } else if (DBG) {
+                Log.d(TAG, "Using kept AID tables of user " + userId);
             }
+            setTablesLocked(tables);
+            return kept;
         }
     }
 
@@ -627,6 +766,7 @@ public class RegisteredAidCache {
         }
         pw.println("    Service preferred by foreground app: " + mPreferredForegroundService);
         pw.println("    Preferred payment service: " + mPreferredPaymentService);
+        pw.println("    AID tables kept for users: " + mUserTables.keySet());
         pw.println("");
         mRoutingManager.dump(fd, pw, args);
         pw.println("");
@@ -18,7 +18,6 @@ package com.android.nfc.cardemulation;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
@@ -26,6 +25,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -39,26 +39,29 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.util.Xml;
 
-import com.android.internal.util.FastXmlSerializer;
 import com.google.android.collect.Maps;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class RegisteredNfcFServicesCache {
-    static final String XML_INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
     static final String TAG = "RegisteredNfcFServicesCache";
     static final boolean DBG = false;
 
@@ -70,12 +73,30 @@ public class RegisteredNfcFServicesCache {
 
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
+    // Users whose services are kept scanned while in the background
+    final WarmUserSet mWarmUsers = new WarmUserSet(WarmUserSet.MAX_WARM_USERS);
     final Callback mCallback;
+    // Legacy XML store of dynamic System Codes and NFCID2s, only read to
+    // migrate to the journal
     final AtomicFile mDynamicSystemCodeNfcid2File;
+    final RegistrationJournal mDynamicSystemCodeNfcid2Journal;
+    // Parsed static service metadata, keyed by package version
+    final ParsedServicesStore<NfcFServiceInfo> mParsedServices;
     boolean mActivated = false;
 
     public interface Callback {
+        /**
+         * Called with the complete list of services of the user, after a full
+         * rescan such as on boot or user switch.
+         */
         void onNfcFServicesUpdated(int userId, final List<NfcFServiceInfo> services);
+        /**
+         * Called when only some services of the user changed, e.g. after a
+         * package broadcast or a dynamic System Code / NFCID2 registration.
+         * Services not mentioned are unchanged.
+         */
+        void onNfcFServicesChanged(int userId, final List<NfcFServiceInfo> updated,
+                final List<ComponentName> removed);
     };
 
     static class DynamicSystemCode {
@@ -136,9 +157,19 @@ public class RegisteredNfcFServicesCache {
                     if (!replaced) {
                         int currentUser = ActivityManager.getCurrentUser();
                         if (currentUser == UserHandle.getUserId(uid)) {
-                            invalidateCache(UserHandle.getUserId(uid));
+                            // Package broadcasts carry the package name; only
+                            // that package's services need to be rescanned.
+                            String packageName = intent.getData() != null ?
+                                    intent.getData().getSchemeSpecificPart() : null;
+                            invalidateCache(UserHandle.getUserId(uid), packageName);
                         } else {
-                            // Cache will automatically be updated on user switch
+                            // Rescanned when switching to the user
+                            String packageName = intent.getData() != null ?
+                                    intent.getData().getSchemeSpecificPart() : null;
+                            synchronized (mLock) {
+                                mWarmUsers.onPackageChanged(UserHandle.getUserId(uid),
+                                        packageName);
+                            }
                         }
                     } else {
                         if (DBG) Log.d(TAG,
@@ -168,11 +199,16 @@ public class RegisteredNfcFServicesCache {
         File dataDir = mContext.getFilesDir();
         mDynamicSystemCodeNfcid2File =
                 new AtomicFile(new File(dataDir, "dynamic_systemcode_nfcid2.xml"));
+        mDynamicSystemCodeNfcid2Journal = new RegistrationJournal(
+                new File(dataDir, "dynamic_systemcode_nfcid2.bin"));
+        mParsedServices = new ParsedServicesStore<NfcFServiceInfo>(
+                new File(dataDir, "nfcf_services_cache.bin"), NfcFServiceInfo.CREATOR);
     }
 
     void initialize() {
+        mParsedServices.load();
         synchronized (mLock) {
-            readDynamicSystemCodeNfcid2Locked();
+            loadDynamicSystemCodeNfcid2Locked();
         }
         invalidateCache(ActivityManager.getCurrentUser());
     }
@@ -183,14 +219,6 @@ public class RegisteredNfcFServicesCache {
         }
     }
 
-    boolean containsServiceLocked(ArrayList<NfcFServiceInfo> services,
-            ComponentName componentName) {
-        for (NfcFServiceInfo service : services) {
-            if (service.getComponent().equals(componentName)) return true;
-        }
-        return false;
-    }
-
     public boolean hasService(int userId, ComponentName componentName) {
         return getService(userId, componentName) != null;
     }
@@ -211,7 +239,12 @@ public class RegisteredNfcFServicesCache {
         return services;
     }
 
-    ArrayList<NfcFServiceInfo> getInstalledServices(int userId) {
+    /**
+     * Returns the valid NFC-F services of the user, or only those of
+     * packageName if it is not null. Service metadata is only parsed for
+     * packages that changed since they were last parsed.
+     */
+    ArrayList<NfcFServiceInfo> getInstalledServices(int userId, String packageName) {
         if (DBG) Log.d(TAG, "getInstalledServices");
         PackageManager pm;
         try {
@@ -224,10 +257,14 @@ public class RegisteredNfcFServicesCache {
 
         ArrayList<NfcFServiceInfo> validServices = new ArrayList<NfcFServiceInfo>();
 
+        Intent intent = new Intent(HostNfcFService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            intent.setPackage(packageName);
+        }
         List<ResolveInfo> resolvedServices = pm.queryIntentServicesAsUser(
-                new Intent(HostNfcFService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
+                intent, PackageManager.GET_META_DATA, userId);
 
+        HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
         for (ResolveInfo resolvedService : resolvedServices) {
             try {
                 ServiceInfo si = resolvedService.serviceInfo;
@@ -247,10 +284,25 @@ public class RegisteredNfcFServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                NfcFServiceInfo service = new NfcFServiceInfo(pm, resolvedService);
+                PackageInfo packageInfo = packageInfos.get(si.packageName);
+                if (packageInfo == null) {
+                    packageInfo = pm.getPackageInfo(si.packageName, 0);
+                    packageInfos.put(si.packageName, packageInfo);
+                }
+                NfcFServiceInfo service = mParsedServices.get(userId, componentName,
+                        packageInfo.versionCode, packageInfo.lastUpdateTime);
+                if (service == null) {
+                    service = new NfcFServiceInfo(pm, resolvedService);
+                    mParsedServices.put(userId, componentName, packageInfo.versionCode,
+                            packageInfo.lastUpdateTime, service);
+                } else if (DBG) {
+                    Log.d(TAG, "Using cached service info for " + componentName);
+                }
                 if (service != null) {
                     validServices.add(service);
                 }
+            } catch (NameNotFoundException e) {
+                Log.w(TAG, "Package of " + resolvedService.toString() + " went away", e);
             } catch (XmlPullParserException e) {
                 Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
             } catch (IOException e) {
@@ -258,52 +310,100 @@ public class RegisteredNfcFServicesCache {
             }
         }
 
+        // Forget about packages that no longer have any services
+        if (packageName != null) {
+            if (packageInfos.isEmpty()) {
+                mParsedServices.removePackage(userId, packageName);
+            }
+        } else {
+            mParsedServices.retainPackages(userId, packageInfos.keySet());
+        }
+        mParsedServices.saveIfDirty();
+
         return validServices;
     }
 
-    public void invalidateCache(int userId) {
+    /**
+     * Makes userId the current user. The services of recently current users
+     * are kept, so only packages that changed while the user was in the
+     * background are rescanned, if any.
+     *
+     * @return whether the complete list of services was reported through
+     *         {@link Callback#onNfcFServicesUpdated}
+     */
+    public boolean onUserSwitched(int userId) {
+        Set<String> stalePackages;
+        synchronized (mLock) {
+            stalePackages = mWarmUsers.onSwitchedTo(userId);
+        }
+        if (stalePackages == null) {
+            if (DBG) Log.d(TAG, "Services of user " + userId + " not kept, rescanning");
+            return invalidateCache(userId);
+        }
+        for (String packageName : stalePackages) {
+            invalidateCache(userId, packageName);
+        }
+        return false;
+    }
+
+    public boolean invalidateCache(int userId) {
+        return invalidateCache(userId, null);
+    }
+
+    /**
+     * Rescans the services of the user. If packageName is not null, only the
+     * services of that package are rescanned and the callback only receives
+     * what changed in that package.
+     *
+     * @return whether the callback was invoked
+     */
+    public boolean invalidateCache(int userId, String packageName) {
         if (DBG) Log.d(TAG, "invalidateCache");
-        final ArrayList<NfcFServiceInfo> validServices = getInstalledServices(userId);
+        final ArrayList<NfcFServiceInfo> validServices =
+                getInstalledServices(userId, packageName);
         if (validServices == null) {
-            return;
+            return false;
         }
         ArrayList<NfcFServiceInfo> newServices = null;
+        ArrayList<ComponentName> removedComponents = null;
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
+            if (packageName == null) {
+                int currentUser = ActivityManager.getCurrentUser();
+                for (int evictedUserId : mWarmUsers.onScanned(userId)) {
+                    // Dynamic registrations are kept, they are applied again
+                    // on rescan
+                    UserServices evicted = mUserServices.get(evictedUserId);
+                    if (evicted != null && evictedUserId != currentUser) {
+                        evicted.services.clear();
+                    }
+                }
+            }
 
             // Check update
-            ArrayList<NfcFServiceInfo> cachedServices =
-                    new ArrayList<NfcFServiceInfo>(userServices.services.values());
             ArrayList<NfcFServiceInfo> toBeAdded = new ArrayList<NfcFServiceInfo>();
             ArrayList<NfcFServiceInfo> toBeRemoved = new ArrayList<NfcFServiceInfo>();
-            boolean matched = false;
+            HashSet<ComponentName> validComponents = new HashSet<ComponentName>();
             for (NfcFServiceInfo validService : validServices) {
-                for (NfcFServiceInfo cachedService : cachedServices) {
-                    if (validService.equals(cachedService)) {
-                        matched = true;
-                        break;
-                    }
-                }
-                if (!matched) {
+                validComponents.add(validService.getComponent());
+                NfcFServiceInfo cachedService =
+                        userServices.services.get(validService.getComponent());
+                if (cachedService == null || !validService.equals(cachedService)) {
                     toBeAdded.add(validService);
                 }
-                matched = false;
             }
-            for (NfcFServiceInfo cachedService : cachedServices) {
-                for (NfcFServiceInfo validService : validServices) {
-                    if (cachedService.equals(validService)) {
-                        matched = true;
-                        break;
-                    }
+            for (NfcFServiceInfo cachedService : userServices.services.values()) {
+                if (packageName != null &&
+                        !packageName.equals(cachedService.getComponent().getPackageName())) {
+                    continue;
                 }
-                if (!matched) {
+                if (!validComponents.contains(cachedService.getComponent())) {
                     toBeRemoved.add(cachedService);
                 }
-                matched = false;
             }
             if (toBeAdded.size() == 0 && toBeRemoved.size() == 0) {
                 Log.d(TAG, "Service unchanged, not updating");
-                return;
+                return false;
             }
 
             // Update cache
@@ -351,14 +451,15 @@ public class RegisteredNfcFServicesCache {
                 Log.d(TAG, "Removing dynamic System Code registered by " +
                         removedComponent);
                 userServices.dynamicSystemCode.remove(removedComponent);
+                persistDynamicSystemCodeNfcid2Locked(userId, userServices, removedComponent);
             }
             for (ComponentName removedComponent : toBeRemovedDynamicNfcid2) {
                 Log.d(TAG, "Removing dynamic NFCID2 registered by " +
                         removedComponent);
                 userServices.dynamicNfcid2.remove(removedComponent);
+                persistDynamicSystemCodeNfcid2Locked(userId, userServices, removedComponent);
             }
             // Assign a NFCID2 for services requesting a random NFCID2, then apply
-            boolean nfcid2Assigned = false;
             for (Map.Entry<ComponentName, NfcFServiceInfo> entry :
                 userServices.services.entrySet()) {
                 NfcFServiceInfo service = entry.getValue();
@@ -368,21 +469,28 @@ public class RegisteredNfcFServicesCache {
                     DynamicNfcid2 dynamicNfcid2 =
                             new DynamicNfcid2(service.getUid(), randomNfcid2);
                     userServices.dynamicNfcid2.put(entry.getKey(), dynamicNfcid2);
-                    nfcid2Assigned = true;
+                    persistDynamicSystemCodeNfcid2Locked(userId, userServices, entry.getKey());
                 }
             }
 
-            // Persist to filesystem
-            if (toBeRemovedDynamicSystemCode.size() > 0 ||
-                    toBeRemovedDynamicNfcid2.size() > 0 ||
-                    nfcid2Assigned) {
-                writeDynamicSystemCodeNfcid2Locked();
+            if (packageName == null) {
+                newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
+            } else {
+                newServices = toBeAdded;
+                removedComponents = new ArrayList<ComponentName>();
+                for (NfcFServiceInfo service : toBeRemoved) {
+                    removedComponents.add(service.getComponent());
+                }
             }
-
-            newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
         }
-        mCallback.onNfcFServicesUpdated(userId, Collections.unmodifiableList(newServices));
+        if (packageName == null) {
+            mCallback.onNfcFServicesUpdated(userId, Collections.unmodifiableList(newServices));
+        } else {
+            mCallback.onNfcFServicesChanged(userId, Collections.unmodifiableList(newServices),
+                    Collections.unmodifiableList(removedComponents));
+        }
         if (DBG) dump(newServices);
+        return true;
     }
 
     private void readDynamicSystemCodeNfcid2Locked() {
@@ -478,54 +586,102 @@ public class RegisteredNfcFServicesCache {
         }
     }
 
-    private boolean writeDynamicSystemCodeNfcid2Locked() {
-        if (DBG) Log.d(TAG, "writeDynamicSystemCodeNfcid2Locked");
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicSystemCodeNfcid2File.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
+    private void loadDynamicSystemCodeNfcid2Locked() {
+        Map<String, byte[]> entries = mDynamicSystemCodeNfcid2Journal.load();
+        if (entries == null) {
+            // No journal yet, migrate the registrations of the XML store
+            readDynamicSystemCodeNfcid2Locked();
+            HashMap<String, byte[]> migrated = new HashMap<String, byte[]>();
             for (int i = 0; i < mUserServices.size(); i++) {
+                final int userId = mUserServices.keyAt(i);
                 final UserServices userServices = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicSystemCode> entry :
-                        userServices.dynamicSystemCode.entrySet()) {
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", entry.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(entry.getValue().uid));
-                    out.attribute(null, "system-code", entry.getValue().systemCode);
-                    if (userServices.dynamicNfcid2.containsKey(entry.getKey())) {
-                        out.attribute(null, "nfcid2",
-                                userServices.dynamicNfcid2.get(entry.getKey()).nfcid2);
-                    }
-                    out.endTag(null, "service");
-                }
-                for (Map.Entry<ComponentName, DynamicNfcid2> entry :
-                        userServices.dynamicNfcid2.entrySet()) {
-                    if (!userServices.dynamicSystemCode.containsKey(entry.getKey())) {
-                        out.startTag(null, "service");
-                        out.attribute(null, "component", entry.getKey().flattenToString());
-                        out.attribute(null, "uid", Integer.toString(entry.getValue().uid));
-                        out.attribute(null, "nfcid2", entry.getValue().nfcid2);
-                        out.endTag(null, "service");
-                    }
+                HashSet<ComponentName> components = new HashSet<ComponentName>();
+                components.addAll(userServices.dynamicSystemCode.keySet());
+                components.addAll(userServices.dynamicNfcid2.keySet());
+                for (ComponentName component : components) {
+                    migrated.put(dynamicKey(userId, component),
+                            encodeDynamicSystemCodeNfcid2(userServices, component));
                 }
             }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicSystemCodeNfcid2File.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic System Code, NFCID2", e);
-            if (fos != null) {
-                mDynamicSystemCodeNfcid2File.failWrite(fos);
+            if (mDynamicSystemCodeNfcid2Journal.reset(migrated)) {
+                mDynamicSystemCodeNfcid2File.delete();
             }
-            return false;
+            return;
+        }
+        for (byte[] value : entries.values()) {
+            decodeDynamicSystemCodeNfcid2Locked(value);
         }
     }
 
+    private void decodeDynamicSystemCodeNfcid2Locked(byte[] value) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            int uid = in.readInt();
+            ComponentName componentName = ComponentName.unflattenFromString(in.readUTF());
+            String systemCode = in.readBoolean() ? in.readUTF() : null;
+            String nfcid2 = in.readBoolean() ? in.readUTF() : null;
+            if (componentName == null) {
+                Log.e(TAG, "Invalid component in dynamic System Code, NFCID2");
+                return;
+            }
+            UserServices userServices = findOrCreateUserLocked(UserHandle.getUserId(uid));
+            if (systemCode != null) {
+                userServices.dynamicSystemCode.put(componentName,
+                        new DynamicSystemCode(uid, systemCode));
+            }
+            if (nfcid2 != null) {
+                userServices.dynamicNfcid2.put(componentName, new DynamicNfcid2(uid, nfcid2));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode dynamic System Code, NFCID2.");
+        }
+    }
+
+    /**
+     * Queues the current dynamic System Code and NFCID2 of the component for
+     * writing, or its removal if it has neither.
+     */
+    private void persistDynamicSystemCodeNfcid2Locked(int userId, UserServices userServices,
+            ComponentName componentName) {
+        String key = dynamicKey(userId, componentName);
+        if (!userServices.dynamicSystemCode.containsKey(componentName) &&
+                !userServices.dynamicNfcid2.containsKey(componentName)) {
+            mDynamicSystemCodeNfcid2Journal.remove(key);
+        } else {
+            mDynamicSystemCodeNfcid2Journal.put(key,
+                    encodeDynamicSystemCodeNfcid2(userServices, componentName));
+        }
+    }
+
+    static String dynamicKey(int userId, ComponentName componentName) {
+        return userId + "/" + componentName.flattenToString();
+    }
+
+    static byte[] encodeDynamicSystemCodeNfcid2(UserServices userServices,
+            ComponentName componentName) {
+        DynamicSystemCode dynamicSystemCode = userServices.dynamicSystemCode.get(componentName);
+        DynamicNfcid2 dynamicNfcid2 = userServices.dynamicNfcid2.get(componentName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(dynamicSystemCode != null ? dynamicSystemCode.uid : dynamicNfcid2.uid);
+            out.writeUTF(componentName.flattenToString());
+            out.writeBoolean(dynamicSystemCode != null);
+            if (dynamicSystemCode != null) {
+                out.writeUTF(dynamicSystemCode.systemCode);
+            }
+            out.writeBoolean(dynamicNfcid2 != null);
+            if (dynamicNfcid2 != null) {
+                out.writeUTF(dynamicNfcid2.nfcid2);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
     public boolean registerSystemCodeForService(int userId, int uid,
             ComponentName componentName, String systemCode) {
         if (DBG) Log.d(TAG, "registerSystemCodeForService");
@@ -558,27 +714,19 @@ public class RegisteredNfcFServicesCache {
             }
             // Apply dynamic System Code mappings
             systemCode = systemCode.toUpperCase();
-            DynamicSystemCode oldDynamicSystemCode =
-                    userServices.dynamicSystemCode.get(componentName);
             DynamicSystemCode dynamicSystemCode = new DynamicSystemCode(uid, systemCode);
             userServices.dynamicSystemCode.put(componentName, dynamicSystemCode);
-            success = writeDynamicSystemCodeNfcid2Locked();
-            if (success) {
-                service.setOrReplaceDynamicSystemCode(systemCode);
-                newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist System Code.");
-                // Undo registration
-                if (oldDynamicSystemCode == null) {
-                    userServices.dynamicSystemCode.remove(componentName);
-                } else {
-                    userServices.dynamicSystemCode.put(componentName, oldDynamicSystemCode);
-                }
-            }
+            // Written by the journal in the background
+            persistDynamicSystemCodeNfcid2Locked(userId, userServices, componentName);
+            success = true;
+            service.setOrReplaceDynamicSystemCode(systemCode);
+            newServices = new ArrayList<NfcFServiceInfo>(1);
+            newServices.add(service);
         }
         if (success) {
             // Make callback without the lock held
-            mCallback.onNfcFServicesUpdated(userId, newServices);
+            mCallback.onNfcFServicesChanged(userId, newServices,
+                    Collections.<ComponentName>emptyList());
         }
         return success;
     }
@@ -634,26 +782,19 @@ public class RegisteredNfcFServicesCache {
             }
             // Apply dynamic NFCID2 mappings
             nfcid2 = nfcid2.toUpperCase();
-            DynamicNfcid2 oldDynamicNfcid2 = userServices.dynamicNfcid2.get(componentName);
             DynamicNfcid2 dynamicNfcid2 = new DynamicNfcid2(uid, nfcid2);
             userServices.dynamicNfcid2.put(componentName, dynamicNfcid2);
-            success = writeDynamicSystemCodeNfcid2Locked();
-            if (success) {
-                service.setOrReplaceDynamicNfcid2(nfcid2);
-                newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist NFCID2.");
-                // Undo registration
-                if (oldDynamicNfcid2 == null) {
-                    userServices.dynamicNfcid2.remove(componentName);
-                } else {
-                    userServices.dynamicNfcid2.put(componentName, oldDynamicNfcid2);
-                }
-            }
+            // Written by the journal in the background
+            persistDynamicSystemCodeNfcid2Locked(userId, userServices, componentName);
+            success = true;
+            service.setOrReplaceDynamicNfcid2(nfcid2);
+            newServices = new ArrayList<NfcFServiceInfo>(1);
+            newServices.add(service);
         }
         if (success) {
             // Make callback without the lock held
-            mCallback.onNfcFServicesUpdated(userId, newServices);
+            mCallback.onNfcFServicesChanged(userId, newServices,
+                    Collections.<ComponentName>emptyList());
         }
         return success;
     }
@@ -705,6 +846,11 @@ public class RegisteredNfcFServicesCache {
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Dynamic System Code, NFCID2 store:");
+        mDynamicSystemCodeNfcid2Journal.dump(pw);
+        synchronized (mLock) {
+            mWarmUsers.dump(pw);
+        }
         pw.println("Registered HCE services for current user: ");
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(ActivityManager.getCurrentUser());
@@ -18,7 +18,6 @@ package com.android.nfc.cardemulation;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
@@ -26,6 +25,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -35,27 +35,34 @@ import android.nfc.cardemulation.ApduServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.HostApduService;
 import android.nfc.cardemulation.OffHostApduService;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.Xml;
 
-import com.android.internal.util.FastXmlSerializer;
 import com.google.android.collect.Maps;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -66,7 +73,6 @@ import java.util.concurrent.atomic.AtomicReference;
  * it's less suited.
  */
 public class RegisteredServicesCache {
-    static final String XML_INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
     static final String TAG = "RegisteredServicesCache";
     static final boolean DEBUG = false;
 
@@ -78,8 +84,23 @@ public class RegisteredServicesCache {
 
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
+    // Users whose services are kept scanned while in the background
+    final WarmUserSet mWarmUsers = new WarmUserSet(WarmUserSet.MAX_WARM_USERS);
     final Callback mCallback;
+    // Legacy XML store of dynamic AIDs, only read to migrate to the journal
     final AtomicFile mDynamicAidsFile;
+    final RegistrationJournal mDynamicAidsJournal;
+    // Completes once the dynamic AIDs have been read and merged into the
+    // services; until then only statically declared AIDs are known.
+    final FutureTask<Void> mDynamicAidsLoaded = new FutureTask<Void>(new Runnable() {
+        @Override
+        public void run() {
+            loadDynamicAids();
+        }
+    }, null);
+    long mDynamicAidsLoadMillis = -1; // synchronized on mLock
+    // Parsed static service metadata, keyed by package version
+    final ParsedServicesStore<ApduServiceInfo> mParsedServices;
 
     public interface Callback {
         void onServicesUpdated(int userId, final List<ApduServiceInfo> services);
@@ -130,9 +151,19 @@ public class RegisteredServicesCache {
                     if (!replaced) {
                         int currentUser = ActivityManager.getCurrentUser();
                         if (currentUser == UserHandle.getUserId(uid)) {
-                            invalidateCache(UserHandle.getUserId(uid));
+                            // Package broadcasts carry the package name; only
+                            // that package's services need to be rescanned.
+                            String packageName = intent.getData() != null ?
+                                    intent.getData().getSchemeSpecificPart() : null;
+                            invalidateCache(UserHandle.getUserId(uid), packageName);
                         } else {
-                            // Cache will automatically be updated on user switch
+                            // Rescanned when switching to the user
+                            String packageName = intent.getData() != null ?
+                                    intent.getData().getSchemeSpecificPart() : null;
+                            synchronized (mLock) {
+                                mWarmUsers.onPackageChanged(UserHandle.getUserId(uid),
+                                        packageName);
+                            }
                         }
                     } else {
                         if (DEBUG) Log.d(TAG, "Ignoring package intent due to package being replaced.");
@@ -160,26 +191,38 @@ public class RegisteredServicesCache {
 
         File dataDir = mContext.getFilesDir();
         mDynamicAidsFile = new AtomicFile(new File(dataDir, "dynamic_aids.xml"));
+        mDynamicAidsJournal = new RegistrationJournal(new File(dataDir, "dynamic_aids.bin"));
+        mParsedServices = new ParsedServicesStore<ApduServiceInfo>(
+                new File(dataDir, "apdu_services_cache.bin"), ApduServiceInfo.CREATOR);
     }
 
     void initialize() {
-        synchronized (mLock) {
-            readDynamicAidsLocked();
-        }
+        mParsedServices.load();
+        // Statically declared AIDs can be resolved right away, dynamic AID
+        // groups are merged in once they have been loaded.
         invalidateCache(ActivityManager.getCurrentUser());
+        new Thread(mDynamicAidsLoaded, "NfcDynamicAidsLoader").start();
     }
 
-    void dump(ArrayList<ApduServiceInfo> services) {
-        for (ApduServiceInfo service : services) {
-            if (DEBUG) Log.d(TAG, service.toString());
+    /**
+     * Blocks until the dynamic AIDs are loaded; every access to dynamic AID
+     * groups by apps must wait for this, so it neither misses persisted
+     * groups nor has its changes overwritten by them.
+     */
+    private void awaitDynamicAidsLoaded() {
+        try {
+            mDynamicAidsLoaded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load dynamic AIDs", e.getCause());
         }
     }
 
-    boolean containsServiceLocked(ArrayList<ApduServiceInfo> services, ComponentName serviceName) {
+    void dump(ArrayList<ApduServiceInfo> services) {
         for (ApduServiceInfo service : services) {
-            if (service.getComponent().equals(serviceName)) return true;
+            if (DEBUG) Log.d(TAG, service.toString());
         }
-        return false;
     }
 
     public boolean hasService(int userId, ComponentName service) {
@@ -213,7 +256,12 @@ public class RegisteredServicesCache {
         return services;
     }
 
-    ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
+    /**
+     * Returns the valid HCE and off-host services of the user, or only those
+     * of packageName if it is not null. Service metadata is only parsed for
+     * packages that changed since they were last parsed.
+     */
+    ArrayList<ApduServiceInfo> getInstalledServices(int userId, String packageName) {
         PackageManager pm;
         try {
             pm = mContext.createPackageContextAsUser("android", 0,
@@ -225,20 +273,31 @@ public class RegisteredServicesCache {
 
         ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
 
+        Intent hostIntent = new Intent(HostApduService.SERVICE_INTERFACE);
+        Intent offHostIntent = new Intent(OffHostApduService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            hostIntent.setPackage(packageName);
+            offHostIntent.setPackage(packageName);
+        }
         List<ResolveInfo> resolvedServices = pm.queryIntentServicesAsUser(
-                new Intent(HostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
+                hostIntent, PackageManager.GET_META_DATA, userId);
 
         List<ResolveInfo> resolvedOffHostServices = pm.queryIntentServicesAsUser(
-                new Intent(OffHostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
+                offHostIntent, PackageManager.GET_META_DATA, userId);
         resolvedServices.addAll(resolvedOffHostServices);
 
+        HashSet<ComponentName> offHostComponents = new HashSet<ComponentName>();
+        for (ResolveInfo resolvedService : resolvedOffHostServices) {
+            ServiceInfo si = resolvedService.serviceInfo;
+            offHostComponents.add(new ComponentName(si.packageName, si.name));
+        }
+
+        HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
         for (ResolveInfo resolvedService : resolvedServices) {
             try {
-                boolean onHost = !resolvedOffHostServices.contains(resolvedService);
                 ServiceInfo si = resolvedService.serviceInfo;
                 ComponentName componentName = new ComponentName(si.packageName, si.name);
+                boolean onHost = !offHostComponents.contains(componentName);
                 // Check if the package holds the NFC permission
                 if (pm.checkPermission(android.Manifest.permission.NFC, si.packageName) !=
                         PackageManager.PERMISSION_GRANTED) {
@@ -254,10 +313,25 @@ public class RegisteredServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
+                PackageInfo packageInfo = packageInfos.get(si.packageName);
+                if (packageInfo == null) {
+                    packageInfo = pm.getPackageInfo(si.packageName, 0);
+                    packageInfos.put(si.packageName, packageInfo);
+                }
+                ApduServiceInfo service = mParsedServices.get(userId, componentName,
+                        packageInfo.versionCode, packageInfo.lastUpdateTime);
+                if (service == null || service.isOnHost() != onHost) {
+                    service = new ApduServiceInfo(pm, resolvedService, onHost);
+                    mParsedServices.put(userId, componentName, packageInfo.versionCode,
+                            packageInfo.lastUpdateTime, service);
+                } else if (DEBUG) {
+                    Log.d(TAG, "Using cached service info for " + componentName);
+                }
                 if (service != null) {
                     validServices.add(service);
                 }
+            } catch (NameNotFoundException e) {
+                Log.w(TAG, "Package of " + resolvedService.toString() + " went away", e);
             } catch (XmlPullParserException e) {
                 Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
             } catch (IOException e) {
@@ -265,16 +339,76 @@ public class RegisteredServicesCache {
             }
         }
 
+        // Forget about packages that no longer have any services
+        if (packageName != null) {
+            if (packageInfos.isEmpty()) {
+                mParsedServices.removePackage(userId, packageName);
+            }
+        } else {
+            mParsedServices.retainPackages(userId, packageInfos.keySet());
+        }
+        mParsedServices.saveIfDirty();
+
         return validServices;
     }
 
-    public void invalidateCache(int userId) {
-        final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId);
+    /**
+     * Makes userId the current user. The services of recently current users
+     * are kept, so only packages that changed while the user was in the
+     * background are rescanned, if any.
+     *
+     * @return whether the services were reported to the callback
+     */
+    public boolean onUserSwitched(int userId) {
+        Set<String> stalePackages;
+        synchronized (mLock) {
+            stalePackages = mWarmUsers.onSwitchedTo(userId);
+        }
+        if (stalePackages == null) {
+            if (DEBUG) Log.d(TAG, "Services of user " + userId + " not kept, rescanning");
+            return invalidateCache(userId);
+        }
+        boolean updated = false;
+        for (String packageName : stalePackages) {
+            updated |= invalidateCache(userId, packageName);
+        }
+        return updated;
+    }
+
+    public boolean invalidateCache(int userId) {
+        return invalidateCache(userId, null);
+    }
+
+    /**
+     * Rescans the services of the user. If packageName is not null, only the
+     * services of that package are rescanned and the others are kept as-is.
+     *
+     * @return whether the services were reported to the callback
+     */
+    public boolean invalidateCache(int userId, String packageName) {
+        final ArrayList<ApduServiceInfo> validServices =
+                getInstalledServices(userId, packageName);
         if (validServices == null) {
-            return;
+            return false;
         }
+        final ArrayList<ApduServiceInfo> allServices;
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
+            if (packageName == null) {
+                int currentUser = ActivityManager.getCurrentUser();
+                for (int evictedUserId : mWarmUsers.onScanned(userId)) {
+                    // Dynamic AIDs are kept, they are applied again on rescan
+                    UserServices evicted = mUserServices.get(evictedUserId);
+                    if (evicted != null && evictedUserId != currentUser) {
+                        evicted.services.clear();
+                    }
+                }
+            }
+
+            HashSet<ComponentName> validComponents = new HashSet<ComponentName>();
+            for (ApduServiceInfo service : validServices) {
+                validComponents.add(service.getComponent());
+            }
 
             // Find removed services
             Iterator<Map.Entry<ComponentName, ApduServiceInfo>> it =
@@ -282,7 +416,11 @@ public class RegisteredServicesCache {
             while (it.hasNext()) {
                 Map.Entry<ComponentName, ApduServiceInfo> entry =
                         (Map.Entry<ComponentName, ApduServiceInfo>) it.next();
-                if (!containsServiceLocked(validServices, entry.getKey())) {
+                if (packageName != null &&
+                        !packageName.equals(entry.getKey().getPackageName())) {
+                    continue;
+                }
+                if (!validComponents.contains(entry.getKey())) {
                     Log.d(TAG, "Service removed: " + entry.getKey());
                     it.remove();
                 }
@@ -293,36 +431,14 @@ public class RegisteredServicesCache {
                 userServices.services.put(service.getComponent(), service);
             }
 
-            // Apply dynamic AID mappings
-            ArrayList<ComponentName> toBeRemoved = new ArrayList<ComponentName>();
-            for (Map.Entry<ComponentName, DynamicAids> entry :
-                    userServices.dynamicAids.entrySet()) {
-                // Verify component / uid match
-                ComponentName component = entry.getKey();
-                DynamicAids dynamicAids = entry.getValue();
-                ApduServiceInfo serviceInfo = userServices.services.get(component);
-                if (serviceInfo == null || (serviceInfo.getUid() != dynamicAids.uid)) {
-                    toBeRemoved.add(component);
-                    continue;
-                } else {
-                    for (AidGroup group : dynamicAids.aidGroups.values()) {
-                        serviceInfo.setOrReplaceDynamicAidGroup(group);
-                    }
-                }
-            }
-
-            if (toBeRemoved.size() > 0) {
-                for (ComponentName component : toBeRemoved) {
-                    Log.d(TAG, "Removing dynamic AIDs registered by " + component);
-                    userServices.dynamicAids.remove(component);
-                }
-                // Persist to filesystem
-                writeDynamicAidsLocked();
-            }
+            // Only freshly scanned services lack their dynamic AIDs
+            applyDynamicAidsLocked(userId, userServices, validComponents);
+            allServices = new ArrayList<ApduServiceInfo>(userServices.services.values());
         }
 
-        mCallback.onServicesUpdated(userId, Collections.unmodifiableList(validServices));
-        dump(validServices);
+        mCallback.onServicesUpdated(userId, Collections.unmodifiableList(allServices));
+        dump(allServices);
+        return true;
     }
 
     private void readDynamicAidsLocked() {
@@ -407,42 +523,142 @@ public class RegisteredServicesCache {
         }
     }
 
-    private boolean writeDynamicAidsLocked() {
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicAidsFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices user = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicAids> service : user.dynamicAids.entrySet()) {
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", service.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(service.getValue().uid));
-                    for (AidGroup group : service.getValue().aidGroups.values()) {
-                        group.writeAsXml(out);
-                    }
-                    out.endTag(null, "service");
+    /**
+     * Applies the dynamic AID groups of the user to the given services, or
+     * to all services if components is null, and drops the groups of
+     * services that are gone or changed uid.
+     */
+    private void applyDynamicAidsLocked(int userId, UserServices userServices,
+            Set<ComponentName> components) {
+        ArrayList<ComponentName> toBeRemoved = new ArrayList<ComponentName>();
+        for (Map.Entry<ComponentName, DynamicAids> entry :
+                userServices.dynamicAids.entrySet()) {
+            // Verify component / uid match
+            ComponentName component = entry.getKey();
+            DynamicAids dynamicAids = entry.getValue();
+            ApduServiceInfo serviceInfo = userServices.services.get(component);
+            if (serviceInfo == null || (serviceInfo.getUid() != dynamicAids.uid)) {
+                toBeRemoved.add(component);
+                continue;
+            } else if (components == null || components.contains(component)) {
+                for (AidGroup group : dynamicAids.aidGroups.values()) {
+                    serviceInfo.setOrReplaceDynamicAidGroup(group);
                 }
             }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicAidsFile.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic AIDs", e);
-            if (fos != null) {
-                mDynamicAidsFile.failWrite(fos);
+        }
+
+        for (ComponentName component : toBeRemoved) {
+            Log.d(TAG, "Removing dynamic AIDs registered by " + component);
+            DynamicAids dynamicAids = userServices.dynamicAids.remove(component);
+            for (String category : dynamicAids.aidGroups.keySet()) {
+                mDynamicAidsJournal.remove(dynamicAidKey(userId, component, category));
             }
-            return false;
         }
     }
 
+    /**
+     * Runs on a background thread after the static services have been
+     * scanned, and merges the persisted dynamic AID groups into them.
+     */
+    void loadDynamicAids() {
+        final long start = SystemClock.elapsedRealtime();
+        Map<String, byte[]> entries = mDynamicAidsJournal.load();
+        final int userId = ActivityManager.getCurrentUser();
+        ArrayList<ApduServiceInfo> newServices = null;
+        synchronized (mLock) {
+            if (entries == null) {
+                // No journal yet, migrate the registrations of the XML store
+                readDynamicAidsLocked();
+                if (mDynamicAidsJournal.reset(encodeDynamicAidsLocked())) {
+                    mDynamicAidsFile.delete();
+                }
+            } else {
+                for (byte[] value : entries.values()) {
+                    decodeDynamicAidGroupLocked(value);
+                }
+            }
+            UserServices userServices = findOrCreateUserLocked(userId);
+            if (!userServices.dynamicAids.isEmpty()) {
+                applyDynamicAidsLocked(userId, userServices, null);
+                newServices = new ArrayList<ApduServiceInfo>(userServices.services.values());
+            }
+            mDynamicAidsLoadMillis = SystemClock.elapsedRealtime() - start;
+        }
+        if (DEBUG) Log.d(TAG, "Dynamic AIDs loaded in " + mDynamicAidsLoadMillis + "ms");
+        if (newServices != null) {
+            mCallback.onServicesUpdated(userId, Collections.unmodifiableList(newServices));
+        }
+    }
+
+    private Map<String, byte[]> encodeDynamicAidsLocked() {
+        HashMap<String, byte[]> entries = new HashMap<String, byte[]>();
+        for (int i = 0; i < mUserServices.size(); i++) {
+            final int userId = mUserServices.keyAt(i);
+            final UserServices user = mUserServices.valueAt(i);
+            for (Map.Entry<ComponentName, DynamicAids> service : user.dynamicAids.entrySet()) {
+                for (AidGroup group : service.getValue().aidGroups.values()) {
+                    entries.put(dynamicAidKey(userId, service.getKey(), group.getCategory()),
+                            encodeAidGroup(service.getValue().uid, service.getKey(), group));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void decodeDynamicAidGroupLocked(byte[] value) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            int uid = in.readInt();
+            ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+            String category = in.readUTF();
+            int count = in.readInt();
+            ArrayList<String> aids = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                aids.add(in.readUTF());
+            }
+            if (component == null) {
+                Log.e(TAG, "Invalid component in dynamic AID group");
+                return;
+            }
+            UserServices services = findOrCreateUserLocked(UserHandle.getUserId(uid));
+            DynamicAids dynAids = services.dynamicAids.get(component);
+            if (dynAids == null) {
+                dynAids = new DynamicAids(uid);
+                services.dynamicAids.put(component, dynAids);
+            }
+            dynAids.aidGroups.put(category, new AidGroup(aids, category));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode dynamic AID group.");
+        }
+    }
+
+    static String dynamicAidKey(int userId, ComponentName component, String category) {
+        return userId + "/" + component.flattenToString() + "/" + category;
+    }
+
+    static byte[] encodeAidGroup(int uid, ComponentName component, AidGroup group) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(uid);
+            out.writeUTF(component.flattenToString());
+            out.writeUTF(group.getCategory());
+            List<String> aids = group.getAids();
+            out.writeInt(aids.size());
+            for (String aid : aids) {
+                out.writeUTF(aid);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
     public boolean registerAidGroupForService(int userId, int uid,
             ComponentName componentName, AidGroup aidGroup) {
+        awaitDynamicAidsLoaded();
         ArrayList<ApduServiceInfo> newServices = null;
         boolean success;
         synchronized (mLock) {
@@ -477,14 +693,13 @@ public class RegisteredServicesCache {
                 services.dynamicAids.put(componentName, dynAids);
             }
             dynAids.aidGroups.put(aidGroup.getCategory(), aidGroup);
-            success = writeDynamicAidsLocked();
-            if (success) {
-                newServices = new ArrayList<ApduServiceInfo>(services.services.values());
-            } else {
-                Log.e(TAG, "Failed to persist AID group.");
-                // Undo registration
-                dynAids.aidGroups.remove(aidGroup.getCategory());
-            }
+            // Written by the journal in the background, so apps registering
+            // several groups in a row only cause a single write.
+            mDynamicAidsJournal.put(
+                    dynamicAidKey(userId, componentName, aidGroup.getCategory()),
+                    encodeAidGroup(uid, componentName, aidGroup));
+            success = true;
+            newServices = new ArrayList<ApduServiceInfo>(services.services.values());
         }
         if (success) {
             // Make callback without the lock held
@@ -495,6 +710,7 @@ public class RegisteredServicesCache {
 
     public AidGroup getAidGroupForService(int userId, int uid, ComponentName componentName,
             String category) {
+        awaitDynamicAidsLoaded();
         ApduServiceInfo serviceInfo = getService(userId, componentName);
         if (serviceInfo != null) {
             if (serviceInfo.getUid() != uid) {
@@ -510,6 +726,7 @@ public class RegisteredServicesCache {
 
     public boolean removeAidGroupForService(int userId, int uid, ComponentName componentName,
             String category) {
+        awaitDynamicAidsLoaded();
         boolean success = false;
         ArrayList<ApduServiceInfo> newServices = null;
         synchronized (mLock) {
@@ -528,15 +745,10 @@ public class RegisteredServicesCache {
                 // Remove from local cache
                 DynamicAids dynAids = services.dynamicAids.get(componentName);
                 if (dynAids != null) {
-                    AidGroup deletedGroup = dynAids.aidGroups.remove(category);
-                    success = writeDynamicAidsLocked();
-                    if (success) {
-                        newServices = new ArrayList<ApduServiceInfo>(services.services.values());
-                    } else {
-                        Log.e(TAG, "Could not persist deleted AID group.");
-                        dynAids.aidGroups.put(category, deletedGroup);
-                        return false;
-                    }
+                    dynAids.aidGroups.remove(category);
+                    mDynamicAidsJournal.remove(dynamicAidKey(userId, componentName, category));
+                    success = true;
+                    newServices = new ArrayList<ApduServiceInfo>(services.services.values());
                 } else {
                     Log.e(TAG, "Could not find aid group in local cache.");
                 }
@@ -551,6 +763,15 @@ public class RegisteredServicesCache {
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Dynamic AID store:");
+        synchronized (mLock) {
+            pw.println("    " + (mDynamicAidsLoadMillis < 0 ? "loading" :
+                    "loaded in " + mDynamicAidsLoadMillis + "ms"));
+        }
+        mDynamicAidsJournal.dump(pw);
+        synchronized (mLock) {
+            mWarmUsers.dump(pw);
+        }
         pw.println("Registered HCE services for current user: ");
         UserServices userServices = findOrCreateUserLocked(ActivityManager.getCurrentUser());
         for (ApduServiceInfo service : userServices.services.values()) {
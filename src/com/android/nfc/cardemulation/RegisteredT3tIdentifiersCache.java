@@ -25,7 +25,9 @@ import android.util.Log;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -35,8 +37,23 @@ public class RegisteredT3tIdentifiersCache {
 
     static final boolean DBG = false;
 
-    // All NFC-F services that have registered
-    List<NfcFServiceInfo> mServices = new ArrayList<NfcFServiceInfo>();
+    static final int MAX_CACHED_USERS = WarmUserSet.MAX_WARM_USERS;
+
+    // All NFC-F services of the current user that have registered, by component
+    HashMap<ComponentName, NfcFServiceInfo> mServices;
+    int mCurrentUserId;
+
+    // Services of recently current users, including the current one, so that
+    // switching back to a user only swaps in its services
+    final LinkedHashMap<Integer, HashMap<ComponentName, NfcFServiceInfo>> mUserServices =
+            new LinkedHashMap<Integer, HashMap<ComponentName, NfcFServiceInfo>>(
+                    16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, HashMap<ComponentName, NfcFServiceInfo>> eldest) {
+            return size() > MAX_CACHED_USERS;
+        }
+    };
 
     final HashMap<String, NfcFServiceInfo> mForegroundT3tIdentifiersCache =
             new HashMap<String, NfcFServiceInfo>();
@@ -83,6 +100,9 @@ public class RegisteredT3tIdentifiersCache {
         Log.d(TAG, "RegisteredT3tIdentifiersCache");
         mContext = context;
         mRoutingManager = new SystemCodeRoutingManager();
+        mCurrentUserId = ActivityManager.getCurrentUser();
+        mServices = new HashMap<ComponentName, NfcFServiceInfo>();
+        mUserServices.put(mCurrentUserId, mServices);
     }
 
     public NfcFServiceInfo resolveNfcid2(String nfcid2) {
@@ -100,14 +120,11 @@ public class RegisteredT3tIdentifiersCache {
         if (DBG) Log.d(TAG, "generateForegroundT3tIdentifiersCacheLocked");
         mForegroundT3tIdentifiersCache.clear();
         if (mEnabledForegroundService != null) {
-            for (NfcFServiceInfo service : mServices) {
-                if (mEnabledForegroundService.equals(service.getComponent())) {
-                    if (!service.getSystemCode().equalsIgnoreCase("NULL") &&
-                            !service.getNfcid2().equalsIgnoreCase("NULL")) {
-                        mForegroundT3tIdentifiersCache.put(service.getNfcid2(), service);
-                    }
-                    break;
-                }
+            NfcFServiceInfo service = mServices.get(mEnabledForegroundService);
+            if (service != null &&
+                    !service.getSystemCode().equalsIgnoreCase("NULL") &&
+                    !service.getNfcid2().equalsIgnoreCase("NULL")) {
+                mForegroundT3tIdentifiersCache.put(service.getNfcid2(), service);
             }
         }
 
@@ -146,15 +163,44 @@ public class RegisteredT3tIdentifiersCache {
     public void onServicesUpdated(int userId, List<NfcFServiceInfo> services) {
         if (DBG) Log.d(TAG, "onServicesUpdated");
         synchronized (mLock) {
-            if (ActivityManager.getCurrentUser() == userId) {
+            if (mCurrentUserId == userId) {
                 // Rebuild our internal data-structures
-                mServices = services;
+                mServices.clear();
+                putServicesLocked(services);
+            } else {
+                Log.d(TAG, "Ignoring update because it's not for the current user.");
+                mUserServices.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Applies a partial update; services that are not mentioned are kept.
+     * Routing is not touched here, the enabled foreground service is
+     * re-evaluated by EnabledNfcFServices if it was part of the change.
+     */
+    public void onServicesChanged(int userId, List<NfcFServiceInfo> updated,
+            List<ComponentName> removed) {
+        if (DBG) Log.d(TAG, "onServicesChanged");
+        synchronized (mLock) {
+            if (mCurrentUserId == userId) {
+                for (ComponentName component : removed) {
+                    mServices.remove(component);
+                }
+                putServicesLocked(updated);
             } else {
                 Log.d(TAG, "Ignoring update because it's not for the current user.");
+                mUserServices.remove(userId);
             }
         }
     }
 
+    void putServicesLocked(Collection<NfcFServiceInfo> services) {
+        for (NfcFServiceInfo service : services) {
+            mServices.put(service.getComponent(), service);
+        }
+    }
+
     public void onEnabledForegroundNfcFServiceChanged(ComponentName component) {
         if (DBG) Log.d(TAG, "Enabled foreground service changed.");
         synchronized (mLock) {
@@ -188,15 +234,33 @@ public class RegisteredT3tIdentifiersCache {
         mRoutingManager.onNfccRoutingTableCleared();
     }
 
-    public void onUserSwitched() {
+    /**
+     * Swaps in the services of the user, if they were kept since the user
+     * was last current. Updates for background users drop their services,
+     * so kept services are always up to date.
+     *
+     * @return whether the services of the user were kept
+     */
+    public boolean onUserSwitched(int userId) {
         synchronized (mLock) {
             mForegroundT3tIdentifiersCache.clear();
             updateRoutingLocked();
             mEnabledForegroundService = null;
+
+            mCurrentUserId = userId;
+            mServices = mUserServices.get(userId);
+            if (mServices != null) {
+                if (DBG) Log.d(TAG, "Using kept services of user " + userId);
+                return true;
+            }
+            mServices = new HashMap<ComponentName, NfcFServiceInfo>();
+            mUserServices.put(userId, mServices);
+            return false;
         }
     }
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("    Services kept for users: " + mUserServices.keySet());
         pw.println("    T3T Identifier cache entries: ");
         for (Map.Entry<String, NfcFServiceInfo> entry : mForegroundT3tIdentifiersCache.entrySet()) {
             pw.println("    NFCID2: " + entry.getKey());
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only binary store for dynamic registrations made by apps, such as
+ * AID groups or System Codes.
+ * <p>The store is a map of opaque keys to opaque values. Every change is
+ * appended to the file as a single record instead of rewriting all
+ * registrations, and the file is compacted into a snapshot of the live
+ * entries once it holds enough stale records.
+ * <p>Callers update the in-memory state and return right away; records are
+ * written on a shared background thread. Changes arriving within
+ * {@link #WRITE_DELAY_MS} of each other are coalesced into one write, and
+ * repeated changes to the same key only write the last value.
+ */
+class RegistrationJournal {
+    static final String TAG = "RegistrationJournal";
+    static final boolean DBG = false;
+
+    static final int FILE_MAGIC = 0x4e524a4c; // "NRJL"
+    static final int FILE_VERSION = 1;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_REMOVE = 2;
+
+    // Compact once the file holds this many records more than live entries
+    static final int COMPACT_SLACK = 64;
+    static final long WRITE_DELAY_MS = 200;
+
+    static HandlerThread sWriterThread;
+
+    final AtomicFile mFile;
+    final Handler mHandler;
+    final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // All variables below synchronized on this
+    final HashMap<String, byte[]> mEntries = new HashMap<String, byte[]>();
+    // Changes not written yet, in order; a null value is a removal
+    final LinkedHashMap<String, byte[]> mPending = new LinkedHashMap<String, byte[]>();
+    int mRecordCount;
+    boolean mCompactRequested;
+    boolean mFlushScheduled;
+    int mAppendCount;
+    int mCompactCount;
+
+    RegistrationJournal(File file) {
+        mFile = new AtomicFile(file);
+        mHandler = new Handler(getWriterLooper());
+    }
+
+    static synchronized Looper getWriterLooper() {
+        if (sWriterThread == null) {
+            sWriterThread = new HandlerThread("NfcRegistrationWriter",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sWriterThread.start();
+        }
+        return sWriterThread.getLooper();
+    }
+
+    /**
+     * Reads the journal and returns the live entries, or null if there is
+     * no journal yet. An unreadable journal is discarded and an empty map
+     * returned; a record torn by a crash is dropped by compacting the file
+     * before anything else is appended.
+     */
+    synchronized Map<String, byte[]> load() {
+        mEntries.clear();
+        mPending.clear();
+        mRecordCount = 0;
+        if (!mFile.getBaseFile().exists()) {
+            if (DBG) Log.d(TAG, mFile.getBaseFile() + " does not exist.");
+            return null;
+        }
+        DataInputStream in = null;
+        boolean torn = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Bad journal header");
+            }
+            while (true) {
+                int op = in.read();
+                if (op < 0) break;
+                try {
+                    String key = in.readUTF();
+                    if (op == OP_PUT) {
+                        byte[] value = new byte[in.readInt()];
+                        in.readFully(value);
+                        mEntries.put(key, value);
+                    } else if (op == OP_REMOVE) {
+                        mEntries.remove(key);
+                    } else {
+                        throw new IOException("Unknown op " + op);
+                    }
+                    mRecordCount++;
+                } catch (EOFException e) {
+                    Log.w(TAG, "Dropping torn record at end of " + mFile.getBaseFile());
+                    torn = true;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read " + mFile.getBaseFile() + ", trashing.");
+            mEntries.clear();
+            mRecordCount = 0;
+            mFile.delete();
+            return new HashMap<String, byte[]>();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (torn) {
+            writeSnapshot(new HashMap<String, byte[]>(mEntries));
+        }
+        return new HashMap<String, byte[]>(mEntries);
+    }
+
+    /**
+     * Replaces the contents of the journal and writes them synchronously,
+     * e.g. when migrating from an older storage format.
+     */
+    synchronized boolean reset(Map<String, byte[]> entries) {
+        mEntries.clear();
+        mEntries.putAll(entries);
+        mPending.clear();
+        return writeSnapshot(new HashMap<String, byte[]>(mEntries));
+    }
+
+    synchronized void put(String key, byte[] value) {
+        mEntries.put(key, value);
+        mPending.remove(key);
+        mPending.put(key, value);
+        scheduleFlushLocked();
+    }
+
+    synchronized void remove(String key) {
+        if (mEntries.remove(key) == null && !mPending.containsKey(key)) {
+            return;
+        }
+        mPending.remove(key);
+        mPending.put(key, null);
+        scheduleFlushLocked();
+    }
+
+    void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes pending changes; only runs on the writer thread, so appends and
+     * snapshots never interleave.
+     */
+    void flush() {
+        LinkedHashMap<String, byte[]> pending = null;
+        HashMap<String, byte[]> snapshot = null;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty() && !mCompactRequested) {
+                return;
+            }
+            if (mCompactRequested ||
+                    mRecordCount + mPending.size() > mEntries.size() + COMPACT_SLACK) {
+                // mEntries already contains everything pending
+                snapshot = new HashMap<String, byte[]>(mEntries);
+            } else {
+                pending = new LinkedHashMap<String, byte[]>(mPending);
+            }
+            mPending.clear();
+        }
+        if (snapshot != null) {
+            writeSnapshot(snapshot);
+        } else if (!append(pending)) {
+            // Position of the last record is unknown now, rewrite everything
+            synchronized (this) {
+                mCompactRequested = true;
+                scheduleFlushLocked();
+            }
+        }
+    }
+
+    boolean append(LinkedHashMap<String, byte[]> records) {
+        if (!mFile.getBaseFile().exists()) {
+            HashMap<String, byte[]> snapshot;
+            synchronized (this) {
+                snapshot = new HashMap<String, byte[]>(mEntries);
+            }
+            return writeSnapshot(snapshot);
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile.getBaseFile(), true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (Map.Entry<String, byte[]> record : records.entrySet()) {
+                writeRecord(out, record.getKey(), record.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+            synchronized (this) {
+                mRecordCount += records.size();
+                mAppendCount++;
+            }
+            if (DBG) Log.d(TAG, "Appended " + records.size() + " records");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to " + mFile.getBaseFile(), e);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    // Called from the writer thread, or from load() and reset() before
+    // anything has been queued for it.
+    boolean writeSnapshot(Map<String, byte[]> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            synchronized (this) {
+                mRecordCount = entries.size();
+                mCompactRequested = false;
+                mCompactCount++;
+            }
+            if (DBG) Log.d(TAG, "Compacted to " + entries.size() + " records");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            // Retry later, rather than waiting for the next registration
+            synchronized (this) {
+                mCompactRequested = true;
+                scheduleFlushLocked();
+            }
+            return false;
+        }
+    }
+
+    static void writeRecord(DataOutputStream out, String key, byte[] value)
+            throws IOException {
+        if (value != null) {
+            out.writeByte(OP_PUT);
+            out.writeUTF(key);
+            out.writeInt(value.length);
+            out.write(value);
+        } else {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(key);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("    " + mFile.getBaseFile().getName() + ": entries=" + mEntries.size() +
+                " records=" + mRecordCount + " pending=" + mPending.size() +
+                " appends=" + mAppendCount + " compactions=" + mCompactCount);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bookkeeping for the users whose scanned services are kept while they are
+ * in the background.
+ * <p>Package broadcasts for background users don't trigger a rescan; the
+ * package is only remembered, and rescanned when the user becomes current
+ * again. Users that were not current recently are dropped in LRU order, and
+ * get a full rescan when switched to.
+ * <p>Not thread-safe; callers synchronize on their own lock.
+ */
+class WarmUserSet {
+    static final int MAX_WARM_USERS = 4;
+
+    // userId -> packages that changed while the user was in the background,
+    // or null if the user needs a full rescan. In order of last use.
+    final LinkedHashMap<Integer, HashSet<String>> mUsers =
+            new LinkedHashMap<Integer, HashSet<String>>();
+    final int mMaxUsers;
+
+    WarmUserSet(int maxUsers) {
+        mMaxUsers = maxUsers;
+    }
+
+    /**
+     * Records a full scan of the user, and returns the users whose services
+     * should be released because they were not used recently.
+     */
+    List<Integer> onScanned(int userId) {
+        mUsers.remove(userId);
+        mUsers.put(userId, new HashSet<String>());
+        ArrayList<Integer> evicted = new ArrayList<Integer>();
+        Iterator<Map.Entry<Integer, HashSet<String>>> it = mUsers.entrySet().iterator();
+        while (mUsers.size() - evicted.size() > mMaxUsers && it.hasNext()) {
+            evicted.add(it.next().getKey());
+        }
+        for (Integer user : evicted) {
+            mUsers.remove(user);
+        }
+        return evicted;
+    }
+
+    /**
+     * Remembers that a package of a background user changed; a null
+     * packageName means any package may have changed.
+     */
+    void onPackageChanged(int userId, String packageName) {
+        if (!mUsers.containsKey(userId)) {
+            // Not warm, gets a full rescan anyway
+            return;
+        }
+        HashSet<String> packages = mUsers.get(userId);
+        if (packageName == null) {
+            mUsers.put(userId, null);
+        } else if (packages != null) {
+            packages.add(packageName);
+        }
+    }
+
+    /**
+     * Marks the user as most recently used, and returns the packages that
+     * must be rescanned for it, or null if it needs a full rescan.
+     */
+    Set<String> onSwitchedTo(int userId) {
+        HashSet<String> packages = mUsers.remove(userId);
+        if (packages != null) {
+            mUsers.put(userId, new HashSet<String>());
+        }
+        return packages;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("    Warm users (least recent first): " + mUsers.keySet());
+    }
+}
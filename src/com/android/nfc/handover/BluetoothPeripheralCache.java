@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.handover;
+
+import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadset;
+import android.bluetooth.BluetoothInputDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide state for peripheral handover: the Bluetooth profile
+ * proxies, and the peripherals a previous handover bonded and connected.
+ * Only the bond is remembered; the profiles are connected again on every
+ * handover, so a profile that failed once is tried again the next time.
+ * <p>Getting a profile proxy binds to the Bluetooth service, so the proxies
+ * are requested once and kept for the lifetime of the process. They stay
+ * valid across Bluetooth restarts; the Bluetooth stack reconnects them.
+ */
+class BluetoothPeripheralCache implements BluetoothProfile.ServiceListener {
+    static final String TAG = "BluetoothPeripheralCache";
+    static final boolean DBG = false;
+
+    // Peripherals remembered, least recently used are dropped first
+    static final int MAX_PERIPHERALS = 16;
+
+    interface Listener {
+        /**
+         * Called on the main thread when the proxies requested with
+         * {@link #requestProxies} are connected.
+         */
+        void onProxiesConnected();
+    }
+
+    static BluetoothPeripheralCache sInstance;
+
+    final Context mContext;
+    final BluetoothAdapter mBluetoothAdapter;
+
+    // All variables below synchronized on this
+    BluetoothA2dp mA2dp;
+    BluetoothHeadset mHeadset;
+    BluetoothInputDevice mInput;
+    boolean mA2dpRequested;
+    boolean mHeadsetRequested;
+    boolean mInputRequested;
+    final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    // address -> true, in access order
+    final LinkedHashMap<String, Boolean> mPeripherals =
+            new LinkedHashMap<String, Boolean>(MAX_PERIPHERALS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_PERIPHERALS;
+        }
+    };
+
+    static synchronized BluetoothPeripheralCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BluetoothPeripheralCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    BluetoothPeripheralCache(Context context) {
+        mContext = context;
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter);
+    }
+
+    /**
+     * Requests the profile proxies needed for the given transport, unless
+     * they are connected already.
+     *
+     * @return false if the proxies couldn't be requested
+     */
+    boolean requestProxies(int transport, Listener listener) {
+        synchronized (this) {
+            if (hasProxiesLocked(transport)) {
+                return true;
+            }
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+            if (transport == BluetoothDevice.TRANSPORT_LE) {
+                if (!mInputRequested) {
+                    mInputRequested = mBluetoothAdapter.getProfileProxy(mContext, this,
+                            BluetoothProfile.INPUT_DEVICE);
+                    if (!mInputRequested) return false;
+                }
+            } else {
+                if (!mHeadsetRequested) {
+                    mHeadsetRequested = mBluetoothAdapter.getProfileProxy(mContext, this,
+                            BluetoothProfile.HEADSET);
+                    if (!mHeadsetRequested) return false;
+                }
+                if (!mA2dpRequested) {
+                    mA2dpRequested = mBluetoothAdapter.getProfileProxy(mContext, this,
+                            BluetoothProfile.A2DP);
+                    if (!mA2dpRequested) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    void removeListener(Listener listener) {
+        synchronized (this) {
+            mListeners.remove(listener);
+        }
+    }
+
+    boolean hasProxies(int transport) {
+        synchronized (this) {
+            return hasProxiesLocked(transport);
+        }
+    }
+
+    private boolean hasProxiesLocked(int transport) {
+        if (transport == BluetoothDevice.TRANSPORT_LE) {
+            return mInput != null;
+        }
+        return mHeadset != null && mA2dp != null;
+    }
+
+    synchronized BluetoothA2dp getA2dp() {
+        return mA2dp;
+    }
+
+    synchronized BluetoothHeadset getHeadset() {
+        return mHeadset;
+    }
+
+    synchronized BluetoothInputDevice getInput() {
+        return mInput;
+    }
+
+    /**
+     * @return true if a previous handover connected to the peripheral with
+     *         the given address, and it is still bonded
+     */
+    boolean isKnownPeripheral(String address) {
+        synchronized (this) {
+            // get() rather than containsKey(), to update the access order
+            return mPeripherals.get(address) != null;
+        }
+    }
+
+    /**
+     * Remembers that a handover bonded and connected to the peripheral.
+     */
+    void addPeripheral(String address) {
+        synchronized (this) {
+            mPeripherals.put(address, Boolean.TRUE);
+        }
+    }
+
+    void removePeripheral(String address) {
+        synchronized (this) {
+            mPeripherals.remove(address);
+        }
+    }
+
+    final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // A removed bond makes the fast path of the next handover invalid
+            int bond = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothAdapter.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (bond == BluetoothDevice.BOND_NONE && device != null) {
+                if (DBG) Log.d(TAG, "Bond removed: " + device);
+                removePeripheral(device.getAddress());
+            }
+        }
+    };
+
+    @Override
+    public void onServiceConnected(int profile, BluetoothProfile proxy) {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            switch (profile) {
+                case BluetoothProfile.HEADSET:
+                    mHeadset = (BluetoothHeadset) proxy;
+                    break;
+                case BluetoothProfile.A2DP:
+                    mA2dp = (BluetoothA2dp) proxy;
+                    break;
+                case BluetoothProfile.INPUT_DEVICE:
+                    mInput = (BluetoothInputDevice) proxy;
+                    break;
+            }
+            listeners = new ArrayList<Listener>(mListeners);
+        }
+        for (Listener listener : listeners) {
+            listener.onProxiesConnected();
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(int profile) {
+        // The proxy stays requested; it is connected again when the
+        // profile service comes back.
+        synchronized (this) {
+            switch (profile) {
+                case BluetoothProfile.HEADSET:
+                    mHeadset = null;
+                    break;
+                case BluetoothProfile.A2DP:
+                    mA2dp = null;
+                    break;
+                case BluetoothProfile.INPUT_DEVICE:
+                    mInput = null;
+                    break;
+            }
+        }
+    }
+}
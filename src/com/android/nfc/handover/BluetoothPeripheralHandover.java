@@ -49,8 +49,11 @@ import com.android.nfc.R;
  * designed to be re-used after the sequence has completed or timed out.
  * Subsequent NFC interactions should use new objects.
  *
+ * The profile proxies are shared through {@link BluetoothPeripheralCache},
+ * which also remembers headsets this class connected before; tapping such a
+ * headset again connects it without going through bonding.
  */
-public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceListener {
+public class BluetoothPeripheralHandover implements BluetoothPeripheralCache.Listener {
     static final String TAG = "BluetoothPeripheralHandover";
     static final boolean DBG = false;
 
@@ -86,6 +89,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     final BluetoothAdapter mBluetoothAdapter;
     final int mTransport;
     final boolean mProvisioning;
+    final BluetoothPeripheralCache mCache;
 
     final Object mLock = new Object();
 
@@ -96,8 +100,10 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     int mA2dpResult; // used only in STATE_CONNECTING and STATE_DISCONNETING
     int mHidResult;
     OobData mOobData;
+    // Set if a previous handover bonded and connected to the device
+    boolean mKnownPeripheral;
 
-    // protected by mLock
+    // protected by mLock; owned by mCache
     BluetoothA2dp mA2dp;
     BluetoothHeadset mHeadset;
     BluetoothInputDevice mInput;
@@ -116,6 +122,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
         mOobData = oobData;
         mCallback = callback;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mCache = BluetoothPeripheralCache.getInstance(context);
 
         ContentResolver contentResolver = mContext.getContentResolver();
         mProvisioning = Settings.Secure.getInt(contentResolver,
@@ -179,18 +186,29 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     void nextStepInit() {
         switch (mState) {
             case STATE_INIT:
-                if (mA2dp == null || mHeadset == null || mInput == null) {
+                if (mTransport != BluetoothDevice.TRANSPORT_LE) {
+                    mKnownPeripheral = mCache.isKnownPeripheral(mDevice.getAddress());
+                }
+                if (!mCache.hasProxies(mTransport)) {
                     mState = STATE_WAITING_FOR_PROXIES;
-                    if (!getProfileProxys()) {
+                    if (!mCache.requestProxies(mTransport, this)) {
                         complete(false);
                     }
                     break;
                 }
                 // fall-through
             case STATE_WAITING_FOR_PROXIES:
+                if (!mCache.hasProxies(mTransport)) {
+                    // Still waiting for another proxy
+                    break;
+                }
+                mCache.removeListener(this);
                 mState = STATE_INIT_COMPLETE;
                 // Check connected devices and see if we need to disconnect
                 synchronized(mLock) {
+                    mA2dp = mCache.getA2dp();
+                    mHeadset = mCache.getHeadset();
+                    mInput = mCache.getInput();
                     if (mTransport == BluetoothDevice.TRANSPORT_LE) {
                         if (mInput.getConnectedDevices().contains(mDevice)) {
                             Log.i(TAG, "ACTION_DISCONNECT addr=" + mDevice + " name=" + mName);
@@ -200,8 +218,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                             mAction = ACTION_CONNECT;
                         }
                     } else {
-                        if (mA2dp.getConnectedDevices().contains(mDevice) ||
-                                mHeadset.getConnectedDevices().contains(mDevice)) {
+                        if (isConnected(mA2dp) || isConnected(mHeadset)) {
                             Log.i(TAG, "ACTION_DISCONNECT addr=" + mDevice + " name=" + mName);
                             mAction = ACTION_DISCONNECT;
                         } else {
@@ -280,25 +297,21 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
         return mContext.getString(resid, mName != null ? mName : R.string.device);
     }
 
-    boolean getProfileProxys() {
-
-        if (mTransport == BluetoothDevice.TRANSPORT_LE) {
-            if (!mBluetoothAdapter.getProfileProxy(mContext, this, BluetoothProfile.INPUT_DEVICE))
-                return false;
-        } else {
-            if(!mBluetoothAdapter.getProfileProxy(mContext, this, BluetoothProfile.HEADSET))
-                return false;
-
-            if(!mBluetoothAdapter.getProfileProxy(mContext, this, BluetoothProfile.A2DP))
-                return false;
-        }
-
-        return true;
+    boolean isConnected(BluetoothProfile proxy) {
+        return proxy.getConnectionState(mDevice) == BluetoothProfile.STATE_CONNECTED;
     }
 
     void nextStepConnect() {
         switch (mState) {
             case STATE_INIT_COMPLETE:
+                if (mKnownPeripheral) {
+                    // Bonded by a previous handover; the cache forgets
+                    // devices whose bond was removed.
+                    if (DBG) Log.d(TAG, "Known peripheral, connecting");
+                    mState = STATE_BONDING;
+                    nextStepConnect();
+                    break;
+                }
 
                 if (mDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                     requestPairConfirmation();
@@ -344,7 +357,8 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                         } else {
                             mHfpResult = RESULT_CONNECTED;
                         }
-                        if (mA2dp.getConnectionState(mDevice) != BluetoothProfile.STATE_CONNECTED) {
+                        if (mA2dp.getConnectionState(mDevice) !=
+                                BluetoothProfile.STATE_CONNECTED) {
                             mA2dpResult = RESULT_PENDING;
                             mA2dp.connect(mDevice);
                         } else {
@@ -458,21 +472,20 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
 
     void complete(boolean connected) {
         if (DBG) Log.d(TAG, "complete()");
+        if (mTransport != BluetoothDevice.TRANSPORT_LE && mAction == ACTION_CONNECT) {
+            // Remember the outcome for the next tap
+            if (connected) {
+                mCache.addPeripheral(mDevice.getAddress());
+            } else {
+                mCache.removePeripheral(mDevice.getAddress());
+            }
+        }
         mState = STATE_COMPLETE;
         mContext.unregisterReceiver(mReceiver);
         mHandler.removeMessages(MSG_TIMEOUT);
+        mCache.removeListener(this);
         synchronized (mLock) {
-            if (mA2dp != null) {
-                mBluetoothAdapter.closeProfileProxy(BluetoothProfile.A2DP, mA2dp);
-            }
-            if (mHeadset != null) {
-                mBluetoothAdapter.closeProfileProxy(BluetoothProfile.HEADSET, mHeadset);
-            }
-
-            if (mInput != null) {
-                mBluetoothAdapter.closeProfileProxy(BluetoothProfile.INPUT_DEVICE, mInput);
-            }
-
+            // The proxies stay open in the cache
             mA2dp = null;
             mHeadset = null;
             mInput = null;
@@ -534,33 +547,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     }
 
     @Override
-    public void onServiceConnected(int profile, BluetoothProfile proxy) {
-        synchronized (mLock) {
-            switch (profile) {
-                case BluetoothProfile.HEADSET:
-                    mHeadset = (BluetoothHeadset) proxy;
-                    if (mA2dp != null) {
-                        mHandler.sendEmptyMessage(MSG_NEXT_STEP);
-                    }
-                    break;
-                case BluetoothProfile.A2DP:
-                    mA2dp = (BluetoothA2dp) proxy;
-                    if (mHeadset != null) {
-                        mHandler.sendEmptyMessage(MSG_NEXT_STEP);
-                    }
-                    break;
-                case BluetoothProfile.INPUT_DEVICE:
-                    mInput = (BluetoothInputDevice) proxy;
-                    if (mInput != null) {
-                        mHandler.sendEmptyMessage(MSG_NEXT_STEP);
-                    }
-                    break;
-            }
-        }
-    }
-
-    @Override
-    public void onServiceDisconnected(int profile) {
-        // We can ignore these
+    public void onProxiesConnected() {
+        mHandler.sendEmptyMessage(MSG_NEXT_STEP);
     }
 }
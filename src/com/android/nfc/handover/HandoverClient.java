@@ -20,10 +20,10 @@ import android.nfc.NdefMessage;
 import android.util.Log;
 
 import com.android.nfc.LlcpException;
+import com.android.nfc.NdefMessageFramer;
 import com.android.nfc.NfcService;
 import com.android.nfc.DeviceHost.LlcpSocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -107,7 +107,7 @@ public final class HandoverClient {
         }
         int offset = 0;
         byte[] buffer = msg.toByteArray();
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        NdefMessageFramer framer = new NdefMessageFramer();
 
         try {
             int remoteMiu = sock.getRemoteMiu();
@@ -122,22 +122,19 @@ public final class HandoverClient {
 
             // Now, try to read back the handover response
             byte[] partial = new byte[sock.getLocalMiu()];
-            NdefMessage handoverSelectMsg = null;
-            while (true) {
+            while (!framer.isComplete()) {
                 int size = sock.receive(partial);
                 if (size < 0) {
-                    break;
+                    return null;
                 }
-                byteStream.write(partial, 0, size);
-                try {
-                    handoverSelectMsg = new NdefMessage(byteStream.toByteArray());
-                    // If we get here, message is complete
+                framer.append(partial, 0, size);
+                if (framer.isMalformed()) {
                     break;
-                } catch (FormatException e) {
-                    // Ignore, and try to fetch more bytes
                 }
             }
-            return handoverSelectMsg;
+            return framer.getMessage();
+        } catch (FormatException e) {
+            Log.e(TAG, "Invalid handover select message: " + e.getMessage());
         } catch (IOException e) {
             if (DBG) Log.d(TAG, "couldn't connect to handover service");
         } finally {
@@ -149,11 +146,6 @@ public final class HandoverClient {
                     // Ignore
                 }
             }
-            try {
-                byteStream.close();
-            } catch (IOException e) {
-                // Ignore
-            }
         }
         return null;
     }
@@ -27,14 +27,18 @@ import java.util.Random;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.OobData;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.os.UserHandle;
 import android.util.Log;
 
+import com.android.nfc.NdefRecordView;
+
 /**
  * Manages handover of NFC to other technologies.
  */
@@ -51,6 +55,10 @@ public class HandoverDataParser {
 
     private static final byte[] RTD_COLLISION_RESOLUTION = {0x63, 0x72}; // "cr";
 
+    // Offset of the random number in the Hr payload: version, then the
+    // header, type length, payload length and type of the cr record
+    private static final int COLLISION_RANDOM_OFFSET = 1 + 3 + RTD_COLLISION_RESOLUTION.length;
+
     private static final int CARRIER_POWER_STATE_INACTIVE = 0;
     private static final int CARRIER_POWER_STATE_ACTIVE = 1;
     private static final int CARRIER_POWER_STATE_ACTIVATING = 2;
@@ -66,12 +74,29 @@ public class HandoverDataParser {
 
     public static final int SECURITY_MANAGER_TK_SIZE = 16;
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     private final BluetoothAdapter mBluetoothAdapter;
+    private final Random mRandom = new Random();
 
     private final Object mLock = new Object();
     // Variables below synchronized on mLock
 
     private String mLocalBluetoothAddress;
+    // Pre-encoded local records, dropped when the local adapter changes
+    private NdefRecord mOobDataRecord;
+    private byte[] mHandoverRequestPayload;
+    // Indexed by whether the carrier is activating
+    private final NdefMessage[] mHandoverSelectMessages = new NdefMessage[2];
+
+    final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The address is only read while the adapter is turning on,
+            // so it can only change along with the adapter state
+            invalidateLocalRecords();
+        }
+    };
 
     public static class BluetoothHandoverData {
         public boolean valid = false;
@@ -93,8 +118,31 @@ public class HandoverDataParser {
         }
     }
 
-    public HandoverDataParser() {
+    public HandoverDataParser(Context context) {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (mBluetoothAdapter != null) {
+            IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+            filter.addAction(BluetoothAdapter.ACTION_LOCAL_NAME_CHANGED);
+            context.registerReceiver(mBluetoothReceiver, filter);
+        }
+    }
+
+    void invalidateLocalRecords() {
+        synchronized (mLock) {
+            if (DBG) Log.d(TAG, "Local Bluetooth changed, dropping encoded records");
+            mLocalBluetoothAddress = null;
+            mOobDataRecord = null;
+            mHandoverRequestPayload = null;
+            mHandoverSelectMessages[0] = null;
+            mHandoverSelectMessages[1] = null;
+        }
+    }
+
+    private NdefRecord getBluetoothOobDataRecordLocked() {
+        if (mOobDataRecord == null) {
+            mOobDataRecord = createBluetoothOobDataRecord();
+        }
+        return mOobDataRecord;
     }
 
     static NdefRecord createCollisionRecord() {
@@ -144,18 +192,39 @@ public class HandoverDataParser {
             return null;
         }
 
+        NdefRecord oobDataRecord;
+        byte[] payload;
+        synchronized (mLock) {
+            oobDataRecord = getBluetoothOobDataRecordLocked();
+            if (mHandoverRequestPayload == null) {
+                mHandoverRequestPayload = createHandoverRequestRecord().getPayload();
+            }
+            payload = mHandoverRequestPayload.clone();
+        }
+        // Only the collision resolution number differs between requests
+        byte[] random = new byte[2];
+        mRandom.nextBytes(random);
+        System.arraycopy(random, 0, payload, COLLISION_RANDOM_OFFSET, random.length);
+
         NdefRecord[] dataRecords = new NdefRecord[] {
-                createBluetoothOobDataRecord()
+                oobDataRecord
         };
         return new NdefMessage(
-                createHandoverRequestRecord(),
+                new NdefRecord(NdefRecord.TNF_WELL_KNOWN, NdefRecord.RTD_HANDOVER_REQUEST, null,
+                        payload),
                 dataRecords);
     }
 
     NdefMessage createBluetoothHandoverSelectMessage(boolean activating) {
-        return new NdefMessage(createHandoverSelectRecord(
-                createBluetoothAlternateCarrierRecord(activating)),
-                createBluetoothOobDataRecord());
+        int index = activating ? 1 : 0;
+        synchronized (mLock) {
+            if (mHandoverSelectMessages[index] == null) {
+                mHandoverSelectMessages[index] = new NdefMessage(createHandoverSelectRecord(
+                        createBluetoothAlternateCarrierRecord(activating)),
+                        getBluetoothOobDataRecordLocked());
+            }
+            return mHandoverSelectMessages[index];
+        }
     }
 
     NdefRecord createHandoverSelectRecord(NdefRecord alternateCarrier) {
@@ -199,27 +268,53 @@ public class HandoverDataParser {
      */
     public IncomingHandoverData getIncomingHandoverData(NdefMessage handoverRequest) {
         if (handoverRequest == null) return null;
-        if (mBluetoothAdapter == null) return null;
 
         if (DBG) Log.d(TAG, "getIncomingHandoverData():" + handoverRequest.toString());
 
-        NdefRecord handoverRequestRecord = handoverRequest.getRecords()[0];
-        if (handoverRequestRecord.getTnf() != NdefRecord.TNF_WELL_KNOWN) {
-            return null;
-        }
+        return getIncomingHandoverData(handoverRequest.toByteArray());
+    }
 
-        if (!Arrays.equals(handoverRequestRecord.getType(), NdefRecord.RTD_HANDOVER_REQUEST)) {
-            return null;
-        }
+    /**
+     * Same as {@link #getIncomingHandoverData(NdefMessage)}, for a message
+     * that is still encoded, as received from a peer.
+     */
+    public IncomingHandoverData getIncomingHandoverData(byte[] handoverRequest) {
+        return getIncomingHandoverData(handoverRequest, true);
+    }
 
-        // we have a handover request, look for BT OOB record
+    private IncomingHandoverData getIncomingHandoverData(byte[] handoverRequest,
+            boolean allowReencode) {
+        if (handoverRequest == null) return null;
+        if (mBluetoothAdapter == null) return null;
+
+        NdefRecordView record = new NdefRecordView(handoverRequest);
         BluetoothHandoverData bluetoothData = null;
-        for (NdefRecord dataRecord : handoverRequest.getRecords()) {
-            if (dataRecord.getTnf() == NdefRecord.TNF_MIME_MEDIA) {
-                if (Arrays.equals(dataRecord.getType(), TYPE_BT_OOB)) {
-                    bluetoothData = parseBtOob(ByteBuffer.wrap(dataRecord.getPayload()));
+        try {
+            if (!record.next() || record.getTnf() != NdefRecord.TNF_WELL_KNOWN ||
+                    !record.isType(NdefRecord.RTD_HANDOVER_REQUEST)) {
+                return null;
+            }
+
+            // we have a handover request, look for BT OOB record
+            do {
+                if (record.getTnf() == NdefRecord.TNF_MIME_MEDIA &&
+                        record.isType(TYPE_BT_OOB)) {
+                    bluetoothData = parseBtOob(record.payload());
+                }
+            } while (record.next());
+        } catch (FormatException e) {
+            if (allowReencode) {
+                // The record view doesn't support chunked records; let
+                // NdefMessage reassemble them, and parse its encoding.
+                try {
+                    byte[] reencoded = new NdefMessage(handoverRequest).toByteArray();
+                    return getIncomingHandoverData(reencoded, false);
+                } catch (FormatException e2) {
+                    // Not valid NDEF at all
                 }
             }
+            Log.i(TAG, "Invalid handover request: " + e.getMessage());
+            return null;
         }
 
         NdefMessage hs = tryBluetoothHandoverRequest(bluetoothData);
@@ -257,86 +352,106 @@ public class HandoverDataParser {
 
 
 
-    boolean isCarrierActivating(NdefRecord handoverRec, byte[] carrierId) {
-        byte[] payload = handoverRec.getPayload();
-        if (payload == null || payload.length <= 1) return false;
+    boolean isCarrierActivating(NdefRecordView handoverRec, NdefRecordView oob) {
+        if (handoverRec.getPayloadLength() <= 1) return false;
         // Skip version
-        byte[] payloadNdef = new byte[payload.length - 1];
-        System.arraycopy(payload, 1, payloadNdef, 0, payload.length - 1);
-        NdefMessage msg;
+        NdefRecordView alt = handoverRec.nested(1);
         try {
-            msg = new NdefMessage(payloadNdef);
-        } catch (FormatException e) {
-            return false;
-        }
-
-        for (NdefRecord alt : msg.getRecords()) {
-            byte[] acPayload = alt.getPayload();
-            if (acPayload != null) {
-                ByteBuffer buf = ByteBuffer.wrap(acPayload);
+            while (alt.next()) {
+                ByteBuffer buf = alt.payload();
+                if (buf.remaining() < 2) continue;
                 int cps = buf.get() & 0x03; // Carrier Power State is in lower 2 bits
                 int carrierRefLength = buf.get() & 0xFF;
-                if (carrierRefLength != carrierId.length) return false;
+                if (carrierRefLength != oob.getIdLength()) return false;
+                if (buf.remaining() < carrierRefLength) return false;
 
-                byte[] carrierRefId = new byte[carrierRefLength];
-                buf.get(carrierRefId);
-                if (Arrays.equals(carrierRefId, carrierId)) {
+                if (oob.isId(alt.getData(), alt.getPayloadOffset() + 2, carrierRefLength)) {
                     // Found match, returning whether power state is activating
                     return (cps == CARRIER_POWER_STATE_ACTIVATING);
                 }
             }
+        } catch (FormatException e) {
+            return false;
         }
 
         return true;
     }
 
-    BluetoothHandoverData parseBluetoothHandoverSelect(NdefMessage m) {
+    BluetoothHandoverData parseBluetoothHandoverSelect(byte[] m) throws FormatException {
         // TODO we could parse this a lot more strictly; right now
         // we just search for a BT OOB record, and try to cross-reference
         // the carrier state inside the 'hs' payload.
-        for (NdefRecord oob : m.getRecords()) {
-            if (oob.getTnf() == NdefRecord.TNF_MIME_MEDIA &&
-                    Arrays.equals(oob.getType(), TYPE_BT_OOB)) {
-                BluetoothHandoverData data = parseBtOob(ByteBuffer.wrap(oob.getPayload()));
-                if (data != null && isCarrierActivating(m.getRecords()[0], oob.getId())) {
+        NdefRecordView hs = new NdefRecordView(m);
+        hs.next();
+        NdefRecordView oob = new NdefRecordView(m);
+        while (oob.next()) {
+            if (oob.getTnf() == NdefRecord.TNF_MIME_MEDIA && oob.isType(TYPE_BT_OOB)) {
+                BluetoothHandoverData data = parseBtOob(oob.payload());
+                if (data != null && isCarrierActivating(hs, oob)) {
                     data.carrierActivating = true;
                 }
                 return data;
             }
 
-            if (oob.getTnf() == NdefRecord.TNF_MIME_MEDIA &&
-                    Arrays.equals(oob.getType(), TYPE_BLE_OOB)) {
-                return parseBleOob(ByteBuffer.wrap(oob.getPayload()));
+            if (oob.getTnf() == NdefRecord.TNF_MIME_MEDIA && oob.isType(TYPE_BLE_OOB)) {
+                return parseBleOob(oob.payload());
             }
         }
 
         return null;
     }
 
-    public BluetoothHandoverData parseBluetooth(NdefMessage m) {
-        NdefRecord r = m.getRecords()[0];
+    /**
+     * @return whether a message starting with the given record may be parsed
+     *         by {@link #parseBluetooth}
+     */
+    public static boolean isBluetoothRecord(NdefRecordView r) {
         short tnf = r.getTnf();
-        byte[] type = r.getType();
-
-        // Check for BT OOB record
-        if (r.getTnf() == NdefRecord.TNF_MIME_MEDIA && Arrays.equals(r.getType(), TYPE_BT_OOB)) {
-            return parseBtOob(ByteBuffer.wrap(r.getPayload()));
+        if (tnf == NdefRecord.TNF_MIME_MEDIA) {
+            return r.isType(TYPE_BT_OOB) || r.isType(TYPE_BLE_OOB);
+        } else if (tnf == NdefRecord.TNF_WELL_KNOWN) {
+            return r.isType(NdefRecord.RTD_HANDOVER_SELECT);
+        } else if (tnf == NdefRecord.TNF_EXTERNAL_TYPE) {
+            return r.isType(TYPE_NOKIA);
         }
+        return false;
+    }
 
-        // Check for BLE OOB record
-        if (r.getTnf() == NdefRecord.TNF_MIME_MEDIA && Arrays.equals(r.getType(), TYPE_BLE_OOB)) {
-            return parseBleOob(ByteBuffer.wrap(r.getPayload()));
-        }
+    public BluetoothHandoverData parseBluetooth(NdefMessage m) {
+        return parseBluetooth(m.toByteArray());
+    }
 
-        // Check for Handover Select, followed by a BT OOB record
-        if (tnf == NdefRecord.TNF_WELL_KNOWN &&
-                Arrays.equals(type, NdefRecord.RTD_HANDOVER_SELECT)) {
-            return parseBluetoothHandoverSelect(m);
-        }
+    /**
+     * Same as {@link #parseBluetooth(NdefMessage)}, for a message that is
+     * still encoded.
+     */
+    public BluetoothHandoverData parseBluetooth(byte[] m) {
+        NdefRecordView r = new NdefRecordView(m);
+        try {
+            if (!r.next()) return null;
+            short tnf = r.getTnf();
+
+            // Check for BT OOB record
+            if (tnf == NdefRecord.TNF_MIME_MEDIA && r.isType(TYPE_BT_OOB)) {
+                return parseBtOob(r.payload());
+            }
+
+            // Check for BLE OOB record
+            if (tnf == NdefRecord.TNF_MIME_MEDIA && r.isType(TYPE_BLE_OOB)) {
+                return parseBleOob(r.payload());
+            }
 
-        // Check for Nokia BT record, found on some Nokia BH-505 Headsets
-        if (tnf == NdefRecord.TNF_EXTERNAL_TYPE && Arrays.equals(type, TYPE_NOKIA)) {
-            return parseNokia(ByteBuffer.wrap(r.getPayload()));
+            // Check for Handover Select, followed by a BT OOB record
+            if (tnf == NdefRecord.TNF_WELL_KNOWN && r.isType(NdefRecord.RTD_HANDOVER_SELECT)) {
+                return parseBluetoothHandoverSelect(m);
+            }
+
+            // Check for Nokia BT record, found on some Nokia BH-505 Headsets
+            if (tnf == NdefRecord.TNF_EXTERNAL_TYPE && r.isType(TYPE_NOKIA)) {
+                return parseNokia(r.payload());
+            }
+        } catch (FormatException e) {
+            Log.i(TAG, "Invalid handover message: " + e.getMessage());
         }
 
         return null;
@@ -348,15 +463,11 @@ public class HandoverDataParser {
 
         try {
             payload.position(1);
-            byte[] address = new byte[6];
-            payload.get(address);
-            result.device = mBluetoothAdapter.getRemoteDevice(address);
+            result.device = mBluetoothAdapter.getRemoteDevice(parseMac(payload, false));
             result.valid = true;
             payload.position(14);
             int nameLength = payload.get();
-            byte[] nameBytes = new byte[nameLength];
-            payload.get(nameBytes);
-            result.name = new String(nameBytes, StandardCharsets.UTF_8);
+            result.name = parseName(payload, nameLength);
         } catch (IllegalArgumentException e) {
             Log.i(TAG, "nokia: invalid BT address");
         } catch (BufferUnderflowException e) {
@@ -372,25 +483,20 @@ public class HandoverDataParser {
 
         try {
             payload.position(2); // length
-            byte[] address = parseMacFromBluetoothRecord(payload);
+            String address = parseMacFromBluetoothRecord(payload);
             result.device = mBluetoothAdapter.getRemoteDevice(address);
             result.valid = true;
 
             while (payload.remaining() > 0) {
-                byte[] nameBytes;
                 int len = payload.get();
                 int type = payload.get();
                 switch (type) {
                     case BT_HANDOVER_TYPE_SHORT_LOCAL_NAME:
-                        nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
-                        result.name = new String(nameBytes, StandardCharsets.UTF_8);
+                        result.name = parseName(payload, len - 1);
                         break;
                     case BT_HANDOVER_TYPE_LONG_LOCAL_NAME:
                         if (result.name != null) break;  // prefer short name
-                        nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
-                        result.name = new String(nameBytes, StandardCharsets.UTF_8);
+                        result.name = parseName(payload, len - 1);
                         break;
                     default:
                         payload.position(payload.position() + len - 1);
@@ -418,7 +524,7 @@ public class HandoverDataParser {
                 int type = payload.get();
                 switch (type) {
                     case BT_HANDOVER_TYPE_MAC: // mac address
-                        byte[] address = parseMacFromBluetoothRecord(payload);
+                        String address = parseMacFromBluetoothRecord(payload);
                         payload.position(payload.position() + 1); // advance over random byte
                         result.device = mBluetoothAdapter.getRemoteDevice(address);
                         result.valid = true;
@@ -432,9 +538,7 @@ public class HandoverDataParser {
                         }
                         break;
                     case BT_HANDOVER_TYPE_LONG_LOCAL_NAME:
-                        byte[] nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
-                        result.name = new String(nameBytes, StandardCharsets.UTF_8);
+                        result.name = parseName(payload, len - 1);
                         break;
                     case BT_HANDOVER_TYPE_SECURITY_MANAGER_TK:
                         if (len-1 != SECURITY_MANAGER_TK_SIZE) {
@@ -463,17 +567,41 @@ public class HandoverDataParser {
         return result;
     }
 
-    private byte[] parseMacFromBluetoothRecord(ByteBuffer payload) {
-        byte[] address = new byte[6];
-        payload.get(address);
-        // ByteBuffer.order(LITTLE_ENDIAN) doesn't work for
-        // ByteBuffer.get(byte[]), so manually swap order
-        for (int i = 0; i < 3; i++) {
-            byte temp = address[i];
-            address[i] = address[5 - i];
-            address[5 - i] = temp;
+    private String parseMacFromBluetoothRecord(ByteBuffer payload) {
+        // Little-endian in the record
+        return parseMac(payload, true);
+    }
+
+    private static String parseMac(ByteBuffer payload, boolean reverse) {
+        if (payload.remaining() < 6) {
+            throw new BufferUnderflowException();
+        }
+        // Formatted straight from the payload, BluetoothAdapter would format
+        // a byte[] address into a String anyway
+        char[] address = new char[17];
+        int start = payload.arrayOffset() + payload.position();
+        byte[] data = payload.array();
+        for (int i = 0; i < 6; i++) {
+            int b = data[start + (reverse ? 5 - i : i)] & 0xFF;
+            if (i > 0) address[i * 3 - 1] = ':';
+            address[i * 3] = HEX_DIGITS[b >> 4];
+            address[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        payload.position(payload.position() + 6);
+        return new String(address);
+    }
+
+    /**
+     * Decodes a UTF-8 name of length bytes in place, without copying them.
+     */
+    private static String parseName(ByteBuffer payload, int length) {
+        if (length < 0 || payload.remaining() < length) {
+            throw new BufferUnderflowException();
         }
-        return address;
+        String name = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return name;
     }
 
     static byte[] addressToReverseBytes(String address) {
@@ -18,6 +18,7 @@ package com.android.nfc.handover;
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
+import com.android.nfc.NdefMessageFramer;
 import com.android.nfc.NfcService;
 import com.android.nfc.beam.BeamManager;
 import com.android.nfc.beam.BeamReceiveService;
@@ -27,11 +28,9 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
 import android.nfc.FormatException;
-import android.nfc.NdefMessage;
 import android.os.UserHandle;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -176,7 +175,7 @@ public final class HandoverServer {
         @Override
         public void run() {
             if (DBG) Log.d(TAG, "starting connection thread");
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            NdefMessageFramer framer = new NdefMessageFramer();
 
             try {
                 boolean running;
@@ -186,24 +185,36 @@ public final class HandoverServer {
 
                 byte[] partial = new byte[mSock.getLocalMiu()];
 
-                NdefMessage handoverRequestMsg = null;
                 while (running) {
                     int size = mSock.receive(partial);
                     if (size < 0) {
                         break;
                     }
-                    byteStream.write(partial, 0, size);
-                    // 1) Try to parse a handover request message from bytes received so far
-                    try {
-                        handoverRequestMsg = new NdefMessage(byteStream.toByteArray());
-                    } catch (FormatException e) {
-                        // Ignore, and try to fetch more bytes
+                    // 1) Look for the end of the handover request message
+                    int consumed = framer.append(partial, 0, size);
+                    if (framer.isMalformed()) {
+                        Log.e(TAG, "Invalid handover request message");
+                        break;
                     }
 
-                    if (handoverRequestMsg != null) {
+                    if (framer.isComplete()) {
+                        if (consumed < size) {
+                            // The peer waits for our response before sending more
+                            Log.w(TAG, "Ignoring " + (size - consumed) +
+                                    " bytes after handover request");
+                        }
+                        byte[] handoverRequestMsg;
+                        try {
+                            // Parsed in place by the HandoverDataParser
+                            handoverRequestMsg = framer.getMessageBytes();
+                        } catch (FormatException e) {
+                            Log.e(TAG, "Invalid handover request message: " + e.getMessage());
+                            break;
+                        }
+
                         BeamManager beamManager = BeamManager.getInstance();
 
-                        if (beamManager.isBeamInProgress()) {
+                        if (!beamManager.canAcceptBeam(true)) {
                             mCallback.onHandoverBusy();
                             break;
                         }
@@ -233,7 +244,7 @@ public final class HandoverServer {
                             break;
                         }
                         // We can process another handover transfer
-                        byteStream = new ByteArrayOutputStream();
+                        framer.reset();
                     }
 
                     synchronized (HandoverServer.this) {
@@ -250,11 +261,6 @@ public final class HandoverServer {
                 } catch (IOException e) {
                     // ignore
                 }
-                try {
-                    byteStream.close();
-                } catch (IOException e) {
-                    // ignore
-                }
             }
             if (DBG) Log.d(TAG, "finished connection thread");
         }
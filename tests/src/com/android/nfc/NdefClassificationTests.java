@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the single pass over NDEF messages done before dispatch.
+ */
+public class NdefClassificationTests extends AndroidTestCase {
+
+    public void testNoMessage() {
+        NdefClassification c = NdefClassification.classify(null);
+
+        assertNull(c.getBytes());
+        assertFalse(c.has(NdefClassification.FLAG_URI));
+        assertTrue(c.getAarPackages().isEmpty());
+    }
+
+    public void testUriWithAars() {
+        NdefMessage msg = new NdefMessage(
+                NdefRecord.createUri("http://www.android.com"),
+                NdefRecord.createApplicationRecord("com.example.first"),
+                NdefRecord.createApplicationRecord("com.example.second"));
+        NdefClassification c = NdefClassification.classify(msg);
+
+        assertTrue(c.has(NdefClassification.FLAG_URI));
+        assertTrue(c.has(NdefClassification.FLAG_AAR));
+        assertFalse(c.has(NdefClassification.FLAG_HANDOVER));
+        assertFalse(c.has(NdefClassification.FLAG_WPS));
+        assertEquals(Arrays.asList("com.example.first", "com.example.second"),
+                c.getAarPackages());
+    }
+
+    public void testMime() {
+        NdefMessage msg = new NdefMessage(NdefRecord.createMime("text/x-test", new byte[4]));
+        NdefClassification c = NdefClassification.classify(msg);
+
+        assertTrue(c.has(NdefClassification.FLAG_MIME));
+        assertFalse(c.has(NdefClassification.FLAG_URI));
+    }
+
+    public void testBluetoothOob() {
+        NdefMessage msg = new NdefMessage(
+                NdefRecord.createMime("application/vnd.bluetooth.ep.oob", new byte[8]));
+        NdefClassification c = NdefClassification.classify(msg);
+
+        assertTrue(c.has(NdefClassification.FLAG_HANDOVER));
+        assertTrue(Arrays.equals(msg.toByteArray(), c.getBytes()));
+    }
+
+    public void testWpsToken() {
+        byte[] token = new byte[] { 0x10, 0x0E, 0x00, 0x00 };
+        NdefMessage msg = new NdefMessage(
+                NdefRecord.createUri("http://www.android.com"),
+                NdefRecord.createMime(NfcWifiProtectedSetup.NFC_TOKEN_MIME_TYPE, token));
+        NdefClassification c = NdefClassification.classify(msg);
+
+        assertTrue(c.has(NdefClassification.FLAG_WPS));
+        List<ByteBuffer> payloads = c.getWpsPayloads();
+        assertEquals(1, payloads.size());
+        assertEquals(ByteBuffer.wrap(token), payloads.get(0));
+    }
+}
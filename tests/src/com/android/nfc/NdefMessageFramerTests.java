@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests finding the end of NDEF messages received in fragments.
+ */
+public class NdefMessageFramerTests extends AndroidTestCase {
+
+    public void testSingleFragment() throws Exception {
+        NdefMessage msg = createMessage(3, 10);
+        byte[] bytes = msg.toByteArray();
+        NdefMessageFramer framer = new NdefMessageFramer();
+
+        assertEquals(bytes.length, framer.append(bytes, 0, bytes.length));
+        assertTrue(framer.isComplete());
+        assertEquals(msg, framer.getMessage());
+    }
+
+    public void testByteByByte() throws Exception {
+        // Long payload, not a short record
+        NdefMessage msg = createMessage(2, 300);
+        byte[] bytes = msg.toByteArray();
+        NdefMessageFramer framer = new NdefMessageFramer();
+
+        for (int i = 0; i < bytes.length; i++) {
+            assertFalse(framer.isComplete());
+            assertEquals(1, framer.append(bytes, i, 1));
+        }
+        assertTrue(framer.isComplete());
+        assertEquals(msg, framer.getMessage());
+    }
+
+    public void testTrailingBytesNotConsumed() throws Exception {
+        byte[] bytes = createMessage(1, 20).toByteArray();
+        byte[] data = Arrays.copyOf(bytes, bytes.length + 5);
+        NdefMessageFramer framer = new NdefMessageFramer();
+
+        assertEquals(bytes.length, framer.append(data, 0, data.length));
+        assertTrue(framer.isComplete());
+        assertEquals(bytes.length, framer.size());
+    }
+
+    public void testChunkedRecord() throws Exception {
+        byte[] data = new byte[] {
+                // MB, CF, SR, TNF_MIME_MEDIA, type "a", payload "xy"
+                (byte) 0xB2, 1, 2, 'a', 'x', 'y',
+                // CF, SR, TNF_UNCHANGED, payload "z"
+                (byte) 0x36, 0, 1, 'z',
+                // ME, SR, TNF_UNCHANGED, empty payload
+                (byte) 0x56, 0, 0
+        };
+        NdefMessageFramer framer = new NdefMessageFramer();
+
+        framer.append(data, 0, 9);
+        assertFalse(framer.isComplete());
+        framer.append(data, 9, data.length - 9);
+        assertTrue(framer.isComplete());
+    }
+
+    public void testMalformed() {
+        // First record without MB
+        byte[] data = new byte[] { 0x51, 1, 0, 'T' };
+        NdefMessageFramer framer = new NdefMessageFramer();
+
+        assertEquals(1, framer.append(data, 0, data.length));
+        assertTrue(framer.isMalformed());
+        framer.reset();
+        assertFalse(framer.isMalformed());
+    }
+
+    private static NdefMessage createMessage(int records, int payloadLength) {
+        NdefRecord[] array = new NdefRecord[records];
+        for (int i = 0; i < records; i++) {
+            array[i] = NdefRecord.createMime("application/x-test", new byte[payloadLength]);
+        }
+        return new NdefMessage(array);
+    }
+}
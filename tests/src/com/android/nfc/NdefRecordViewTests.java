@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tests the record view against {@link NdefMessage} parsing.
+ */
+public class NdefRecordViewTests extends AndroidTestCase {
+    private static final byte[] TYPE_BT_OOB = "application/vnd.bluetooth.ep.oob"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    public void testMatchesNdefMessage() throws Exception {
+        NdefMessage msg = createHandoverSelect(300);
+        NdefRecord[] records = msg.getRecords();
+        NdefRecordView view = new NdefRecordView(msg.toByteArray());
+
+        for (NdefRecord record : records) {
+            assertTrue(view.next());
+            assertEquals(record.getTnf(), view.getTnf());
+            assertTrue(view.isType(record.getType()));
+            assertTrue(Arrays.equals(record.getId(), view.getId()));
+            ByteBuffer payload = view.payload();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            assertTrue(Arrays.equals(record.getPayload(), bytes));
+        }
+        assertFalse(view.next());
+    }
+
+    public void testNestedMessage() throws Exception {
+        NdefMessage msg = createHandoverSelect(8);
+        NdefRecordView hs = new NdefRecordView(msg.toByteArray());
+        assertTrue(hs.next());
+
+        // Skip version
+        NdefRecordView alt = hs.nested(1);
+        assertTrue(alt.next());
+        assertTrue(alt.isType(NdefRecord.RTD_ALTERNATIVE_CARRIER));
+        assertFalse(alt.next());
+    }
+
+    public void testTruncated() {
+        byte[] bytes = createHandoverSelect(8).toByteArray();
+        NdefRecordView view = new NdefRecordView(bytes, 0, bytes.length - 1);
+        try {
+            view.next();
+            view.next();
+            fail("expected FormatException");
+        } catch (FormatException e) {
+            // Expected
+        }
+    }
+
+    public void testHandoverSelectPayload() throws Exception {
+        NdefMessage msg = createHandoverSelect(64);
+        byte[] bytes = msg.toByteArray();
+
+        NdefRecordView view = new NdefRecordView(bytes);
+        int matched = 0;
+        for (NdefRecord record : msg.getRecords()) {
+            assertTrue(view.next());
+            assertEquals(record.getTnf() == NdefRecord.TNF_MIME_MEDIA &&
+                    Arrays.equals(record.getType(), TYPE_BT_OOB),
+                    view.getTnf() == NdefRecord.TNF_MIME_MEDIA && view.isType(TYPE_BT_OOB));
+            if (view.isType(TYPE_BT_OOB)) {
+                assertEquals(ByteBuffer.wrap(record.getPayload()), view.payload());
+                matched++;
+            }
+        }
+        assertFalse(view.next());
+        assertEquals(1, matched);
+    }
+
+    private static NdefMessage createHandoverSelect(int oobLength) {
+        byte[] ac = new byte[] { 0x01, 0x01, 'b', 0x00 };
+        NdefMessage nested = new NdefMessage(new NdefRecord(NdefRecord.TNF_WELL_KNOWN,
+                NdefRecord.RTD_ALTERNATIVE_CARRIER, null, ac));
+        byte[] nestedBytes = nested.toByteArray();
+        byte[] hsPayload = new byte[nestedBytes.length + 1];
+        hsPayload[0] = 0x12;
+        System.arraycopy(nestedBytes, 0, hsPayload, 1, nestedBytes.length);
+        return new NdefMessage(
+                new NdefRecord(NdefRecord.TNF_WELL_KNOWN, NdefRecord.RTD_HANDOVER_SELECT, null,
+                        hsPayload),
+                new NdefRecord(NdefRecord.TNF_MIME_MEDIA, TYPE_BT_OOB, new byte[] { 'b' },
+                        new byte[oobLength]));
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.nfc.cardemulation.AidGroup;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.nfc.cardemulation.NfcFServiceInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests folding and replay of the card emulation change log, and replaying
+ * it into the AID cache.
+ */
+public class CardEmulationChangeLogTests extends AndroidTestCase {
+    private static final String TAG = "CardEmulationChangeLogTests";
+
+    private static final ComponentName SERVICE_A = new ComponentName("com.example.a", "A");
+    private static final ComponentName SERVICE_B = new ComponentName("com.example.b", "B");
+    private static final ComponentName SERVICE_C = new ComponentName("com.example.c", "C");
+
+    private static final String AID_A = "F001020304";
+    private static final String AID_B = "F011121314";
+    private static final String AID_C = "A0000000041010";
+
+    private static final int ROUTE_OFF_HOST = 0x02;
+
+    /**
+     * Records the routing table instead of programming the controller.
+     */
+    static final class FakeRoutingManager extends AidRoutingManager {
+        final HashMap<String, Integer> mRouted = new HashMap<String, Integer>();
+        int mCommits;
+
+        FakeRoutingManager() {
+            super(ROUTE_HOST, ROUTE_OFF_HOST, AID_MATCHING_EXACT_ONLY);
+        }
+
+        @Override
+        void routeAids(String aid, int route) {
+            mRouted.put(aid, route);
+        }
+
+        @Override
+        void unrouteAids(String aid) {
+            mRouted.remove(aid);
+        }
+
+        @Override
+        void commitRouting() {
+            mCommits++;
+        }
+    }
+
+    public void testLastServiceListWins() {
+        List<ApduServiceInfo> first = new ArrayList<ApduServiceInfo>();
+        List<ApduServiceInfo> second = new ArrayList<ApduServiceInfo>();
+        List<ApduServiceInfo> otherUser = new ArrayList<ApduServiceInfo>();
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        changes.add(CardEmulationChangeLog.Change.services(0, first));
+        changes.add(CardEmulationChangeLog.Change.services(10, otherUser));
+        changes.add(CardEmulationChangeLog.Change.services(0, second));
+
+        final ArrayList<CardEmulationChangeLog.Batch> batches =
+                new ArrayList<CardEmulationChangeLog.Batch>();
+        int count = CardEmulationChangeLog.replay(changes, changes.size(), collect(batches));
+
+        assertEquals(1, count);
+        CardEmulationChangeLog.Batch batch = batches.get(0);
+        assertEquals(1, batch.fromVersion);
+        assertEquals(3, batch.toVersion);
+        assertEquals(3, batch.changeCount);
+        assertEquals(2, batch.services.size());
+        assertSame(second, batch.services.get(0));
+        assertSame(otherUser, batch.services.get(10));
+        assertFalse(batch.preferredPaymentChanged);
+        assertTrue(batch.hasHceChanges());
+    }
+
+    public void testPreferredServicesCollapse() {
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        changes.add(CardEmulationChangeLog.Change.preferredPayment(SERVICE_A));
+        changes.add(CardEmulationChangeLog.Change.preferredForeground(SERVICE_B));
+        changes.add(CardEmulationChangeLog.Change.preferredPayment(SERVICE_B));
+        changes.add(CardEmulationChangeLog.Change.preferredForeground(null));
+
+        CardEmulationChangeLog.Batch batch = CardEmulationChangeLog.fold(changes);
+
+        assertTrue(batch.preferredPaymentChanged);
+        assertEquals(SERVICE_B, batch.preferredPayment);
+        assertTrue(batch.preferredForegroundChanged);
+        assertNull(batch.preferredForeground);
+        assertEquals(0, batch.services.size());
+    }
+
+    public void testNfcFDeltasMerge() {
+        List<NfcFServiceInfo> none = Collections.<NfcFServiceInfo>emptyList();
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        changes.add(CardEmulationChangeLog.Change.nfcFServicesDelta(0, none,
+                Collections.singletonList(SERVICE_A)));
+        changes.add(CardEmulationChangeLog.Change.nfcFServicesDelta(0, none,
+                Collections.singletonList(SERVICE_B)));
+
+        CardEmulationChangeLog.Batch batch = CardEmulationChangeLog.fold(changes);
+
+        CardEmulationChangeLog.NfcFChange change = batch.nfcFServices.get(0);
+        assertFalse(change.complete);
+        assertEquals(2, change.removed.size());
+        assertTrue(change.removed.contains(SERVICE_A));
+        assertTrue(change.removed.contains(SERVICE_B));
+        assertFalse(batch.hasHceChanges());
+    }
+
+    public void testNfcFDeltaAfterCompleteList() {
+        List<NfcFServiceInfo> none = Collections.<NfcFServiceInfo>emptyList();
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        changes.add(CardEmulationChangeLog.Change.nfcFServicesDelta(0, none,
+                Collections.singletonList(SERVICE_A)));
+        changes.add(CardEmulationChangeLog.Change.nfcFServices(0, none));
+        changes.add(CardEmulationChangeLog.Change.nfcFServicesDelta(0, none,
+                Collections.singletonList(SERVICE_B)));
+
+        CardEmulationChangeLog.Batch batch = CardEmulationChangeLog.fold(changes);
+
+        // Removals are already reflected in the complete list
+        CardEmulationChangeLog.NfcFChange change = batch.nfcFServices.get(0);
+        assertTrue(change.complete);
+        assertTrue(change.removed.isEmpty());
+        assertTrue(change.updated.isEmpty());
+    }
+
+    public void testReplayBatchSize() {
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        for (int i = 0; i < 10; i++) {
+            changes.add(CardEmulationChangeLog.Change.services(0,
+                    new ArrayList<ApduServiceInfo>()));
+        }
+        final ArrayList<CardEmulationChangeLog.Batch> batches =
+                new ArrayList<CardEmulationChangeLog.Batch>();
+
+        assertEquals(4, CardEmulationChangeLog.replay(changes, 3, collect(batches)));
+        assertEquals(1, batches.get(0).fromVersion);
+        assertEquals(3, batches.get(0).toVersion);
+        assertEquals(10, batches.get(3).fromVersion);
+        assertEquals(10, batches.get(3).toVersion);
+    }
+
+    public void testReplayIntoAidCache() {
+        List<CardEmulationChangeLog.Change> changes = createBurst();
+        FakeRoutingManager routing = new FakeRoutingManager();
+        RegisteredAidCache aidCache = new RegisteredAidCache(getContext(), routing);
+        aidCache.onNfcEnabled();
+
+        assertEquals(1, CardEmulationChangeLog.replay(changes, changes.size(), aidCache));
+
+        // The whole burst is committed once
+        assertEquals(1, routing.mCommits);
+        assertEquals(3, routing.mRouteForAid.size());
+        assertEquals(Integer.valueOf(ROUTE_HOST), routing.mRouteForAid.get(AID_A));
+        assertEquals(Integer.valueOf(ROUTE_OFF_HOST), routing.mRouteForAid.get(AID_B));
+        assertEquals(Integer.valueOf(ROUTE_HOST), routing.mRouteForAid.get(AID_C));
+        // Only AIDs off the default route are programmed
+        assertEquals(1, routing.mRouted.size());
+        assertEquals(Integer.valueOf(ROUTE_OFF_HOST), routing.mRouted.get(AID_B));
+
+        assertEquals(SERVICE_A, aidCache.resolveAid(AID_A).defaultService.getComponent());
+        assertEquals(SERVICE_C, aidCache.resolveAid(AID_C).defaultService.getComponent());
+        assertEquals(CardEmulation.CATEGORY_PAYMENT, aidCache.resolveAid(AID_C).category);
+    }
+
+    public void testReplayIntoAidCacheUnbatched() {
+        List<CardEmulationChangeLog.Change> changes = createBurst();
+        FakeRoutingManager routing = new FakeRoutingManager();
+        RegisteredAidCache aidCache = new RegisteredAidCache(getContext(), routing);
+        aidCache.onNfcEnabled();
+
+        assertEquals(changes.size(), CardEmulationChangeLog.replay(changes, 1, aidCache));
+
+        // The first service list and the payment default change the table;
+        // the second list only adds a payment AID that isn't routed yet
+        assertEquals(2, routing.mCommits);
+        assertEquals(3, routing.mRouteForAid.size());
+        assertEquals(SERVICE_C, aidCache.resolveAid(AID_C).defaultService.getComponent());
+    }
+
+    public void testFoldBenchmark() {
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        for (int i = 0; i < 1000; i++) {
+            changes.add(CardEmulationChangeLog.Change.services(i % 4,
+                    new ArrayList<ApduServiceInfo>()));
+            changes.add(CardEmulationChangeLog.Change.preferredForeground(
+                    i % 2 == 0 ? SERVICE_A : null));
+        }
+        final ArrayList<CardEmulationChangeLog.Batch> batches =
+                new ArrayList<CardEmulationChangeLog.Batch>();
+        long start = SystemClock.elapsedRealtimeNanos();
+        CardEmulationChangeLog.replay(changes, 50, collect(batches));
+        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        Log.d(TAG, "Folded " + changes.size() + " changes into " + batches.size() +
+                " batches in " + micros + "us");
+        assertEquals(40, batches.size());
+    }
+
+    /**
+     * A package install followed by another, and the user picking a
+     * foreground and a payment service.
+     */
+    private static List<CardEmulationChangeLog.Change> createBurst() {
+        int userId = ActivityManager.getCurrentUser();
+        ApduServiceInfo a = createService(SERVICE_A, true, CardEmulation.CATEGORY_OTHER, AID_A);
+        ApduServiceInfo b = createService(SERVICE_B, false, CardEmulation.CATEGORY_OTHER, AID_B);
+        ApduServiceInfo c = createService(SERVICE_C, true, CardEmulation.CATEGORY_PAYMENT,
+                AID_C);
+        ArrayList<CardEmulationChangeLog.Change> changes =
+                new ArrayList<CardEmulationChangeLog.Change>();
+        changes.add(CardEmulationChangeLog.Change.services(userId, Arrays.asList(a, b)));
+        changes.add(CardEmulationChangeLog.Change.services(userId, Arrays.asList(a, b, c)));
+        changes.add(CardEmulationChangeLog.Change.preferredForeground(SERVICE_A));
+        changes.add(CardEmulationChangeLog.Change.preferredPayment(SERVICE_C));
+        return changes;
+    }
+
+    private static ApduServiceInfo createService(ComponentName component, boolean onHost,
+            String category, String aid) {
+        ResolveInfo info = new ResolveInfo();
+        info.serviceInfo = new ServiceInfo();
+        info.serviceInfo.packageName = component.getPackageName();
+        info.serviceInfo.name = component.getClassName();
+        ArrayList<AidGroup> staticGroups = new ArrayList<AidGroup>();
+        staticGroups.add(new AidGroup(Collections.singletonList(aid), category));
+        return new ApduServiceInfo(info, onHost, component.getClassName(), staticGroups,
+                new ArrayList<AidGroup>(), false, 0, 0, null);
+    }
+
+    private static CardEmulationChangeLog.Consumer collect(
+            final List<CardEmulationChangeLog.Batch> batches) {
+        return new CardEmulationChangeLog.Consumer() {
+            @Override
+            public void onChanges(CardEmulationChangeLog.Batch batch) {
+                batches.add(batch);
+            }
+        };
+    }
+}